@@ -0,0 +1,77 @@
+package dx.xtremelabs.droidtooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.bluetooth.BluetoothDevice;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.callbacks.DefaultCallback;
+import dx.xtremelabs.droidtooth.callbacks.DeviceFoundCallback;
+import dx.xtremelabs.droidtooth.callbacks.NewIncomingServerConnectionCallback;
+import dx.xtremelabs.droidtooth.callbacks.NewOutgoingClientConnectionCallback;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+
+/**
+ * Calling back through DTCallback with an Object argument, as every DroidTooth event
+ * does. monomorphic has one callback class at the call site, megamorphic rotates
+ * through four of them, like a shared listener serving different application callbacks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CallbackDispatchBenchmark {
+
+	FoundDevice device;
+	//what the callbacks last looked at, read back by the benchmarks so nothing gets optimized away
+	Object seen;
+	DTCallback single;
+	DTCallback[] mixed;
+	int next = 0;
+
+	@Setup
+	public void makeCallbacks() {
+		device = new FoundDevice("device", new BluetoothDevice("00:11:22:33:44:55"));
+		single = new DeviceFoundCallback() {
+			@Override
+			public void callback(Object o) {
+				seen = getFoundDeviceFromObject(o);
+			}
+		};
+		mixed = new DTCallback[] { single, new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				seen = o;
+			}
+		}, new NewIncomingServerConnectionCallback() {
+			@Override
+			public void callback(Object o) {
+				seen = getIncomingConnectionFromObject(o);
+			}
+		}, new NewOutgoingClientConnectionCallback() {
+			@Override
+			public void callback(Object o) {
+				seen = getOutgoingConnectionFromObject(o);
+			}
+		} };
+	}
+
+	@Benchmark
+	public Object monomorphic() {
+		single.callback(device);
+		return seen;
+	}
+
+	@Benchmark
+	public Object megamorphic() {
+		mixed[next].callback(device);
+		next = (next + 1) & 3;
+		return seen;
+	}
+}
@@ -0,0 +1,53 @@
+package dx.xtremelabs.droidtooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.bluetooth.BluetoothDevice;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.listeners.DTDeviceFoundListener;
+
+/**
+ * DTDeviceFoundListener.deviceDiscovered() as sightings of deviceCount distinct
+ * devices keep coming in, the way a crowded room looks during discovery.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DeviceFoundBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	int deviceCount;
+
+	FoundDevice[] sightings;
+	DTDeviceFoundListener listener;
+	int next = 0;
+
+	@Setup
+	public void makeDevices() {
+		sightings = new FoundDevice[deviceCount];
+		for (int i = 0; i < deviceCount; i++) {
+			sightings[i] = new FoundDevice("device" + i, new BluetoothDevice(mac(i)));
+		}
+		listener = new DTDeviceFoundListener();
+	}
+
+	@Benchmark
+	public DTDeviceFoundListener discover() {
+		listener.deviceDiscovered(sightings[next]);
+		next = (next + 1) % deviceCount;
+		return listener;
+	}
+
+	static String mac(int i) {
+		return String.format("00:11:%02X:%02X:%02X:%02X", (i >> 24) & 0xFF, (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF);
+	}
+}
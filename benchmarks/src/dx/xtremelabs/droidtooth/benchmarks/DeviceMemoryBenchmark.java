@@ -0,0 +1,137 @@
+package dx.xtremelabs.droidtooth.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import dx.xtremelabs.droidtooth.common.DeviceRegistry;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+
+/**
+ * Memory it takes to track deviceCount distinct devices. stringKeyed is how DeviceRegistry
+ * used to track them: a FoundDevice holding a Date, wrapped with its last-seen time in a
+ * LinkedHashMap keyed by the MAC string.
+ * longKeyed is the DeviceRegistry: FoundDevice with long timestamps, keyed by the MAC
+ * packed into a long in a LongHashMap. The BluetoothDevice, its address and the name
+ * come from Android either way, so they are made up front and not counted.
+ *
+ * Each invocation tracks every device in a fresh index; compare allocatedBytes, the
+ * bytes the benchmark thread allocated doing so, against trackedDevices. That includes
+ * the tables the LinkedHashMap outgrows while filling up, as it did; the registry sizes
+ * its table for its cap up front.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceMemoryBenchmark {
+
+	@Param({ "500", "10000" })
+	int deviceCount;
+
+	com.sun.management.ThreadMXBean threads;
+	String[] names;
+	BluetoothDevice[] devices;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Allocation {
+		public long allocatedBytes;
+		public long trackedDevices;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			allocatedBytes = 0;
+			trackedDevices = 0;
+		}
+	}
+
+	@Setup
+	public void makeDevices() {
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		names = new String[deviceCount];
+		devices = new BluetoothDevice[deviceCount];
+		for (int i = 0; i < deviceCount; i++) {
+			names[i] = "device" + i;
+			devices[i] = new BluetoothDevice(DeviceFoundBenchmark.mac(i));
+		}
+	}
+
+	@Benchmark
+	public Object stringKeyed(Allocation allocation) {
+		long start = allocated();
+		LinkedHashMap<String, Seen> index = new LinkedHashMap<String, Seen>();
+		for (int i = 0; i < deviceCount; i++) {
+			DatedDevice device = new DatedDevice(names[i], devices[i]);
+			index.remove(device.DEVICE_MAC);
+			index.put(device.DEVICE_MAC, new Seen(device, SystemClock.elapsedRealtime()));
+		}
+		count(allocation, start);
+		return index;
+	}
+
+	@Benchmark
+	public Object longKeyed(Allocation allocation) {
+		long start = allocated();
+		DeviceRegistry index = new DeviceRegistry(deviceCount, 0);
+		for (int i = 0; i < deviceCount; i++) {
+			index.seen(new FoundDevice(names[i], devices[i]));
+		}
+		count(allocation, start);
+		return index;
+	}
+
+	long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	void count(Allocation allocation, long start) {
+		allocation.allocatedBytes += allocated() - start;
+		allocation.trackedDevices += deviceCount;
+	}
+
+	/**
+	 * FoundDevice as it was, with its found time a Date.
+	 */
+	static class DatedDevice {
+		final String DEVICE_NAME;
+		final String DEVICE_MAC;
+		final Date DEVICE_FOUND_TIME;
+		final BluetoothDevice DEVICE;
+		Object connection;
+
+		DatedDevice(String deviceName, BluetoothDevice device) {
+			DEVICE_NAME = deviceName;
+			DEVICE_MAC = device.getAddress();
+			DEVICE = device;
+			DEVICE_FOUND_TIME = new Date();
+		}
+	}
+
+	/**
+	 * DeviceRegistry's entry as it was.
+	 */
+	static class Seen {
+		final DatedDevice device;
+		final long lastSeen;
+
+		Seen(DatedDevice device, long lastSeen) {
+			this.device = device;
+			this.lastSeen = lastSeen;
+		}
+	}
+}
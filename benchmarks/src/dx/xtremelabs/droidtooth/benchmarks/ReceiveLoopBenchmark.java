@@ -0,0 +1,67 @@
+package dx.xtremelabs.droidtooth.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import dx.xtremelabs.droidtooth.messaging.BufferPool;
+import dx.xtremelabs.droidtooth.messaging.MessageInbox;
+import dx.xtremelabs.droidtooth.messaging.VarintFrameCodec;
+import dx.xtremelabs.droidtooth.runners.ListenForMessageRunner;
+
+/**
+ * The receive loop of ListenForMessageRunner: socket reads, frame decoding and
+ * delivery into the inbox, replayed from a recorded stream of MESSAGES messages.
+ * Scores are per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReceiveLoopBenchmark {
+
+	static final int MESSAGES = 1000;
+
+	@Param({ "16", "256", "4096" })
+	int payloadSize;
+
+	ReplayConnection connection;
+	MessageInbox inbox;
+	ListenForMessageRunner runner;
+
+	@Setup
+	public void record() throws IOException {
+		VarintFrameCodec codec = new VarintFrameCodec();
+		byte[] payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < MESSAGES; i++) {
+			codec.encode(payload, 0, payload.length, stream);
+		}
+
+		connection = new ReplayConnection(stream.toByteArray(), ListenForMessageRunner.BUFFER_SIZE);
+		inbox = new MessageInbox();
+		runner = new ListenForMessageRunner(connection, codec, BufferPool.getDefault(), inbox, null);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public long receive() {
+		connection.rewind();
+		runner.run(); //returns at the end of the recording
+		long received = inbox.getReceivedCount();
+		inbox.clear();
+		return received;
+	}
+}
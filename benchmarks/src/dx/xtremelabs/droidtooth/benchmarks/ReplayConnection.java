@@ -0,0 +1,82 @@
+package dx.xtremelabs.droidtooth.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * A connection whose input is the same recorded byte stream over and over, handed
+ * out in reads of a fixed size like an RFCOMM socket would, and whose output goes
+ * nowhere. Keeps the transport itself out of the measurements.
+ */
+public class ReplayConnection implements Connection {
+
+	private final byte[] recorded;
+	private final int readSize;
+	private int position = 0;
+
+	private final InputStream in = new InputStream() {
+		@Override
+		public int read() {
+			return position < recorded.length ? recorded[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position == recorded.length) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, readSize), recorded.length - position);
+			System.arraycopy(recorded, position, b, off, n);
+			position += n;
+			return n;
+		}
+	};
+
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public ReplayConnection(byte[] recorded, int readSize) {
+		this.recorded = recorded;
+		this.readSize = readSize;
+	}
+
+	/**
+	 * Start replaying from the beginning.
+	 */
+	public void rewind() {
+		position = 0;
+	}
+
+	@Override
+	public void connect() {
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return "replay";
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+}
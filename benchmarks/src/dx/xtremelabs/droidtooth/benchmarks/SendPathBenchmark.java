@@ -0,0 +1,70 @@
+package dx.xtremelabs.droidtooth.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import dx.xtremelabs.droidtooth.messaging.MessageWriter;
+import dx.xtremelabs.droidtooth.messaging.VarintFrameCodec;
+
+/**
+ * The send path behind DroidToothInstance.sendMessage(): messages queued on a
+ * MessageWriter, coalesced and framed by its thread into a socket that costs nothing.
+ * With the BLOCK policy the score is the sustained rate the writer drains at.
+ * encodeOnly is the synchronous framing per message the writer replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SendPathBenchmark {
+
+	@Param({ "16", "256", "4096" })
+	int payloadSize;
+
+	byte[] payload;
+	VarintFrameCodec codec;
+	MessageWriter writer;
+
+	final OutputStream socket = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup
+	public void startWriter() {
+		payload = new byte[payloadSize];
+		codec = new VarintFrameCodec();
+		writer = new MessageWriter(socket, codec, MessageWriter.DEFAULT_QUEUE_CAPACITY, MessageWriter.BLOCK,
+				MessageWriter.DEFAULT_COALESCE_SIZE);
+	}
+
+	@TearDown
+	public void stopWriter() {
+		writer.close();
+	}
+
+	@Benchmark
+	public boolean send() {
+		return writer.send(payload);
+	}
+
+	@Benchmark
+	public void encodeOnly() throws IOException {
+		codec.encode(payload, 0, payload.length, socket);
+	}
+}
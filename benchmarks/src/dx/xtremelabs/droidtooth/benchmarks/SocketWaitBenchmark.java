@@ -0,0 +1,103 @@
+package dx.xtremelabs.droidtooth.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * CPU time burnt by a thread waiting for another one to hand it a socket, as
+ * DroidToothServer waits for its listening socket and DroidToothClient.getConnection()
+ * for the connection. busySpin is the loop both used to run, latch the CountDownLatch
+ * wait they park on now. The socket shows up waitMillis after each wait starts.
+ *
+ * Wall time per wait is the same for both; compare waiterCpuMicros, the waiting
+ * thread's CPU time (ThreadMXBean) summed over the iteration, against
+ * waits * waitMillis: busySpin uses a whole core, latch next to nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SocketWaitBenchmark {
+
+	@Param({ "5", "50" })
+	long waitMillis;
+
+	ThreadMXBean threads;
+	ScheduledExecutorService handOff;
+
+	//what the waiter waits for, set by the hand-off thread
+	volatile Object socket;
+	volatile CountDownLatch socketReady;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class WaiterCpu {
+		public long waiterCpuMicros;
+		public long waits;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			waiterCpuMicros = 0;
+			waits = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void startHandOff() {
+		threads = ManagementFactory.getThreadMXBean();
+		threads.setThreadCpuTimeEnabled(true);
+		handOff = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopHandOff() {
+		handOff.shutdownNow();
+	}
+
+	@Setup(Level.Invocation)
+	public void scheduleSocket() {
+		socket = null;
+		socketReady = new CountDownLatch(1);
+		handOff.schedule(new Runnable() {
+			@Override
+			public void run() {
+				socket = new Object();
+				socketReady.countDown();
+			}
+		}, waitMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Benchmark
+	public Object busySpin(WaiterCpu cpu) {
+		long start = threads.getCurrentThreadCpuTime();
+		while (socket == null)
+			; //do nothing
+		cpu.waiterCpuMicros += (threads.getCurrentThreadCpuTime() - start) / 1000;
+		cpu.waits++;
+		return socket;
+	}
+
+	@Benchmark
+	public Object latch(WaiterCpu cpu) throws InterruptedException {
+		long start = threads.getCurrentThreadCpuTime();
+		socketReady.await(waitMillis * 10, TimeUnit.MILLISECONDS);
+		cpu.waiterCpuMicros += (threads.getCurrentThreadCpuTime() - start) / 1000;
+		cpu.waits++;
+		return socket;
+	}
+}
@@ -0,0 +1,18 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Benchmark stub.
+ */
+public final class BluetoothAdapter {
+	public static final String ACTION_DISCOVERY_STARTED = "android.bluetooth.adapter.action.DISCOVERY_STARTED";
+	public static final String ACTION_DISCOVERY_FINISHED = "android.bluetooth.adapter.action.DISCOVERY_FINISHED";
+
+	public BluetoothDevice getRemoteDevice(String address) { return new BluetoothDevice(address); }
+
+	public BluetoothServerSocket listenUsingRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+		throw new IOException("No Bluetooth in benchmarks");
+	}
+}
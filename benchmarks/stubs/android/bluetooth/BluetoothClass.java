@@ -0,0 +1,8 @@
+package android.bluetooth;
+
+/**
+ * Benchmark stub.
+ */
+public final class BluetoothClass {
+	public int getMajorDeviceClass() { return 0; }
+}
@@ -0,0 +1,33 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Benchmark stub: a device is nothing but its address. Unlike on Android the
+ * constructor is public, so benchmarks can make up as many devices as they need.
+ */
+public class BluetoothDevice implements android.os.Parcelable {
+
+	public static final String EXTRA_NAME = "android.bluetooth.device.extra.NAME";
+	public static final String EXTRA_DEVICE = "android.bluetooth.device.extra.DEVICE";
+	public static final String ACTION_FOUND = "android.bluetooth.device.action.FOUND";
+	public static final int BOND_NONE = 10;
+	public static final int BOND_BONDING = 11;
+	public static final int BOND_BONDED = 12;
+
+	private final String address;
+
+	public BluetoothDevice(String address) {
+		this.address = address;
+	}
+
+	public String getAddress() { return address; }
+	public String getName() { return null; }
+	public int getBondState() { return BOND_NONE; }
+	public BluetoothClass getBluetoothClass() { return null; }
+
+	public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+		throw new IOException("No Bluetooth in benchmarks");
+	}
+}
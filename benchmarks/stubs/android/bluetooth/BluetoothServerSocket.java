@@ -0,0 +1,11 @@
+package android.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Benchmark stub.
+ */
+public final class BluetoothServerSocket {
+	public BluetoothSocket accept() throws IOException { throw new IOException("No Bluetooth in benchmarks"); }
+	public void close() throws IOException { }
+}
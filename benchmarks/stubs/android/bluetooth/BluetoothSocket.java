@@ -0,0 +1,16 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Benchmark stub: never connects, benchmarks use the in-memory or TCP transports.
+ */
+public final class BluetoothSocket {
+	public void connect() throws IOException { throw new IOException("No Bluetooth in benchmarks"); }
+	public void close() throws IOException { }
+	public InputStream getInputStream() throws IOException { throw new IOException("No Bluetooth in benchmarks"); }
+	public OutputStream getOutputStream() throws IOException { throw new IOException("No Bluetooth in benchmarks"); }
+	public BluetoothDevice getRemoteDevice() { return null; }
+}
@@ -0,0 +1,12 @@
+package android.bluetooth;
+
+import android.os.ParcelUuid;
+import android.os.RemoteException;
+
+/**
+ * Benchmark stub: the hidden Bluetooth service, only what ServiceRecordCache asks of it.
+ */
+public interface IBluetooth {
+	int getRemoteServiceChannel(String address, ParcelUuid uuid) throws RemoteException;
+	ParcelUuid[] getRemoteUuids(String address) throws RemoteException;
+}
@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * Benchmark stub.
+ */
+public class Context {
+}
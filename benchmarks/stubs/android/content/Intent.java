@@ -0,0 +1,11 @@
+package android.content;
+
+/**
+ * Benchmark stub.
+ */
+public class Intent {
+	public String getAction() { return null; }
+	public String getStringExtra(String name) { return null; }
+	public int getIntExtra(String name, int defaultValue) { return defaultValue; }
+	public <T extends android.os.Parcelable> T getParcelableExtra(String name) { return null; }
+}
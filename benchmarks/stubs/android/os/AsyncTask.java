@@ -0,0 +1,33 @@
+package android.os;
+
+/**
+ * Benchmark stub: there is no UI thread, tasks run on a plain thread when executed.
+ */
+public abstract class AsyncTask<Params, Progress, Result> {
+
+	private volatile boolean cancelled = false;
+
+	protected abstract Result doInBackground(Params... params);
+
+	public final AsyncTask<Params, Progress, Result> execute(final Params... params) {
+		new Thread(new Runnable() {
+			public void run() {
+				doInBackground(params);
+			}
+		}).start();
+		return this;
+	}
+
+	public final boolean cancel(boolean mayInterruptIfRunning) {
+		cancelled = true;
+		onCancelled();
+		return true;
+	}
+
+	public final boolean isCancelled() {
+		return cancelled;
+	}
+
+	protected void onCancelled() {
+	}
+}
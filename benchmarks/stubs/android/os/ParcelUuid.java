@@ -0,0 +1,19 @@
+package android.os;
+
+import java.util.UUID;
+
+/**
+ * Benchmark stub.
+ */
+public final class ParcelUuid implements Parcelable {
+
+	private final UUID uuid;
+
+	public ParcelUuid(UUID uuid) {
+		this.uuid = uuid;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+}
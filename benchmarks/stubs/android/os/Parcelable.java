@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * Benchmark stub.
+ */
+public interface Parcelable {
+}
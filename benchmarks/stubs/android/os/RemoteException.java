@@ -0,0 +1,8 @@
+package android.os;
+
+/**
+ * Benchmark stub.
+ */
+public class RemoteException extends Exception {
+	private static final long serialVersionUID = 1L;
+}
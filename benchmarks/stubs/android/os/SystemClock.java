@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Benchmark stub.
+ */
+public final class SystemClock {
+	public static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.bluetooth.IBluetooth;
 import android.graphics.Color;
 import android.os.RemoteException;
@@ -16,13 +15,14 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
-import dx.xtremelabs.droidtooth.callbacks.NewOutgoingClientConnectionCallback;
+import dx.xtremelabs.droidtooth.callbacks.DefaultCallback;
 import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
 import dx.xtremelabs.droidtooth.common.FoundDevice;
-import dx.xtremelabs.droidtooth.common.Utils;
 import dx.xtremelabs.droidtooth.main.DroidTooth;
 import dx.xtremelabs.droidtooth.main.DroidToothClient;
 import dx.xtremelabs.droidtooth.main.DroidToothInstance;
+import dx.xtremelabs.droidtooth.transport.Connection;
 
 public class DeviceListAdapter extends BaseAdapter {
 
@@ -91,15 +91,19 @@ public class DeviceListAdapter extends BaseAdapter {
 					
 					@Override
 					public void pairDevice() {
-						//todo: auto get the next available UUID index
-						DroidToothClient handshakeInitiatedObject = DroidTooth.tooth(device, Utils.getKnownUUID(0), new NewOutgoingClientConnectionCallback() {
+						//try every known UUID side by side, whichever the device listens on connects
+						final DTFuture<Connection> pairing = DroidTooth.probe(device, DroidToothClient.DEFAULT_CONNECTION_WAIT_MILLIS);
+						pairing.addListener(new DefaultCallback() {
 							@Override
 							public void callback(Object o){
-								//grab the new socket connection established with this device
-								BluetoothSocket socket = this.getOutgoingSocketFromObject(o);
-								Log.d(Constants.DEBUG_DROIDTOOTH, "Pairing was Successful! Got socket: "+socket);
+								if (pairing.isSucceeded()){
+									//the connection is also kept on the device itself
+									Log.d(Constants.DEBUG_DROIDTOOTH, "Pairing was Successful! Got connection: "+device.getConnection());
+								} else {
+									Log.d(Constants.DEBUG_DROIDTOOTH, "Pairing with "+device.DEVICE_NAME+" failed: "+pairing.getFailure());
+								}
 							}
-						}, null);
+						});
 					}
 				});
 				Log.d(Constants.DEBUG_DROIDTOOTH, "CLICKED ON DEVICE: "+device.DEVICE_NAME+" with Address: "+device.DEVICE.getAddress());
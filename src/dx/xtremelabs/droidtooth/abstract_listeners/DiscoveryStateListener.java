@@ -28,9 +28,14 @@ public abstract class DiscoveryStateListener extends BroadcastReceiver {
 		if (intent.getAction().equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED)){
 			Log.d(Constants.DEBUG_DROIDTOOTH, "DroidTooth detected that Bluetooth discovery has started.");
 			currentState = BluetoothAdapter.ACTION_DISCOVERY_STARTED;
-			discoveryStarted();
-			//clear the device listener of any previously found devices
-			((DeviceFoundListener) DroidToothInstance.get().getDeviceFoundListener()).clearList();
+			if (DroidToothInstance.get().getRadioCoordinator().takeScanResumed()){
+				//a scan paused for a connect or transfer, keep what it found before
+				discoveryResumed();
+			} else {
+				discoveryStarted();
+				//clear the device listener of any previously found devices
+				((DeviceFoundListener) DroidToothInstance.get().getDeviceFoundListener()).clearList();
+			}
 		} else if (intent.getAction().equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)){ 
 			Log.d(Constants.DEBUG_DROIDTOOTH, "DroidTooth detected that Bluetooth discovery has finished.");
 			lastDiscoveryTime = new Date().getTime();
@@ -57,4 +62,13 @@ public abstract class DiscoveryStateListener extends BroadcastReceiver {
 	
 	public abstract void discoveryStarted();
 	public abstract void discoveryFinished();
+
+	/**
+	 * Discovery started again after being paused for a connect or transfer, carrying on
+	 * the scan it interrupted. Handled like a new scan unless overridden, but the devices
+	 * found before the pause are kept either way.
+	 */
+	public void discoveryResumed(){
+		discoveryStarted();
+	}
 }
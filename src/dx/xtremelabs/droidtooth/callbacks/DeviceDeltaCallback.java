@@ -0,0 +1,56 @@
+package dx.xtremelabs.droidtooth.callbacks;
+
+import dx.xtremelabs.droidtooth.common.DeviceDelta;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+
+/**
+ * To be used whenever developer wants to get notified of what changed between discovery
+ * scans, rather than of every sighting. Override the methods for the changes that interest you.
+ */
+public abstract class DeviceDeltaCallback implements DTCallback {
+
+	@Override
+	public void callback() {
+	}
+
+	/**
+	 * We expect a DeviceDelta, which is dispatched to the method for its type.
+	 * @param object passed during callback, we expect it to be a DeviceDelta for this callback.
+	 */
+	@Override
+	public void callback(Object o) {
+		if (!(o instanceof DeviceDelta)){
+			return;
+		}
+		DeviceDelta delta = (DeviceDelta) o;
+		switch (delta.DELTA_TYPE){
+		case DeviceDelta.FIRST_SEEN:
+			firstSeen(delta.DEVICE);
+			break;
+		case DeviceDelta.NAME_CHANGED:
+			nameChanged(delta.DEVICE, delta.PREVIOUS_DEVICE.DEVICE_NAME);
+			break;
+		case DeviceDelta.SEEN_AGAIN:
+			seenAgain(delta.DEVICE, delta.SCANS_MISSED);
+			break;
+		case DeviceDelta.LOST:
+			lost(delta.DEVICE);
+			break;
+		}
+	}
+
+	//a device not known before, or forgotten since
+	public void firstSeen(FoundDevice device) {
+	}
+
+	public void nameChanged(FoundDevice device, String previousName) {
+	}
+
+	//a device back after being missed by scansMissed scans, or after being lost
+	public void seenAgain(FoundDevice device, int scansMissed) {
+	}
+
+	//a device missed by too many scans in a row, as last seen
+	public void lost(FoundDevice device) {
+	}
+}
@@ -1,6 +1,8 @@
 package dx.xtremelabs.droidtooth.callbacks;
 
 import android.bluetooth.BluetoothSocket;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.RfcommConnection;
 
 /**
  * To be called whenever the DroidToothServer accepts an incoming connection.
@@ -16,8 +18,8 @@ public abstract class NewIncomingServerConnectionCallback implements DTCallback
 	}
 
 	/**
-	 * We expect a new BluetoothSocket as a parameter, which identifies the newly paired device.
-	 * @param object passed during callback, we expect it to be a BluetoothSocket for this callback.
+	 * We expect a new Connection as a parameter, which identifies the newly paired device.
+	 * @param object passed during callback, we expect it to be a Connection for this callback.
 	 */
 	@Override
 	public void callback(Object o) {}
@@ -28,10 +30,25 @@ public abstract class NewIncomingServerConnectionCallback implements DTCallback
 	 * @return a BluetoothSocket object
 	 */
 	public BluetoothSocket getIncomingSocketFromObject(Object o){
+		if (o instanceof RfcommConnection){
+			return ((RfcommConnection) o).getSocket();
+		}
 		if (!(o instanceof BluetoothSocket)){
 			return null;
 		}
 		return (BluetoothSocket) o;
 	}
 
+	/**
+	 * Return the Connection from the generic object, if applicable
+	 * @param o object returned to callback
+	 * @return a Connection object, whichever transport it runs on
+	 */
+	public Connection getIncomingConnectionFromObject(Object o){
+		if (!(o instanceof Connection)){
+			return null;
+		}
+		return (Connection) o;
+	}
+
 }
@@ -1,6 +1,8 @@
 package dx.xtremelabs.droidtooth.callbacks;
 
 import android.bluetooth.BluetoothSocket;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.RfcommConnection;
 
 /**
  * To be called whenever the DroidToothClient is able to establish a connection with a Host.
@@ -15,8 +17,8 @@ public abstract class NewOutgoingClientConnectionCallback implements DTCallback
 		//client code to do something when a device is found
 	}
 	/**
-	 * We expect a new BluetoothSocket as a parameter, which identifies the newly paired device.
-	 * @param object passed during callback, we expect it to be a BluetoothSocket for this callback.
+	 * We expect a new Connection as a parameter, which identifies the newly paired device.
+	 * @param object passed during callback, we expect it to be a Connection for this callback.
 	 */
 	@Override
 	public void callback(Object o) {
@@ -29,10 +31,25 @@ public abstract class NewOutgoingClientConnectionCallback implements DTCallback
 	 * @return a BluetoothSocket object
 	 */
 	public BluetoothSocket getOutgoingSocketFromObject(Object o){
+		if (o instanceof RfcommConnection){
+			return ((RfcommConnection) o).getSocket();
+		}
 		if (!(o instanceof BluetoothSocket)){
 			return null;
 		}
 		return (BluetoothSocket) o;
 	}
 
+	/**
+	 * Return the Connection from the generic object, if applicable
+	 * @param o object returned to callback
+	 * @return a Connection object, whichever transport it runs on
+	 */
+	public Connection getOutgoingConnectionFromObject(Object o){
+		if (!(o instanceof Connection)){
+			return null;
+		}
+		return (Connection) o;
+	}
+
 }
@@ -0,0 +1,72 @@
+package dx.xtremelabs.droidtooth.common;
+
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * An entry in a DroidToothServer's connection table: a client that connected to the
+ * server, along with what the server knows about it.
+ */
+public class ConnectedPeer {
+
+	//states
+	public static final int CONNECTED = 0;
+	public static final int DISCONNECTED = 1;
+
+	private final Connection connection;
+	private final String remoteAddress;
+	private final long connectedTime;
+	private volatile long disconnectedTime = 0;
+	private volatile int state = CONNECTED;
+
+	public ConnectedPeer(Connection connection){
+		this.connection = connection;
+		this.remoteAddress = connection.getRemoteAddress();
+		this.connectedTime = System.currentTimeMillis();
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * @return when the peer connected, in milliseconds since the epoch.
+	 */
+	public long getConnectedTime() {
+		return connectedTime;
+	}
+
+	/**
+	 * @return when the peer was dropped from the table, 0 while still connected.
+	 */
+	public long getDisconnectedTime() {
+		return disconnectedTime;
+	}
+
+	/**
+	 * @return CONNECTED or DISCONNECTED
+	 */
+	public int getState() {
+		return state;
+	}
+
+	public boolean isConnected() {
+		return state == CONNECTED;
+	}
+
+	/**
+	 * Mark the peer as gone, its slot on the server is free again.
+	 */
+	public void disconnected() {
+		disconnectedTime = System.currentTimeMillis();
+		state = DISCONNECTED;
+	}
+
+	@Override
+	public String toString() {
+		return remoteAddress + (isConnected() ? " connected" : " disconnected");
+	}
+}
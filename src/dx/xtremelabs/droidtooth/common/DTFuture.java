@@ -0,0 +1,435 @@
+package dx.xtremelabs.droidtooth.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+
+/**
+ * A result that arrives later, completed by whoever produces it with set() or fail().
+ * Besides blocking on get(), callers may register a DTCallback that is called with
+ * the future itself once it completes, on the thread that completed it.
+ *
+ * Futures compose without blocking: withTimeout(), then() to start something once this
+ * succeeds, orElse() to fall back on another attempt, and allOf()/anyOf() to wait on
+ * several at once. Cancelling a composed
+ * future cancels whatever it is still waiting on.
+ */
+public class DTFuture<T> implements Future<T> {
+
+	private static final int PENDING = 0;
+	private static final int SUCCEEDED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	//one timer thread for every timeout DroidTooth schedules
+	private static ScheduledExecutorService timer;
+
+	private int state = PENDING;
+	private T value;
+	private Throwable failure;
+	private ArrayList<DTCallback> listeners;
+	private ScheduledFuture<?> timeout;
+
+	/**
+	 * Complete this future with a value.
+	 * @return false if it was already complete.
+	 */
+	public boolean set(T value){
+		synchronized (this) {
+			if (state != PENDING){
+				return false;
+			}
+			this.value = value;
+			state = SUCCEEDED;
+		}
+		completed();
+		return true;
+	}
+
+	/**
+	 * Complete this future with a failure, get() will throw it wrapped in an ExecutionException.
+	 * @return false if it was already complete.
+	 */
+	public boolean fail(Throwable failure){
+		synchronized (this) {
+			if (state != PENDING){
+				return false;
+			}
+			this.failure = failure;
+			state = FAILED;
+		}
+		completed();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (state != PENDING){
+				return false;
+			}
+			state = CANCELLED;
+		}
+		completed();
+		return true;
+	}
+
+	/**
+	 * Fail this future with a TimeoutException if it is not complete within the given time.
+	 * @return this future
+	 */
+	public DTFuture<T> failAfter(final long timeout, final TimeUnit unit){
+		ScheduledFuture<?> scheduled = getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				fail(new TimeoutException("Not completed within "+unit.toMillis(timeout)+"ms"));
+			}
+		}, timeout, unit);
+		synchronized (this) {
+			if (state == PENDING){
+				this.timeout = scheduled;
+				return this;
+			}
+		}
+		scheduled.cancel(false);
+		return this;
+	}
+
+	/**
+	 * Return a future completed like this one, but failed with a TimeoutException if this one
+	 * is not complete within the given time; this one is then cancelled.
+	 * @param timeout
+	 * @param unit
+	 * @return the new future
+	 */
+	public DTFuture<T> withTimeout(long timeout, TimeUnit unit){
+		final DTFuture<T> timed = new DTFuture<T>();
+		forwardTo(timed);
+		timed.addListener(new Listener() {
+			@Override
+			public void callback(Object o) {
+				if (!timed.isSucceeded()){
+					cancel(true); //timed out or cancelled, either way nobody is waiting anymore
+				}
+			}
+		});
+		return timed.failAfter(timeout, unit);
+	}
+
+	/**
+	 * Return a future completed like the one next returns, called once this one succeeds;
+	 * completed like this one if it does not. Cancelling the returned future cancels what
+	 * next returned, but leaves this one alone since others may be waiting on it.
+	 * @param next called on the completing thread, its exceptions fail the returned future
+	 * @return the new future
+	 */
+	public <U> DTFuture<U> then(final Callable<DTFuture<U>> next){
+		final DTFuture<U> result = new DTFuture<U>();
+		addListener(new Listener() {
+			@Override
+			public void callback(Object o) {
+				if (!isSucceeded()){
+					result.failLike(DTFuture.this);
+					return;
+				}
+				if (result.isDone()){
+					return; //cancelled while waiting, don't start anything
+				}
+				try {
+					DTFuture<U> following = next.call();
+					following.forwardTo(result);
+					following.cancelWith(result);
+				} catch (Exception e) {
+					result.fail(e);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Return a future completed like this one unless this one fails, in which case the
+	 * fallback is called for another future to take its place.
+	 * @param fallback called on the failing thread, its exceptions fail the returned future
+	 * @return the new future
+	 */
+	public DTFuture<T> orElse(final Callable<DTFuture<T>> fallback){
+		final DTFuture<T> result = new DTFuture<T>();
+		cancelWith(result);
+		addListener(new Listener() {
+			@Override
+			public void callback(Object o) {
+				if (!isFailed()){
+					forwardTo(result);
+					return;
+				}
+				try {
+					DTFuture<T> next = fallback.call();
+					next.forwardTo(result);
+					next.cancelWith(result);
+				} catch (Exception e) {
+					result.fail(e);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Wait for all of the given futures.
+	 * @param futures
+	 * @return a future completed with every value, in order, once all succeeded;
+	 * 			failed as soon as one fails, the rest are then cancelled.
+	 */
+	public static <T> DTFuture<List<T>> allOf(final List<DTFuture<T>> futures){
+		final DTFuture<List<T>> all = new DTFuture<List<T>>();
+		final int[] remaining = {futures.size()};
+		Listener done = new Listener() {
+			@Override
+			public void callback(Object o) {
+				DTFuture<?> future = (DTFuture<?>) o;
+				if (!future.isSucceeded()){
+					all.failLike(future);
+				} else {
+					synchronized (remaining) {
+						if (--remaining[0] > 0){
+							return;
+						}
+					}
+					ArrayList<T> values = new ArrayList<T>(futures.size());
+					for (DTFuture<T> each : futures){
+						values.add(each.value());
+					}
+					all.set(values);
+				}
+			}
+		};
+		cancelAllWhenDone(all, futures);
+		if (futures.isEmpty()){
+			all.set(new ArrayList<T>(0));
+		}
+		for (DTFuture<T> future : futures){
+			future.addListener(done);
+		}
+		return all;
+	}
+
+	/**
+	 * Wait for the first of the given futures to succeed.
+	 * @param futures
+	 * @return a future completed with the first value, the rest are then cancelled;
+	 * 			failed like the last future to fail if none succeeds.
+	 */
+	public static <T> DTFuture<T> anyOf(final List<DTFuture<T>> futures){
+		final DTFuture<T> any = new DTFuture<T>();
+		final int[] remaining = {futures.size()};
+		Listener done = new Listener() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public void callback(Object o) {
+				DTFuture<T> future = (DTFuture<T>) o;
+				if (future.isSucceeded()){
+					any.set(future.value());
+					return;
+				}
+				synchronized (remaining) {
+					if (--remaining[0] > 0){
+						return;
+					}
+				}
+				any.failLike(future);
+			}
+		};
+		cancelAllWhenDone(any, futures);
+		if (futures.isEmpty()){
+			any.fail(new IllegalArgumentException("No futures to wait for"));
+		}
+		for (DTFuture<T> future : futures){
+			future.addListener(done);
+		}
+		return any;
+	}
+
+	/**
+	 * Complete another future the way this one completes.
+	 * @param target
+	 */
+	public void forwardTo(final DTFuture<T> target){
+		addListener(new Listener() {
+			@Override
+			public void callback(Object o) {
+				if (isSucceeded()){
+					target.set(value());
+				} else {
+					target.failLike(DTFuture.this);
+				}
+			}
+		});
+	}
+
+	//cancel this future when another one gets cancelled
+	private void cancelWith(DTFuture<?> other){
+		other.addListener(new Listener() {
+			@Override
+			public void callback(Object o) {
+				if (((DTFuture<?>) o).isCancelled()){
+					cancel(true);
+				}
+			}
+		});
+	}
+
+	//once the composite is done, whatever it was waiting on is no longer needed
+	private static <T> void cancelAllWhenDone(DTFuture<?> composite, final List<DTFuture<T>> futures){
+		composite.addListener(new Listener() {
+			@Override
+			public void callback(Object o) {
+				for (DTFuture<T> future : futures){
+					future.cancel(true);
+				}
+			}
+		});
+	}
+
+	//complete this future unsuccessfully, the way another one did
+	private void failLike(DTFuture<?> other){
+		if (other.isCancelled()){
+			cancel(true);
+		} else {
+			fail(other.getFailure());
+		}
+	}
+
+	private synchronized T value(){
+		return value;
+	}
+
+	private synchronized boolean isFailed(){
+		return state == FAILED;
+	}
+
+	/**
+	 * Have a callback called with this future once it completes, right away if it already has.
+	 * @param listener
+	 */
+	public void addListener(DTCallback listener){
+		synchronized (this) {
+			if (state == PENDING){
+				if (listeners == null){
+					listeners = new ArrayList<DTCallback>(2);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.callback(this);
+	}
+
+	private void completed(){
+		ArrayList<DTCallback> toCall;
+		synchronized (this) {
+			notifyAll();
+			toCall = listeners;
+			listeners = null;
+			if (timeout != null){
+				timeout.cancel(false);
+				timeout = null;
+			}
+		}
+		if (toCall != null){
+			for (DTCallback listener : toCall){
+				listener.callback(this);
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return state == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return state != PENDING;
+	}
+
+	/**
+	 * @return whether this future completed with a value.
+	 */
+	public synchronized boolean isSucceeded() {
+		return state == SUCCEEDED;
+	}
+
+	/**
+	 * @return what this future failed with, null unless it failed.
+	 */
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (state == PENDING){
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (state == PENDING){
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0){
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	//called with the monitor held once complete
+	private T result() throws ExecutionException {
+		if (state == CANCELLED){
+			throw new CancellationException();
+		} else if (state == FAILED){
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+
+	//completion listeners only ever use callback(Object)
+	private static abstract class Listener implements DTCallback {
+		@Override
+		public void callback() {
+		}
+	}
+
+	/**
+	 * @return the single daemon thread DroidTooth schedules timeouts on.
+	 */
+	public static synchronized ScheduledExecutorService getTimer(){
+		if (timer == null){
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DroidTooth-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timer;
+	}
+}
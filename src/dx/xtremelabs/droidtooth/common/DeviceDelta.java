@@ -0,0 +1,41 @@
+package dx.xtremelabs.droidtooth.common;
+
+/**
+ * What changed about a device from one discovery scan to the next. To be accessed
+ * as a property container, like FoundDevice:
+ *
+ * 	if (delta.DELTA_TYPE == DeviceDelta.LOST){
+ * 		adapter.remove(delta.DEVICE);
+ * }
+ */
+public class DeviceDelta {
+
+	//delta types
+	public static final int FIRST_SEEN = 0;
+	public static final int NAME_CHANGED = 1;
+	public static final int SEEN_AGAIN = 2;
+	public static final int LOST = 3;
+
+	private static final String[] TYPE_NAMES = {"first seen", "name changed", "seen again", "lost"};
+
+	final public int DELTA_TYPE;
+	//the device as it is now, or as it was last seen if LOST
+	final public FoundDevice DEVICE;
+	//the device as it was last seen before, null if FIRST_SEEN or LOST
+	final public FoundDevice PREVIOUS_DEVICE;
+	//scans in a row that didn't see the device, for SEEN_AGAIN and LOST
+	final public int SCANS_MISSED;
+
+	public DeviceDelta(int deltaType, FoundDevice device, FoundDevice previousDevice, int scansMissed){
+		DELTA_TYPE = deltaType;
+		DEVICE = device;
+		PREVIOUS_DEVICE = previousDevice;
+		SCANS_MISSED = scansMissed;
+	}
+
+	@Override
+	public String toString() {
+		return DEVICE.DEVICE_NAME+" ["+DEVICE.DEVICE_MAC+"] "+TYPE_NAMES[DELTA_TYPE]
+				+(SCANS_MISSED > 0 ? " after "+SCANS_MISSED+" scans" : "");
+	}
+}
@@ -0,0 +1,566 @@
+package dx.xtremelabs.droidtooth.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The devices seen in past sessions, their names, when they were last seen and the service
+ * UUIDs connected to on them, kept in a file so that an app knows the devices around it
+ * before its first scan completes.
+ *
+ * The file is an append-only log of small binary records, each checksummed: a device seen
+ * under a new name, or not logged for a while, appends a record, and so does a service
+ * connected to for the first time. Appends are batched and written on a thread of the
+ * log's own once the timer says they have waited long enough, so file I/O never holds
+ * up the timeouts and heartbeats that share the timer.
+ * Once the log has grown to several times what it describes, it is compacted: rewritten
+ * with one record per device and service, the oldest devices past maxDevices left out.
+ * Loading maps the file and parses it in place; a record cut short by a crash ends it,
+ * and so does one that is intact but malformed.
+ */
+public class DeviceLog {
+
+	public static final String FILE_NAME = "droidtooth_devices.log";
+	public static final int DEFAULT_MAX_DEVICES = 1000;
+	//how long appends wait to be written together
+	public static final long FLUSH_DELAY_MILLIS = 5000;
+	//how long a device seen over and over goes without its last-seen time logged
+	public static final long REFRESH_MILLIS = 60 * 60 * 1000;
+	//compact once the log is this many times the size of its compacted self
+	public static final int COMPACTION_RATIO = 3;
+	public static final int MIN_COMPACTION_BYTES = 16 * 1024;
+
+	private static final int MAGIC = 0x44544C47; //DTLG
+	private static final byte VERSION = 1;
+	private static final int HEADER_BYTES = 5;
+
+	//record types
+	private static final byte DEVICE = 1;
+	private static final byte SERVICE = 2;
+	private static final byte FORGET = 3;
+	//type, MAC, payload length; the payload; then a CRC32 of all of it
+	private static final int RECORD_OVERHEAD = 1 + 6 + 2 + 4;
+	private static final int SERVICE_RECORD_BYTES = RECORD_OVERHEAD + 16;
+
+	private static final byte[] EMPTY = new byte[0];
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	//one thread flushing and compacting every log
+	private static ExecutorService fileExecutor;
+
+	private final File file;
+	private final int maxDevices;
+	//taken before this when both are needed, held while the file is written
+	private final Object fileLock = new Object();
+
+	//guarded by this
+	private final LongHashMap<Known> known = new LongHashMap<Known>();
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private ScheduledFuture<?> flush;
+
+	//guarded by fileLock
+	private long logBytes = 0;
+	private long compactions = 0;
+
+	public DeviceLog(File file){
+		this(file, DEFAULT_MAX_DEVICES);
+	}
+
+	/**
+	 * @param file where the log is kept
+	 * @param maxDevices most devices kept through a compaction, the most recently seen
+	 */
+	public DeviceLog(File file, int maxDevices){
+		this.file = file;
+		this.maxDevices = maxDevices;
+	}
+
+	/**
+	 * Read the log into memory. A log cut short by a crash, or holding a malformed
+	 * record, is truncated after its last good record; an unreadable one is started over.
+	 * @return how many devices are known
+	 */
+	public int load(){
+		long started = SystemClock.elapsedRealtime();
+		synchronized (fileLock) {
+			if (!file.exists()){
+				return 0;
+			}
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel();
+				MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				long end;
+				synchronized (this) {
+					end = replay(log);
+				}
+				if (end < channel.size()){
+					Log.d(Constants.DEBUG_DROIDTOOTH, "Device log damaged after "+end+" of "+channel.size()+" bytes, truncating it");
+					channel.truncate(end);
+				}
+				logBytes = end;
+			} catch (IOException e) {
+				Log.e(Constants.DEBUG_DROIDTOOTH, "Unable to read device log: "+e);
+				synchronized (this) {
+					known.clear();
+				}
+				file.delete();
+				logBytes = 0;
+			} finally {
+				closeQuietly(raf);
+			}
+		}
+		int devices = size();
+		Log.d(Constants.DEBUG_DROIDTOOTH, "Loaded "+devices+" known devices in "+(SystemClock.elapsedRealtime() - started)+"ms");
+		return devices;
+	}
+
+	//guarded by this; applies every whole, intact, well-formed record and returns where
+	//they end, 0 if the log isn't one at all
+	private long replay(ByteBuffer log){
+		if (log.remaining() < HEADER_BYTES || log.getInt() != MAGIC || log.get() != VERSION){
+			return 0;
+		}
+		CRC32 crc = new CRC32();
+		byte[] record = new byte[RECORD_OVERHEAD + 0xFFFF];
+		while (log.remaining() >= RECORD_OVERHEAD){
+			int start = log.position();
+			log.position(start + 7);
+			int length = log.getShort() & 0xFFFF;
+			if (log.remaining() < length + 4){
+				return start;
+			}
+			log.position(start);
+			log.get(record, 0, 9 + length);
+			crc.reset();
+			crc.update(record, 0, 9 + length);
+			if ((int) crc.getValue() != log.getInt()){
+				return start;
+			}
+			if (!apply(ByteBuffer.wrap(record, 0, 9 + length))){
+				return start;
+			}
+		}
+		return log.position();
+	}
+
+	//guarded by this; false if the record is malformed, leaving everything as it was
+	private boolean apply(ByteBuffer record){
+		byte type = record.get();
+		long address = 0;
+		for (int i = 0; i < 6; i++){
+			address = (address << 8) | (record.get() & 0xFF);
+		}
+		int length = record.getShort() & 0xFFFF;
+		if (!wellFormed(type, length)){
+			return false;
+		}
+		Known device = known.get(address);
+		switch (type){
+		case DEVICE:
+			long lastSeen = record.getLong();
+			String name = new String(record.array(), record.position(), length - 8, UTF_8);
+			if (device == null){
+				device = new Known(address);
+				known.put(address, device);
+			} else if (device.lastSeen > lastSeen){
+				break; //seen since, when loaded late
+			}
+			device.name = name;
+			device.lastSeen = lastSeen;
+			device.lastLogged = lastSeen;
+			break;
+		case SERVICE:
+			if (device != null){
+				device.addService(new UUID(record.getLong(), record.getLong()));
+			}
+			break;
+		case FORGET:
+			known.remove(address);
+			break;
+		}
+		return true;
+	}
+
+	//a checksum only says the record is what was written, not that it makes sense
+	private static boolean wellFormed(byte type, int length){
+		switch (type){
+		case DEVICE:
+			return length >= 8; //last seen, then the name
+		case SERVICE:
+			return length == 16;
+		case FORGET:
+			return length == 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Note a device was seen. Only logged if it is new, goes by a new name, or had not
+	 * been logged for REFRESH_MILLIS.
+	 * @param device
+	 */
+	public synchronized void seen(FoundDevice device){
+		Known entry = known.get(device.DEVICE_ADDRESS);
+		if (entry == null){
+			entry = new Known(device.DEVICE_ADDRESS);
+			known.put(device.DEVICE_ADDRESS, entry);
+		}
+		boolean renamed = device.DEVICE_NAME != null && !device.DEVICE_NAME.equals(entry.name);
+		if (device.DEVICE_NAME != null){
+			entry.name = device.DEVICE_NAME;
+		}
+		entry.lastSeen = Math.max(entry.lastSeen, device.DEVICE_FOUND_TIME);
+		if (renamed || entry.lastSeen - entry.lastLogged >= REFRESH_MILLIS){
+			entry.lastLogged = entry.lastSeen;
+			writeDevice(pending, entry);
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Note a service was connected to on a device, so that it is tried first next time.
+	 * @param device
+	 * @param uuid
+	 */
+	public synchronized void connected(FoundDevice device, UUID uuid){
+		seen(device);
+		Known entry = known.get(device.DEVICE_ADDRESS);
+		if (entry.addService(uuid)){
+			writeService(pending, entry.address, uuid);
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Forget everything about a device.
+	 * @param address MAC of the device
+	 */
+	public synchronized void forget(String address){
+		long mac = Utils.macToLong(address);
+		if (known.remove(mac) != null){
+			writeRecord(pending, FORGET, mac, EMPTY);
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * @param adapter to get the Bluetooth devices from
+	 * @return the devices known, most recently seen first, their found time when last seen;
+	 * 			empty without an adapter
+	 */
+	public List<FoundDevice> getKnownDevices(BluetoothAdapter adapter){
+		List<FoundDevice> found = new ArrayList<FoundDevice>();
+		if (adapter == null){
+			return found;
+		}
+		List<Known> devices = getKnown();
+		for (Known device : devices){
+			BluetoothDevice bluetoothDevice = adapter.getRemoteDevice(Utils.longToMac(device.address));
+			if (bluetoothDevice != null){
+				found.add(new FoundDevice(device.name, bluetoothDevice, device.lastSeen));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param adapter to get the Bluetooth devices from
+	 * @return the DroidTooth hosts known, most recently seen first
+	 */
+	public List<FoundDevice> getKnownHosts(BluetoothAdapter adapter){
+		List<FoundDevice> hosts = new ArrayList<FoundDevice>();
+		for (FoundDevice device : getKnownDevices(adapter)){
+			if (device.DEVICE_NAME != null && Utils.isHost(device.DEVICE_NAME)){
+				hosts.add(device);
+			}
+		}
+		return hosts;
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @return the service UUIDs connected to on it, oldest first; empty if none or unknown
+	 */
+	public synchronized List<UUID> getKnownServices(String address){
+		Known device = known.get(Utils.macToLong(address));
+		if (device == null || device.services == null){
+			return new ArrayList<UUID>();
+		}
+		return new ArrayList<UUID>(device.services);
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @return System.currentTimeMillis() when it was last seen, 0 if it is unknown
+	 */
+	public synchronized long getLastSeenTime(String address){
+		Known device = known.get(Utils.macToLong(address));
+		return device == null ? 0 : device.lastSeen;
+	}
+
+	public synchronized int size(){
+		return known.size();
+	}
+
+	/**
+	 * Write what was appended since the last flush, then compact the log if it has grown
+	 * too far past what it describes.
+	 */
+	public void flush(){
+		synchronized (fileLock) {
+			byte[] appended;
+			synchronized (this) {
+				flush = null;
+				appended = pending.toByteArray();
+				pending.reset();
+			}
+			if (appended.length > 0){
+				if (logBytes == 0 && file.length() > 0){
+					load(); //appending before loading, don't write over what's there
+				}
+				try {
+					append(appended);
+				} catch (IOException e) {
+					Log.e(Constants.DEBUG_DROIDTOOTH, "Unable to write device log: "+e);
+				}
+			}
+			if (logBytes >= MIN_COMPACTION_BYTES && logBytes > COMPACTION_RATIO * getCompactedBytes()){
+				compact();
+			}
+		}
+	}
+
+	//guarded by fileLock
+	private void append(byte[] records) throws IOException {
+		boolean fresh = logBytes == 0;
+		OutputStream out = new FileOutputStream(file, !fresh);
+		try {
+			if (fresh){
+				out.write(header());
+				logBytes = HEADER_BYTES;
+			}
+			out.write(records);
+			logBytes += records.length;
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Rewrite the log with one record per device and service, the oldest devices past
+	 * maxDevices left out. It is written aside and renamed over the log, so a crash
+	 * leaves one or the other.
+	 */
+	public void compact(){
+		synchronized (fileLock) {
+			ByteArrayOutputStream compacted = new ByteArrayOutputStream();
+			synchronized (this) {
+				List<Known> devices = getKnown();
+				for (int i = maxDevices; i < devices.size(); i++){
+					known.remove(devices.get(i).address);
+				}
+				compacted.write(header(), 0, HEADER_BYTES);
+				for (int i = 0; i < devices.size() && i < maxDevices; i++){
+					Known device = devices.get(i);
+					writeDevice(compacted, device);
+					if (device.services != null){
+						for (UUID uuid : device.services){
+							writeService(compacted, device.address, uuid);
+						}
+					}
+				}
+				//everything pending is in there
+				pending.reset();
+			}
+			File aside = new File(file.getPath() + ".tmp");
+			try {
+				FileOutputStream out = new FileOutputStream(aside);
+				try {
+					compacted.writeTo(out);
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				if (!aside.renameTo(file)){
+					throw new IOException("Unable to rename "+aside+" to "+file);
+				}
+				Log.d(Constants.DEBUG_DROIDTOOTH, "Compacted device log from "+logBytes+" to "+compacted.size()+" bytes");
+				logBytes = compacted.size();
+				compactions++;
+			} catch (IOException e) {
+				Log.e(Constants.DEBUG_DROIDTOOTH, "Unable to compact device log: "+e);
+				aside.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return how big the log is on disk, pending appends aside
+	 */
+	public long getLogBytes(){
+		synchronized (fileLock) {
+			return logBytes;
+		}
+	}
+
+	/**
+	 * @return how big the log would be compacted
+	 */
+	public synchronized long getCompactedBytes(){
+		long bytes = HEADER_BYTES;
+		for (Known device : known.values()){
+			bytes += RECORD_OVERHEAD + 8 + (device.name == null ? 0 : device.name.getBytes(UTF_8).length);
+			bytes += device.services == null ? 0 : device.services.size() * SERVICE_RECORD_BYTES;
+		}
+		return bytes;
+	}
+
+	public long getCompactions(){
+		synchronized (fileLock) {
+			return compactions;
+		}
+	}
+
+	//guarded by this
+	private void scheduleFlush(){
+		if (flush == null){
+			final Runnable flushing = new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			};
+			flush = DTFuture.getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					getFileExecutor().execute(flushing);
+				}
+			}, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static synchronized ExecutorService getFileExecutor(){
+		if (fileExecutor == null){
+			fileExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DroidTooth-device-log");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return fileExecutor;
+	}
+
+	//most recently seen first
+	private List<Known> getKnown(){
+		List<Known> devices;
+		synchronized (this) {
+			devices = known.values();
+		}
+		Collections.sort(devices, new Comparator<Known>() {
+			@Override
+			public int compare(Known a, Known b) {
+				return a.lastSeen < b.lastSeen ? 1 : a.lastSeen > b.lastSeen ? -1 : 0;
+			}
+		});
+		return devices;
+	}
+
+	private static byte[] header(){
+		return ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).put(VERSION).array();
+	}
+
+	private static void writeDevice(ByteArrayOutputStream out, Known device){
+		byte[] name = device.name == null ? EMPTY : device.name.getBytes(UTF_8);
+		int length = Math.min(name.length, 0xFFFF - 8);
+		ByteBuffer payload = ByteBuffer.allocate(8 + length);
+		payload.putLong(device.lastSeen).put(name, 0, length);
+		writeRecord(out, DEVICE, device.address, payload.array());
+	}
+
+	private static void writeService(ByteArrayOutputStream out, long address, UUID uuid){
+		ByteBuffer payload = ByteBuffer.allocate(16);
+		payload.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+		writeRecord(out, SERVICE, address, payload.array());
+	}
+
+	private static void writeRecord(ByteArrayOutputStream out, byte type, long address, byte[] payload){
+		ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+		record.put(type);
+		for (int shift = 40; shift >= 0; shift -= 8){
+			record.put((byte) (address >>> shift));
+		}
+		record.putShort((short) payload.length).put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		out.write(record.array(), 0, record.capacity());
+	}
+
+	private static void closeQuietly(RandomAccessFile raf){
+		if (raf != null){
+			try {
+				raf.close();
+			} catch (IOException e) {
+				//nothing to do
+			}
+		}
+	}
+
+	/**
+	 * What is known of a device.
+	 */
+	private static class Known {
+
+		final long address;
+		String name;
+		//System.currentTimeMillis()
+		long lastSeen;
+		long lastLogged;
+		//rarely more than one or two
+		List<UUID> services;
+
+		Known(long address){
+			this.address = address;
+		}
+
+		boolean addService(UUID uuid){
+			if (services == null){
+				services = new ArrayList<UUID>(2);
+			} else if (services.contains(uuid)){
+				return false;
+			}
+			services.add(uuid);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package dx.xtremelabs.droidtooth.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * Every device seen while scanning, by MAC address, bounded in both size and age.
+ * Devices are kept in the order they were last seen, so when the registry is full the
+ * device seen the longest ago makes room, and a device not seen for the TTL is forgotten.
+ * The devices seen over and over stay put however many pass by just once.
+ *
+ * Devices are keyed by their MAC packed into a long, in a LongHashMap, and linked into
+ * the last-seen order through their entries, so tracking a device costs one small entry
+ * and a couple of array slots.
+ *
+ * The registry also tells what changed between discovery scans: seen() returns how a
+ * sighting differs from what was known, and a device missing from lostAfterScans scans
+ * in a row is reported lost when the scan that missed it last ends.
+ */
+public class DeviceRegistry {
+
+	public static final int DEFAULT_MAX_SIZE = 500;
+	public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+	public static final int DEFAULT_LOST_AFTER_SCANS = 3;
+
+	private final int maxSize;
+	private final long ttlMillis;
+
+	//guarded by this
+	private final LongHashMap<Entry> entries;
+	//least and most recently seen
+	private Entry eldest;
+	private Entry youngest;
+	private long evictions = 0;
+	private long expirations = 0;
+	private int scan = 0;
+	private boolean scanning = false;
+	private int lostAfterScans = DEFAULT_LOST_AFTER_SCANS;
+
+	public DeviceRegistry(){
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param maxSize most devices to remember, room for them is made up front
+	 * @param ttlMillis how long a device not seen again is remembered, 0 for no limit
+	 */
+	public DeviceRegistry(int maxSize, long ttlMillis){
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		//sized for the cap so a busy scan never rehashes
+		this.entries = new LongHashMap<Entry>(maxSize + 1);
+	}
+
+	/**
+	 * Note a device was just seen, replacing what was known of it.
+	 * @param device
+	 * @return what changed: FIRST_SEEN if it is new or had expired; SEEN_AGAIN if the
+	 * 			scans before this one missed it, even if its name changed meanwhile;
+	 * 			NAME_CHANGED if its name differs from its last sighting. null if nothing
+	 * 			changed, such as for a device seen again within the same scan.
+	 */
+	public synchronized DeviceDelta seen(FoundDevice device){
+		long now = SystemClock.elapsedRealtime();
+		expire(now);
+		Entry entry = entries.get(device.DEVICE_ADDRESS);
+		DeviceDelta delta = null;
+		if (entry != null){
+			FoundDevice previous = entry.device;
+			int missed = scan - entry.lastScan - 1;
+			if (entry.lost || missed > 0){
+				delta = new DeviceDelta(DeviceDelta.SEEN_AGAIN, device, previous, Math.max(missed, 0));
+			} else if (!equal(previous.DEVICE_NAME, device.DEVICE_NAME)){
+				delta = new DeviceDelta(DeviceDelta.NAME_CHANGED, device, previous, 0);
+			}
+			unlink(entry);
+			entry.device = device;
+		} else {
+			entry = new Entry(device);
+			entries.put(device.DEVICE_ADDRESS, entry);
+			delta = new DeviceDelta(DeviceDelta.FIRST_SEEN, device, null, 0);
+		}
+		entry.lastSeen = now;
+		entry.lastScan = scan;
+		entry.lost = false;
+		link(entry);
+		if (entries.size() > maxSize){
+			entries.remove(eldest.device.DEVICE_ADDRESS);
+			unlink(eldest);
+			evictions++;
+		}
+		return delta;
+	}
+
+	/**
+	 * A discovery scan started. Scans are counted to tell which devices a scan missed;
+	 * a scan only paused and resumed counts once.
+	 */
+	public synchronized void scanStarted(){
+		if (!scanning){
+			scanning = true;
+			scan++;
+		}
+	}
+
+	/**
+	 * A discovery scan ended, report the devices it was the lostAfterScans-th in a row to miss.
+	 * @return a LOST delta for each, empty if none
+	 */
+	public synchronized List<DeviceDelta> scanFinished(){
+		scanning = false;
+		List<DeviceDelta> lost = new ArrayList<DeviceDelta>();
+		//least recently seen come first, so stop at the first one seen too recently to be lost;
+		//the ones before it were seen no later, those not yet reported are lost now
+		for (Entry entry = eldest; entry != null && scan - entry.lastScan >= lostAfterScans; entry = entry.next){
+			if (!entry.lost){
+				entry.lost = true;
+				lost.add(new DeviceDelta(DeviceDelta.LOST, entry.device, null, scan - entry.lastScan));
+			}
+		}
+		return lost;
+	}
+
+	/**
+	 * @param lostAfterScans how many scans in a row must miss a device for it to be lost
+	 */
+	public synchronized void setLostAfterScans(int lostAfterScans) {
+		this.lostAfterScans = lostAfterScans;
+	}
+
+	public synchronized int getLostAfterScans() {
+		return lostAfterScans;
+	}
+
+	/**
+	 * @return how many scans have started
+	 */
+	public synchronized int getScans() {
+		return scan;
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @return the device as it was last seen, null if it wasn't or has expired
+	 */
+	public FoundDevice get(String address){
+		return get(Utils.macToLong(address));
+	}
+
+	/**
+	 * @param address MAC of the device, as packed by Utils.macToLong()
+	 * @return the device as it was last seen, null if it wasn't or has expired
+	 */
+	public synchronized FoundDevice get(long address){
+		Entry entry = entries.get(address);
+		if (entry == null || isExpired(entry, SystemClock.elapsedRealtime())){
+			return null;
+		}
+		return entry.device;
+	}
+
+	public boolean contains(String address){
+		return get(address) != null;
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @return how long ago the device was last seen, -1 if it wasn't or has expired
+	 */
+	public synchronized long getMillisSinceSeen(String address){
+		Entry entry = entries.get(Utils.macToLong(address));
+		long now = SystemClock.elapsedRealtime();
+		if (entry == null || isExpired(entry, now)){
+			return -1;
+		}
+		return now - entry.lastSeen;
+	}
+
+	/**
+	 * Forget a device.
+	 * @param address MAC of the device
+	 * @return the device as it was last seen, null if it wasn't
+	 */
+	public synchronized FoundDevice remove(String address){
+		Entry entry = entries.remove(Utils.macToLong(address));
+		if (entry == null){
+			return null;
+		}
+		unlink(entry);
+		return entry.device;
+	}
+
+	/**
+	 * @return the devices remembered, least recently seen first.
+	 */
+	public synchronized List<FoundDevice> getDevices(){
+		expire(SystemClock.elapsedRealtime());
+		List<FoundDevice> devices = new ArrayList<FoundDevice>(entries.size());
+		for (Entry entry = eldest; entry != null; entry = entry.next){
+			devices.add(entry.device);
+		}
+		return devices;
+	}
+
+	/**
+	 * @return a copy of the devices remembered, by MAC address.
+	 */
+	public synchronized HashMap<String, FoundDevice> toMap(){
+		expire(SystemClock.elapsedRealtime());
+		HashMap<String, FoundDevice> map = new HashMap<String, FoundDevice>(entries.size() * 2);
+		for (Entry entry = eldest; entry != null; entry = entry.next){
+			map.put(entry.device.DEVICE_MAC, entry.device);
+		}
+		return map;
+	}
+
+	/**
+	 * Forget the devices not seen for the TTL.
+	 * @return how many were forgotten
+	 */
+	public synchronized int expire(){
+		return expire(SystemClock.elapsedRealtime());
+	}
+
+	//guarded by this; least recently seen come first, so stop at the first one still fresh
+	private int expire(long now){
+		int expired = 0;
+		while (eldest != null && isExpired(eldest, now)){
+			entries.remove(eldest.device.DEVICE_ADDRESS);
+			unlink(eldest);
+			expired++;
+		}
+		expirations += expired;
+		return expired;
+	}
+
+	//guarded by this, make it the most recently seen
+	private void link(Entry entry){
+		entry.previous = youngest;
+		entry.next = null;
+		if (youngest != null){
+			youngest.next = entry;
+		} else {
+			eldest = entry;
+		}
+		youngest = entry;
+	}
+
+	//guarded by this
+	private void unlink(Entry entry){
+		if (entry.previous != null){
+			entry.previous.next = entry.next;
+		} else {
+			eldest = entry.next;
+		}
+		if (entry.next != null){
+			entry.next.previous = entry.previous;
+		} else {
+			youngest = entry.previous;
+		}
+		entry.previous = null;
+		entry.next = null;
+	}
+
+	private static boolean equal(String a, String b){
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private boolean isExpired(Entry entry, long now){
+		return ttlMillis > 0 && now - entry.lastSeen > ttlMillis;
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+		eldest = null;
+		youngest = null;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * @return devices forgotten to make room for others
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return devices forgotten for not being seen within the TTL
+	 */
+	public synchronized long getExpirations() {
+		return expirations;
+	}
+
+	private static class Entry {
+
+		FoundDevice device;
+		long lastSeen;
+		int lastScan;
+		boolean lost;
+		Entry previous;
+		Entry next;
+
+		Entry(FoundDevice device){
+			this.device = device;
+		}
+	}
+}
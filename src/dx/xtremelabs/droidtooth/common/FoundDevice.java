@@ -1,9 +1,9 @@
 package dx.xtremelabs.droidtooth.common;
 
-import java.util.Date;
-
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.RfcommConnection;
 
 /**
  * 
@@ -21,9 +21,12 @@ public class FoundDevice {
 
 	final public String DEVICE_NAME;
 	final public String DEVICE_MAC;
-	final public Date DEVICE_FOUND_TIME;
+	//DEVICE_MAC packed by Utils.macToLong(), cheaper to key by
+	final public long DEVICE_ADDRESS;
+	//System.currentTimeMillis() when found
+	final public long DEVICE_FOUND_TIME;
 	final public BluetoothDevice DEVICE;
-	private BluetoothSocket socket;
+	private Connection connection;
 	
 	/**
 	 * Wrapper for these objects as well as a timestamp of creation, which is assumed
@@ -32,17 +35,40 @@ public class FoundDevice {
 	 * @param device object representing, essentially a filedescriptor.  
 	 */
 	public FoundDevice(String deviceName, BluetoothDevice device){
+		this(deviceName, device, System.currentTimeMillis());
+	}
+
+	/**
+	 * A device found earlier, such as one remembered by the DeviceLog.
+	 * @param deviceName
+	 * @param device
+	 * @param foundTime System.currentTimeMillis() when it was found
+	 */
+	public FoundDevice(String deviceName, BluetoothDevice device, long foundTime){
 		DEVICE_NAME = deviceName;
 		DEVICE_MAC = device.getAddress();
+		DEVICE_ADDRESS = Utils.macToLong(DEVICE_MAC);
 		DEVICE = device;
-		DEVICE_FOUND_TIME = new Date(); 
+		DEVICE_FOUND_TIME = foundTime; 
 	}
 	
 	public void setSocket(BluetoothSocket socket){
-		this.socket = socket;
+		this.connection = socket == null ? null : new RfcommConnection(socket);
 	}
 	
+	/**
+	 * @return the Bluetooth socket connected to this device, null if not connected
+	 * 			or connected over a transport other than RFCOMM.
+	 */
 	public BluetoothSocket getSocket(){
-		return socket;
+		return connection instanceof RfcommConnection ? ((RfcommConnection) connection).getSocket() : null;
+	}
+
+	public void setConnection(Connection connection){
+		this.connection = connection;
+	}
+
+	public Connection getConnection(){
+		return connection;
 	}
 }
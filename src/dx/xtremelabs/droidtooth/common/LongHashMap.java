@@ -0,0 +1,164 @@
+package dx.xtremelabs.droidtooth.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash map from long keys, such as MAC addresses packed by Utils.macToLong(), to values.
+ * Keys and values sit in two flat arrays probed linearly, so there are no per-entry
+ * objects and no boxed keys, which is most of what a HashMap<String, V> costs per entry.
+ * Null values are not allowed, null means absent.
+ *
+ * Not thread safe.
+ */
+public class LongHashMap<V> {
+
+	private static final int MIN_CAPACITY = 8;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	public LongHashMap(){
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize how many entries to make room for up front
+	 */
+	public LongHashMap(int expectedSize){
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expectedSize){
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key){
+		int mask = keys.length - 1;
+		for (int i = indexOf(key, mask); values[i] != null; i = (i + 1) & mask){
+			if (keys[i] == key){
+				return (V) values[i];
+			}
+		}
+		return null;
+	}
+
+	public boolean containsKey(long key){
+		return get(key) != null;
+	}
+
+	/**
+	 * @param key
+	 * @param value not null
+	 * @return the value the key had, null if none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value){
+		if (value == null){
+			throw new NullPointerException("null values are not allowed");
+		}
+		int mask = keys.length - 1;
+		int i = indexOf(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask){
+			if (keys[i] == key){
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * 3 / 4){
+			resize(keys.length << 1);
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return the value the key had, null if none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key){
+		int mask = keys.length - 1;
+		for (int i = indexOf(key, mask); values[i] != null; i = (i + 1) & mask){
+			if (keys[i] == key){
+				V previous = (V) values[i];
+				closeGap(i, mask);
+				size--;
+				return previous;
+			}
+		}
+		return null;
+	}
+
+	//shift back the entries after a removed one that would otherwise no longer be found,
+	//rather than leaving a tombstone
+	private void closeGap(int gap, int mask){
+		for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask){
+			int home = indexOf(keys[i], mask);
+			//move it if its home isn't cyclically within (gap, i]
+			if (((i - home) & mask) >= ((i - gap) & mask)){
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		values[gap] = null;
+	}
+
+	/**
+	 * @return a copy of the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values(){
+		List<V> copy = new ArrayList<V>(size);
+		for (Object value : values){
+			if (value != null){
+				copy.add((V) value);
+			}
+		}
+		return copy;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	public void clear(){
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private void resize(int capacity){
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++){
+			if (oldValues[j] != null){
+				int i = indexOf(oldKeys[j], mask);
+				while (values[i] != null){
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	//MACs of one vendor share their upper bits, so mix them all into the low ones
+	private static int indexOf(long key, int mask){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,180 @@
+package dx.xtremelabs.droidtooth.common;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.bluetooth.BluetoothClass;
+
+/**
+ * What a scan is looking for, so that it can stop as soon as it has found enough of it
+ * rather than running the whole inquiry. Either a set of targets, such as names or MAC
+ * addresses, which is found once every one of them is; or any device matching a
+ * predicate, such as a name prefix, DroidTooth hosts, or a device class.
+ *
+ * Extend it for a predicate of your own:
+ *
+ * 	ScanTarget phones = new ScanTarget() {
+ * 		public boolean matches(FoundDevice device) {
+ * 			return device.DEVICE_NAME.startsWith("phone");
+ * 		}
+ * };
+ */
+public abstract class ScanTarget {
+
+	//quorum of every target there is
+	public static final int ALL = 0;
+	//size of a target any number of devices match
+	public static final int UNBOUNDED = -1;
+
+	/**
+	 * @param device
+	 * @return whether the device is one of the targets
+	 */
+	public abstract boolean matches(FoundDevice device);
+
+	/**
+	 * @return how many distinct targets there are, UNBOUNDED if any number of devices may match
+	 */
+	public int size(){
+		return UNBOUNDED;
+	}
+
+	/**
+	 * @param device a matching device
+	 * @return which target the device is: devices with the same key count once towards a quorum
+	 */
+	public Object keyOf(FoundDevice device){
+		return device.DEVICE_MAC;
+	}
+
+	/**
+	 * @param names exact device names
+	 * @return a target found once a device by each name is
+	 */
+	public static ScanTarget names(String... names){
+		return names(Arrays.asList(names));
+	}
+
+	public static ScanTarget names(Collection<String> names){
+		final Set<String> targets = new HashSet<String>(names);
+		return new ScanTarget() {
+			@Override
+			public boolean matches(FoundDevice device) {
+				return targets.contains(device.DEVICE_NAME);
+			}
+
+			@Override
+			public int size() {
+				return targets.size();
+			}
+
+			@Override
+			public Object keyOf(FoundDevice device) {
+				return device.DEVICE_NAME;
+			}
+		};
+	}
+
+	/**
+	 * @param addresses MAC addresses, in either case
+	 * @return a target found once each of the devices is
+	 */
+	public static ScanTarget addresses(String... addresses){
+		return addresses(Arrays.asList(addresses));
+	}
+
+	public static ScanTarget addresses(Collection<String> addresses){
+		final Set<Long> targets = new HashSet<Long>();
+		for (String address : addresses){
+			targets.add(Utils.macToLong(address));
+		}
+		return new ScanTarget() {
+			@Override
+			public boolean matches(FoundDevice device) {
+				return targets.contains(device.DEVICE_ADDRESS);
+			}
+
+			@Override
+			public int size() {
+				return targets.size();
+			}
+		};
+	}
+
+	/**
+	 * @param prefix
+	 * @return any device whose name starts with the prefix
+	 */
+	public static ScanTarget namePrefix(final String prefix){
+		return new ScanTarget() {
+			@Override
+			public boolean matches(FoundDevice device) {
+				return device.DEVICE_NAME != null && device.DEVICE_NAME.startsWith(prefix);
+			}
+		};
+	}
+
+	/**
+	 * @return any DroidTooth host, see Utils.isHost()
+	 */
+	public static ScanTarget hosts(){
+		return new ScanTarget() {
+			@Override
+			public boolean matches(FoundDevice device) {
+				return device.DEVICE_NAME != null && Utils.isHost(device.DEVICE_NAME);
+			}
+		};
+	}
+
+	/**
+	 * @param majorDeviceClass one of BluetoothClass.Device.Major, e.g. PHONE
+	 * @return any device of that class
+	 */
+	public static ScanTarget deviceClass(final int majorDeviceClass){
+		return new ScanTarget() {
+			@Override
+			public boolean matches(FoundDevice device) {
+				BluetoothClass bluetoothClass = device.DEVICE.getBluetoothClass();
+				return bluetoothClass != null && bluetoothClass.getMajorDeviceClass() == majorDeviceClass;
+			}
+		};
+	}
+
+	/**
+	 * @param targets
+	 * @return any device matching any of the targets
+	 */
+	public static ScanTarget anyOf(final ScanTarget... targets){
+		return new ScanTarget() {
+			@Override
+			public boolean matches(FoundDevice device) {
+				for (ScanTarget target : targets){
+					if (target.matches(device)){
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param targets
+	 * @return any device matching all of the targets, such as hosts of a given device class
+	 */
+	public static ScanTarget allOf(final ScanTarget... targets){
+		return new ScanTarget() {
+			@Override
+			public boolean matches(FoundDevice device) {
+				for (ScanTarget target : targets){
+					if (!target.matches(device)){
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+}
@@ -1,5 +1,7 @@
 package dx.xtremelabs.droidtooth.common;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import android.util.Log;
@@ -36,6 +38,17 @@ public class Utils {
 		}
 		return null;
 	}
+
+	/**
+	 * @return every UUID in Constants.KNOWN_UUIDS, in order, e.g. for a UuidProbe.
+	 */
+	public static List<UUID> getKnownUUIDs(){
+		List<UUID> uuids = new ArrayList<UUID>(Constants.KNOWN_UUIDS.length);
+		for (String uuid : Constants.KNOWN_UUIDS){
+			uuids.add(UUID.fromString(uuid));
+		}
+		return uuids;
+	}
 	
 	/**
 	 * Alwatys return a unique name for the Service Discovery Protocol
@@ -61,4 +74,44 @@ public class Utils {
 	public static String getHostName(String deviceName){
 		return deviceName + Constants.DroidToothServerID;
 	}
+
+	/**
+	 * Pack a MAC address, e.g. "00:11:22:AA:BB:CC", into the low 48 bits of a long,
+	 * which is cheaper to keep and to key by than the string.
+	 * @param address six hex octets separated by colons
+	 * @return the address as a long
+	 * @throws IllegalArgumentException if the address isn't a MAC address
+	 */
+	public static long macToLong(String address){
+		if (address == null || address.length() != 17){
+			throw new IllegalArgumentException("Not a MAC address: "+address);
+		}
+		long mac = 0;
+		for (int i = 0; i < 17; i += 3){
+			int high = Character.digit(address.charAt(i), 16);
+			int low = Character.digit(address.charAt(i + 1), 16);
+			if (high < 0 || low < 0 || (i < 15 && address.charAt(i + 2) != ':')){
+				throw new IllegalArgumentException("Not a MAC address: "+address);
+			}
+			mac = (mac << 8) | (high << 4) | low;
+		}
+		return mac;
+	}
+
+	/**
+	 * @param mac a MAC address packed by macToLong()
+	 * @return the address as six upper case hex octets separated by colons
+	 */
+	public static String longToMac(long mac){
+		char[] address = new char[17];
+		for (int i = 0, shift = 40; i < 17; i += 3, shift -= 8){
+			int octet = (int) (mac >>> shift) & 0xFF;
+			address[i] = Character.toUpperCase(Character.forDigit(octet >> 4, 16));
+			address[i + 1] = Character.toUpperCase(Character.forDigit(octet & 0xF, 16));
+			if (i < 15){
+				address[i + 2] = ':';
+			}
+		}
+		return new String(address);
+	}
 }
@@ -0,0 +1,14 @@
+package dx.xtremelabs.droidtooth.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a FrameDecoder when the bytes read from a socket do not form a valid frame,
+ * for instance when the peer speaks a different protocol or a frame exceeds the maximum size.
+ */
+public class MalformedFrameException extends IOException {
+
+	public MalformedFrameException(String message){
+		super(message);
+	}
+}
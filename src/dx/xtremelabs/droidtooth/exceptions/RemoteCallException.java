@@ -0,0 +1,12 @@
+package dx.xtremelabs.droidtooth.exceptions;
+
+/**
+ * What an RPC call fails with when the peer's handler threw while handling the request.
+ * The message is the one the peer's exception carried.
+ */
+public class RemoteCallException extends Exception {
+
+	public RemoteCallException(String message){
+		super(message);
+	}
+}
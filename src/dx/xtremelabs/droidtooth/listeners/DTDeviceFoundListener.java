@@ -1,9 +1,13 @@
 package dx.xtremelabs.droidtooth.listeners;
 
 import java.util.HashMap;
+import java.util.List;
 
 import dx.xtremelabs.droidtooth.abstract_listeners.DeviceFoundListener;
 import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.DeviceDelta;
+import dx.xtremelabs.droidtooth.common.DeviceLog;
+import dx.xtremelabs.droidtooth.common.DeviceRegistry;
 import dx.xtremelabs.droidtooth.common.FoundDevice;
 
 /**
@@ -16,8 +20,11 @@ import dx.xtremelabs.droidtooth.common.FoundDevice;
 public class DTDeviceFoundListener extends DeviceFoundListener {
 
 	private DTCallback deviceFoundCallback;
-	//keep track of all devices seen thus far, associated by their MAC address
-	private HashMap <String, FoundDevice> allDevicesSeen = new HashMap <String, FoundDevice>();
+	private DTCallback deviceDeltaCallback;
+	//keep track of the devices seen lately, associated by their MAC address
+	private final DeviceRegistry allDevicesSeen = new DeviceRegistry();
+	//remembers devices across sessions, if set
+	private DeviceLog deviceLog;
 	
 	@Override
 	public void deviceDiscovered(FoundDevice device) {
@@ -27,30 +34,51 @@ public class DTDeviceFoundListener extends DeviceFoundListener {
 		}
 		//automatically override any already-seen devices on this list
 		//this ensures that all seen devices on this list are of the latest timestamp
-		allDevicesSeen.put(device.DEVICE_MAC, device);
-		
-		//for optimization purposes, a cap of 500 devices in our mapping
-		//of all unique devices should be more than enough for general purpose
-		//out of the box usage. 
-		if (allDevicesSeen.size()>500){
-			clearAllDevicesSeen();
+		//the registry is capped, once full the device seen the longest ago makes room
+		DeviceDelta delta = allDevicesSeen.seen(device);
+		if (delta != null && deviceDeltaCallback != null){
+			deviceDeltaCallback.callback(delta);
+		}
+		if (deviceLog != null){
+			deviceLog.seen(device);
 		}
 		
 	}
 
+	//called by the discovery state listener
+	public void scanStarted(){
+		allDevicesSeen.scanStarted();
+	}
+
+	//called by the discovery state listener, reports the devices the scan lost
+	public void scanFinished(){
+		List<DeviceDelta> lost = allDevicesSeen.scanFinished();
+		if (deviceDeltaCallback != null){
+			for (DeviceDelta delta : lost){
+				deviceDeltaCallback.callback(delta);
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the devices seen lately, by MAC address. To get the devices
+	 * just found in the latest scan, use getLatestScanFoundDevices()
+	 */
 	public HashMap <String, FoundDevice> getAllDevicesSeen(){
-		return allDevicesSeen;
+		return allDevicesSeen.toMap();
 	}
-	
+
 	/**
-	 * Use a callback to keep of devices in your own class, 
-	 * do not make this method public, to get the devices just found
-	 * in the latest scan, use getLatestScanFoundDevices()
+	 * @return the registry of devices seen lately, for lookups by MAC address
 	 */
-	private void clearAllDevicesSeen(){
-		allDevicesSeen = new HashMap <String, FoundDevice>();
-		
+	public DeviceRegistry getDeviceRegistry(){
+		return allDevicesSeen;
+	}
+	
+	public void setDeviceLog(DeviceLog deviceLog) {
+		this.deviceLog = deviceLog;
 	}
+
 	//callback classes
 	public DTCallback getDeviceFoundCallback() {
 		return deviceFoundCallback;
@@ -59,4 +87,16 @@ public class DTDeviceFoundListener extends DeviceFoundListener {
 	public void setOnDeviceFoundCallback(DTCallback deviceFoundCalback) {
 		this.deviceFoundCallback = deviceFoundCalback;
 	}
+
+	public DTCallback getDeviceDeltaCallback() {
+		return deviceDeltaCallback;
+	}
+
+	/**
+	 * @param deviceDeltaCallback called with a DeviceDelta whenever a device is first seen,
+	 * 			changes name, is seen again after being missed, or is lost. See DeviceDeltaCallback.
+	 */
+	public void setOnDeviceDeltaCallback(DTCallback deviceDeltaCallback) {
+		this.deviceDeltaCallback = deviceDeltaCallback;
+	}
 }
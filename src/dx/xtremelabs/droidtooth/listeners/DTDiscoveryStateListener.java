@@ -6,6 +6,7 @@ import android.content.Intent;
 import dx.xtremelabs.droidtooth.abstract_listeners.DiscoveryStateListener;
 import dx.xtremelabs.droidtooth.callbacks.DTCallback;
 import dx.xtremelabs.droidtooth.main.DroidToothInstance;
+import dx.xtremelabs.droidtooth.main.RadioCoordinator;
 
 /**
  * Issue callbacks to clients interested in knowing the states of 
@@ -23,6 +24,8 @@ public class DTDiscoveryStateListener extends DiscoveryStateListener {
 		//once the discovery starts, we want our parent to have a fresh new list
 		//to keep track of currently found devices.
 		DroidToothInstance.get().getDeviceFoundListener().clearList();
+		DroidToothInstance.get().getDeviceFoundListener().scanStarted();
+		DroidToothInstance.get().getRadioCoordinator().discoveryStateChanged(true);
 
 		if (discoveryStartedCallback!=null){
 			discoveryStartedCallback.callback();
@@ -30,10 +33,23 @@ public class DTDiscoveryStateListener extends DiscoveryStateListener {
 		}
 	}
 
+	public void discoveryResumed() {
+		//the scan goes on where it was paused, so keep its devices and don't report a new one
+		DroidToothInstance.get().getDeviceFoundListener().scanStarted();
+		DroidToothInstance.get().getRadioCoordinator().discoveryStateChanged(true);
+	}
+
 	public void discoveryFinished() {
+		RadioCoordinator radio = DroidToothInstance.get().getRadioCoordinator();
+		radio.discoveryStateChanged(false);
+		if (radio.isDiscoveryPaused()){
+			return; //only paused for a connect or transfer, it resumes after
+		}
+		DroidToothInstance.get().getDeviceFoundListener().scanFinished();
+
 		if (discoveryFinishedCallback!=null){
 			discoveryFinishedCallback.callback();
-			discoveryStartedCallback.callback(getCurrentDiscoveryState());
+			discoveryFinishedCallback.callback(getCurrentDiscoveryState());
 		}
 	}
 
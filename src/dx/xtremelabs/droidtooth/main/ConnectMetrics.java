@@ -0,0 +1,88 @@
+package dx.xtremelabs.droidtooth.main;
+
+/**
+ * How long client connects take to succeed, and more importantly to fail: an absent
+ * peer costs whatever the connect budget is, so this is what the budget should be tuned by.
+ */
+public class ConnectMetrics {
+
+	//guarded by this
+	private long attempts = 0;
+	private long successes = 0;
+	private long failures = 0;
+	private long timeouts = 0;
+	private long cancellations = 0;
+	private long totalTimeToConnectMillis = 0;
+	private long totalTimeToFailureMillis = 0;
+	private long maxTimeToFailureMillis = 0;
+
+	synchronized void connected(long elapsedMillis){
+		attempts++;
+		successes++;
+		totalTimeToConnectMillis += elapsedMillis;
+	}
+
+	synchronized void failed(long elapsedMillis, boolean timedOut, boolean cancelled){
+		attempts++;
+		failures++;
+		if (timedOut){
+			timeouts++;
+		}
+		if (cancelled){
+			cancellations++;
+		}
+		totalTimeToFailureMillis += elapsedMillis;
+		maxTimeToFailureMillis = Math.max(maxTimeToFailureMillis, elapsedMillis);
+	}
+
+	public synchronized long getAttempts() {
+		return attempts;
+	}
+
+	public synchronized long getSuccesses() {
+		return successes;
+	}
+
+	/**
+	 * @return failed attempts, including those that timed out or were cancelled
+	 */
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return attempts the watchdog closed for running past their deadline
+	 */
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	public synchronized long getCancellations() {
+		return cancellations;
+	}
+
+	/**
+	 * @return average time a successful connect took, handshake included; 0 if none succeeded
+	 */
+	public synchronized long getMeanTimeToConnectMillis() {
+		return successes == 0 ? 0 : totalTimeToConnectMillis / successes;
+	}
+
+	/**
+	 * @return average time it took to find out a connect failed; 0 if none failed
+	 */
+	public synchronized long getMeanTimeToFailureMillis() {
+		return failures == 0 ? 0 : totalTimeToFailureMillis / failures;
+	}
+
+	public synchronized long getMaxTimeToFailureMillis() {
+		return maxTimeToFailureMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return attempts+" connects, "+successes+" succeeded in "+getMeanTimeToConnectMillis()+"ms on average, "
+				+failures+" failed in "+getMeanTimeToFailureMillis()+"ms on average ("+timeouts+" timed out, "
+				+cancellations+" cancelled)";
+	}
+}
@@ -0,0 +1,428 @@
+package dx.xtremelabs.droidtooth.main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DefaultCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * The client connections DroidTooth has open, at most one per device and service UUID.
+ * Leasing a connection that is already open, or still being opened, shares it rather
+ * than opening another RFCOMM link to the same device. Once every lease on a connection
+ * has been released it stays open for the idle timeout in case it is leased again, and
+ * is closed after that.
+ *
+ * DroidTooth.tooth() holds the connection instead of leasing it: however many times a
+ * device is toothed, that counts as one lease, given up by unhold() or closed by untooth().
+ *
+ * The pool holds at most maxSize connections, by default as many as a Bluetooth radio
+ * keeps active at once. When full, the connection idle the longest makes room; if none
+ * is idle, the lease fails.
+ */
+public class ConnectionPool {
+
+	//a piconet has at most 7 active slaves
+	public static final int DEFAULT_MAX_SIZE = 7;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+
+	private final int maxSize;
+	private final long idleTimeoutMillis;
+
+	//guarded by this
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private ScheduledFuture<?> evictor;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public ConnectionPool(){
+		this(DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT_MILLIS);
+	}
+
+	public ConnectionPool(int maxSize, long idleTimeoutMillis){
+		this.maxSize = maxSize;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Lease the connection to a device's service, opening it if the pool doesn't have it.
+	 * Every successful lease must be released with release() once done with.
+	 * @param device
+	 * @param uuid
+	 * @param timeoutMillis how long to give the connect, if one is needed
+	 * @return a future completed with the connection; cancelling it gives the lease up
+	 */
+	public DTFuture<Connection> lease(FoundDevice device, UUID uuid, long timeoutMillis){
+		return lease(device, uuid, timeoutMillis, false);
+	}
+
+	/**
+	 * Lease the connection to a device's service on behalf of DroidTooth.tooth(). Unlike
+	 * lease(), holding a connection that is already held takes no further lease, so it
+	 * may be called every time the device is seen.
+	 * @param device
+	 * @param uuid
+	 * @param timeoutMillis how long to give the connect, if one is needed
+	 * @return a future completed with the connection
+	 */
+	public DTFuture<Connection> hold(FoundDevice device, UUID uuid, long timeoutMillis){
+		return lease(device, uuid, timeoutMillis, true);
+	}
+
+	private DTFuture<Connection> lease(FoundDevice device, UUID uuid, long timeoutMillis, final boolean hold){
+		final DTFuture<Connection> lease = new DTFuture<Connection>();
+		final Entry entry;
+		Entry evicted = null;
+		boolean created = false;
+		synchronized (this) {
+			String key = keyOf(device.DEVICE_MAC, uuid);
+			Entry existing = entries.get(key);
+			if (existing != null){
+				hits++;
+				entry = existing;
+			} else {
+				misses++;
+				if (entries.size() >= maxSize){
+					evicted = longestIdle();
+					if (evicted == null){
+						lease.fail(new IOException("Connection pool full, "+maxSize+" connections in use"));
+						return lease;
+					}
+					entries.remove(evicted.key);
+					evictions++;
+				}
+				entry = new Entry(key, device);
+				entries.put(key, entry);
+				created = true;
+				startEvictor();
+			}
+			if (hold){
+				entry.held = true;
+			} else {
+				entry.leases++;
+			}
+		}
+		if (evicted != null){
+			evicted.close();
+		}
+
+		if (created){
+			DTFuture<Connection> connecting = connect(device, uuid, timeoutMillis);
+			entry.connected(connecting);
+		}
+		entry.whenConnected().forwardTo(lease);
+		lease.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				if (!lease.isSucceeded()){
+					if (hold){
+						unheld(entry);
+					} else {
+						released(entry);
+					}
+				}
+			}
+		});
+		return lease;
+	}
+
+	/**
+	 * Open a connection for the pool, with DroidTooth.connect() unless overridden.
+	 * @param device
+	 * @param uuid
+	 * @param timeoutMillis
+	 * @return the connect in progress; cancelling it must close the connection
+	 */
+	protected DTFuture<Connection> connect(FoundDevice device, UUID uuid, long timeoutMillis){
+		return DroidTooth.connect(device, uuid, timeoutMillis);
+	}
+
+	/**
+	 * Give a lease back. The connection stays open for others to lease until it has been
+	 * idle for the idle timeout.
+	 * @param connection a connection leased from this pool
+	 */
+	public void release(Connection connection){
+		Entry entry = find(connection);
+		if (entry != null){
+			released(entry);
+		}
+	}
+
+	private void released(Entry entry){
+		synchronized (this) {
+			if (entry.leases > 0 && --entry.leases == 0 && !entry.held){
+				entry.idleSince = SystemClock.elapsedRealtime();
+			}
+		}
+	}
+
+	/**
+	 * Stop holding a connection held with hold(). Like a released lease, it stays open for
+	 * the idle timeout in case it is leased or held again.
+	 * @param connection a connection held in this pool
+	 */
+	public void unhold(Connection connection){
+		Entry entry = find(connection);
+		if (entry != null){
+			unheld(entry);
+		}
+	}
+
+	private void unheld(Entry entry){
+		synchronized (this) {
+			if (entry.held){
+				entry.held = false;
+				if (entry.leases == 0){
+					entry.idleSince = SystemClock.elapsedRealtime();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget a connection that broke, so the next lease opens a new one.
+	 * @param connection
+	 */
+	public void connectionLost(Connection connection){
+		Entry entry = find(connection);
+		if (entry != null){
+			synchronized (this) {
+				entries.remove(entry.key);
+			}
+		}
+	}
+
+	/**
+	 * Close every connection to a device, leased or not.
+	 * @param device
+	 */
+	public void close(FoundDevice device){
+		List<Entry> closing = new ArrayList<Entry>();
+		synchronized (this) {
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();){
+				Entry entry = it.next();
+				if (entry.device.DEVICE_MAC.equals(device.DEVICE_MAC)){
+					it.remove();
+					closing.add(entry);
+				}
+			}
+		}
+		for (Entry entry : closing){
+			entry.close();
+		}
+	}
+
+	/**
+	 * Close every connection in the pool, leased or not.
+	 */
+	public void closeAll(){
+		List<Entry> closing;
+		synchronized (this) {
+			closing = new ArrayList<Entry>(entries.values());
+			entries.clear();
+			if (evictor != null){
+				evictor.cancel(false);
+				evictor = null;
+			}
+		}
+		for (Entry entry : closing){
+			entry.close();
+		}
+	}
+
+	/**
+	 * Close the connections that have not been leased for the idle timeout.
+	 * @return how many were closed
+	 */
+	public int evictIdle(){
+		List<Entry> closing = new ArrayList<Entry>();
+		long now = SystemClock.elapsedRealtime();
+		synchronized (this) {
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();){
+				Entry entry = it.next();
+				if (!entry.inUse() && now - entry.idleSince >= idleTimeoutMillis){
+					it.remove();
+					closing.add(entry);
+				}
+			}
+			evictions += closing.size();
+			if (entries.isEmpty() && evictor != null){
+				evictor.cancel(false);
+				evictor = null;
+			}
+		}
+		for (Entry entry : closing){
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Closing idle connection to "+entry.device.DEVICE_NAME);
+			entry.close();
+		}
+		return closing.size();
+	}
+
+	/**
+	 * @return the devices the pool has connections to, or is connecting to.
+	 */
+	public synchronized List<FoundDevice> getDevices(){
+		List<FoundDevice> devices = new ArrayList<FoundDevice>(entries.size());
+		for (Entry entry : entries.values()){
+			if (!devices.contains(entry.device)){
+				devices.add(entry.device);
+			}
+		}
+		return devices;
+	}
+
+	public synchronized int getSize(){
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return leases served by a connection the pool already had
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return leases that had to open a new connection
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	//guarded by this
+	private void startEvictor(){
+		if (evictor == null){
+			evictor = DTFuture.getTimer().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIdle();
+				}
+			}, idleTimeoutMillis, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	//guarded by this
+	private Entry longestIdle(){
+		Entry longest = null;
+		for (Entry entry : entries.values()){
+			if (!entry.inUse() && (longest == null || entry.idleSince < longest.idleSince)){
+				longest = entry;
+			}
+		}
+		return longest;
+	}
+
+	private synchronized Entry find(Connection connection){
+		for (Entry entry : entries.values()){
+			if (connection.equals(entry.getConnection())){
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private static String keyOf(String address, UUID uuid){
+		return address + "/" + uuid;
+	}
+
+	/**
+	 * A pooled connection, or one being opened, and how many hold it.
+	 */
+	private class Entry {
+
+		final String key;
+		final FoundDevice device;
+		//guarded by ConnectionPool.this
+		int leases = 0;
+		boolean held = false;
+		long idleSince = 0;
+
+		private final DTFuture<Connection> connected = new DTFuture<Connection>();
+		private volatile DTFuture<Connection> connecting;
+
+		Entry(String key, FoundDevice device){
+			this.key = key;
+			this.device = device;
+		}
+
+		void connected(DTFuture<Connection> connecting){
+			this.connecting = connecting;
+			connecting.forwardTo(connected);
+			connecting.addListener(new DefaultCallback() {
+				@Override
+				public void callback(Object o) {
+					if (!Entry.this.connecting.isSucceeded()){
+						synchronized (ConnectionPool.this) {
+							if (entries.get(key) == Entry.this){
+								entries.remove(key); //next lease tries again
+							}
+						}
+					}
+				}
+			});
+			boolean removed;
+			synchronized (ConnectionPool.this) {
+				removed = entries.get(key) != this;
+			}
+			if (removed){
+				close(); //closed before the connect even started
+			}
+		}
+
+		//guarded by ConnectionPool.this
+		boolean inUse(){
+			return leases > 0 || held;
+		}
+
+		DTFuture<Connection> whenConnected(){
+			return connected;
+		}
+
+		Connection getConnection(){
+			if (!connected.isSucceeded()){
+				return null;
+			}
+			try {
+				return connected.get();
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		void close(){
+			DTFuture<Connection> pending = connecting;
+			if (pending != null && pending.cancel(true)){
+				return; //cancelling the connect closes it
+			}
+			Connection connection = getConnection();
+			if (connection != null){
+				try {
+					connection.close();
+				} catch (IOException e) {
+					Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to close pooled connection: "+e);
+				}
+			}
+		}
+	}
+}
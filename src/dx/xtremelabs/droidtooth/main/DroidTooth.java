@@ -1,10 +1,12 @@
 package dx.xtremelabs.droidtooth.main;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothSocket;
 import android.os.AsyncTask;
 import android.os.SystemClock;
 import android.util.Log;
@@ -14,9 +16,12 @@ import dx.xtremelabs.droidtooth.callbacks.DeviceFoundCallback;
 import dx.xtremelabs.droidtooth.callbacks.NewIncomingServerConnectionCallback;
 import dx.xtremelabs.droidtooth.callbacks.NewOutgoingClientConnectionCallback;
 import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
 import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.common.ScanTarget;
 import dx.xtremelabs.droidtooth.common.Utils;
 import dx.xtremelabs.droidtooth.exceptions.NoBluetoothDeviceFound;
+import dx.xtremelabs.droidtooth.transport.Connection;
 
 /**
  * DroidTooth class. Provides public static methods.
@@ -43,12 +48,10 @@ public class DroidTooth {
 
 	private static Activity activity;
 
-	//keep track of all the client instances operating
-	private static HashMap <String, DroidToothClient> tooths = new HashMap<String, DroidToothClient>();
-
 	/**
 	 * This method must be the very first method to be called.
-	 * Sets the activity across those classes that need it. 
+	 * Sets the activity across those classes that need it, and loads the devices
+	 * seen in past sessions, see getKnownDevices(). 
 	 * @param activity
 	 * @throws NoBluetoothDeviceFound Exception if no Bluetooth adapter exists. 
 	 */
@@ -58,6 +61,24 @@ public class DroidTooth {
 		if(!DroidToothInstance.get().doesBluetoothExist()){
 			throw new NoBluetoothDeviceFound("No Bluetooth device adapter found on mobile device.");
 		}
+		DroidToothInstance.get().getDeviceLog().load();
+	}
+
+	/**
+	 * The devices seen in this or past sessions, known before any scan completes.
+	 * @return the devices, most recently seen first, each found when it was last seen.
+	 */
+	public static List<FoundDevice> getKnownDevices(){
+		return DroidToothInstance.get().getKnownDevices();
+	}
+
+	/**
+	 * The DroidTooth hosts seen in this or past sessions, which can be connected to
+	 * straight away rather than after a scan finds them.
+	 * @return the hosts, most recently seen first.
+	 */
+	public static List<FoundDevice> getKnownHosts(){
+		return DroidToothInstance.get().getKnownHosts();
 	}
 
 	/**
@@ -86,37 +107,109 @@ public class DroidTooth {
 	 * 			if null, scanning continues as normally
 	 */
 	public static void scanRadius(final DTCallback scanningStartedCallback, final DTCallback scanningFinishedCallback, final DeviceFoundCallback deviceFoundCallback, boolean keepAlive, final String targetDeviceName)  {
+		scanRadius(scanningStartedCallback, scanningFinishedCallback, deviceFoundCallback, keepAlive,
+				targetDeviceName == null ? null : ScanTarget.names(targetDeviceName), ScanTarget.ALL);
+	}
+
+	/**
+	 * Scan until enough of the given targets are found, such as the peers to rendezvous
+	 * with, so that the scan is over in seconds rather than after the whole inquiry.
+	 * Bluetooth is left on after the scan.
+	 * @param target the devices to look for
+	 * @param quorum how many distinct targets to find before stopping, ScanTarget.ALL for every one
+	 * @param targetFoundCallback called with each target found, may be null
+	 * @return a future completed with the targets found once enough are, or once discovery
+	 * 			finishes without finding enough; cancelling it stops the scan.
+	 */
+	public static DTFuture<List<FoundDevice>> scanFor(ScanTarget target, int quorum, DeviceFoundCallback targetFoundCallback){
+		return scanRadius(null, null, targetFoundCallback, true, target, quorum);
+	}
+
+	/**
+	 * Scan for visible devices, stopping early once enough targets are found.
+	 * Assumes init() is called first.
+	 * 
+	 * @param scanningStartedCallback a notifier for pinging back the user when scanning starts
+	 * @param scanningFinishedCallback a callback for when scanning terminates
+	 * @param deviceFoundCallback object to be called back once a device is found, only
+	 * 			with targets, each once, if there are targets.
+	 * @param keepAlive whether or not to leave bluetooth on after it's done scanning
+	 * @param target the devices to look for, if null, scanning continues as normally
+	 * @param quorum how many distinct targets to find before stopping discovery, ScanTarget.ALL
+	 * 			for every one; for targets any number of devices match, ALL doesn't stop early.
+	 * @return a future completed with the targets found, or every device found if there are
+	 * 			no targets, once discovery stops; cancelling it stops discovery.
+	 */
+	public static DTFuture<List<FoundDevice>> scanRadius(final DTCallback scanningStartedCallback, final DTCallback scanningFinishedCallback, final DeviceFoundCallback deviceFoundCallback, boolean keepAlive, final ScanTarget target, int quorum)  {
 		Log.d(Constants.DEBUG_DROIDTOOTH, "Starting to scan radius....");
 
+		final DTFuture<List<FoundDevice>> scan = new DTFuture<List<FoundDevice>>();
+		//devices found by the key they count towards the quorum by, in the order found; guarded by itself
+		final LinkedHashMap<Object, FoundDevice> found = new LinkedHashMap<Object, FoundDevice>();
+		final int needed = target == null ? 0
+				: quorum > 0 ? (target.size() == ScanTarget.UNBOUNDED ? quorum : Math.min(quorum, target.size()))
+				: Math.max(target.size(), 0);
+
 		DroidToothInstance.get().setDiscoveryStartedCallback(scanningStartedCallback);
-		DroidToothInstance.get().setDiscoveryFinishedCallback(scanningFinishedCallback);
 
-		if (targetDeviceName==null){
+		if (target==null){
 			//set the interesting callback for every found device 
-			DroidToothInstance.get().setOnDeviceFoundCallback(deviceFoundCallback);
+			DroidToothInstance.get().setOnDeviceFoundCallback(new DeviceFoundCallback() {
+				@Override
+				public void callback(Object o){
+					FoundDevice device = this.getFoundDeviceFromObject(o);
+					synchronized (found) {
+						found.put(device.DEVICE_MAC, device);
+					}
+					if (deviceFoundCallback!=null){
+						deviceFoundCallback.callback(o);
+					}
+				}
+			});
 		} else {
-			//if user supplied a target device to scan for, once found, call the callback with the device
-			//and stop discovery right away.
+			//if user supplied targets to scan for, call the callback with each found
+			//and stop discovery right away once there are enough.
 			DroidToothInstance.get().setOnDeviceFoundCallback(new DeviceFoundCallback() {
 				@Override
 				public void callback(Object o){
 					FoundDevice device = this.getFoundDeviceFromObject(o);
-					if (device.DEVICE_NAME.equals(targetDeviceName)){
+					if (scan.isDone() || !target.matches(device)){
+						return;
+					}
+					int count;
+					synchronized (found) {
+						if (found.put(target.keyOf(device), device) != null){
+							return; //already found
+						}
+						count = found.size();
+					}
+					if (deviceFoundCallback!=null){
 						deviceFoundCallback.callback(o);
+					}
+					if (needed > 0 && count >= needed){
+						Log.d(Constants.DEBUG_DROIDTOOTH, "Found "+count+" targets, stopping discovery");
+						scan.set(scanFound(found));
 						DroidToothInstance.get().stopDiscovery();
-						return;
 					}
-
 				}
 			});
 		}
+		scan.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				if (scan.isCancelled()){
+					DroidToothInstance.get().stopDiscovery();
+				}
+			}
+		});
 
 		//check if BT is already on, if so, simply start discovering
 		if (DroidToothInstance.get().isOn()){
 			Log.d(Constants.DEBUG_DROIDTOOTH, "Bluetooth already ON, starting discovery");
 			DroidToothInstance.get().forceDiscovery();
 		} else if (!DroidToothInstance.get().initBluetooth()){ //try initializing bluetooth
-			return; //early termination if unable to init
+			scan.fail(new IllegalStateException("Unable to turn Bluetooth on"));
+			return scan; //early termination if unable to init
 		}
 
 		//now we're setting another interesting callback for what happens when Bluetooth is On.
@@ -132,49 +225,75 @@ public class DroidTooth {
 		});
 
 		//if requsted to be conservative, turn off after 5 seconds 
-		if (!keepAlive){
-			//we want to be conservative towards power consumption when simply scanning radius, thus after discovery has finished we turn off Bluetooth.
-			DroidToothInstance.get().getDiscoveryStateListener().setDiscoveryFinishedCallback(new DefaultCallback() {
-				/**
-				 * Will be called when Bluetooth has finished the discovery process.
-				 * Wait 5 seconds (default) before turning off Bluetooth
-				 */
-				@Override
-				public void callback() {
-					Log.d(Constants.DEBUG_DROIDTOOTH, "Doing post-discovery processes....");
-
-					//create a new "thread" that waits in the background for some graceful seconds then
-					//tries to turn off
-					new AsyncTask<Integer, Void, Void> (){
-
-						@Override
-						protected Void doInBackground(Integer... arg0) {
-							int sleepTimeInSeconds = arg0[0];
-
-							//for every passing graceful second we want to stop the count-down timer if the device
-							//starts discovering again. At which point the shutdown won't happen because it will skip
-							//the evaluation below of whether the device is discovering or not. 
-							for (int i=0; i<sleepTimeInSeconds && !DroidToothInstance.get().isDiscovering(); i++){
-								Log.d(Constants.DEBUG_DROIDTOOTH, (i+1)+" second(s) have passed since last discovery.");
-								SystemClock.sleep(1000);
-							}
+		final DTCallback turnOffAfterScan = keepAlive ? null : new DefaultCallback() {
+			/**
+			 * Will be called when Bluetooth has finished the discovery process.
+			 * Wait 5 seconds (default) before turning off Bluetooth
+			 */
+			@Override
+			public void callback() {
+				Log.d(Constants.DEBUG_DROIDTOOTH, "Doing post-discovery processes....");
+
+				//create a new "thread" that waits in the background for some graceful seconds then
+				//tries to turn off
+				new AsyncTask<Integer, Void, Void> (){
+
+					@Override
+					protected Void doInBackground(Integer... arg0) {
+						int sleepTimeInSeconds = arg0[0];
+
+						//for every passing graceful second we want to stop the count-down timer if the device
+						//starts discovering again. At which point the shutdown won't happen because it will skip
+						//the evaluation below of whether the device is discovering or not. 
+						for (int i=0; i<sleepTimeInSeconds && !DroidToothInstance.get().isDiscovering(); i++){
+							Log.d(Constants.DEBUG_DROIDTOOTH, (i+1)+" second(s) have passed since last discovery.");
+							SystemClock.sleep(1000);
+						}
 
-							//if the device is discovering, let it discover, ignore request to turn off.
-							if (!DroidToothInstance.get().isDiscovering()){
-								Log.d(Constants.DEBUG_DROIDTOOTH, "Turning off Bluetooth.");
-								if (!DroidToothInstance.get().turnOffBluetoothGracefully()){
-									Log.d(Constants.DEBUG_DROIDTOOTH, "Couldn't turn off Bluetooth for some reason...");
-								}
+						//if the device is discovering, let it discover, ignore request to turn off.
+						//likewise if it is busy connecting or transferring.
+						if (!DroidToothInstance.get().isDiscovering() && !DroidToothInstance.get().getRadioCoordinator().isBusy()){
+							Log.d(Constants.DEBUG_DROIDTOOTH, "Turning off Bluetooth.");
+							if (!DroidToothInstance.get().turnOffBluetoothGracefully()){
+								Log.d(Constants.DEBUG_DROIDTOOTH, "Couldn't turn off Bluetooth for some reason...");
 							}
-
-							return null;
 						}
-					}.execute(DEFAULT_GRACE_SECONDS_AFTER_RADIUS_SCAN);
+
+						return null;
+					}
+				}.execute(DEFAULT_GRACE_SECONDS_AFTER_RADIUS_SCAN);
+			}
+		};
+
+		//the scan is over once discovery finishes, early if it found enough targets
+		DroidToothInstance.get().setDiscoveryFinishedCallback(new DTCallback() {
+			@Override
+			public void callback() {
+				scan.set(scanFound(found));
+				if (scanningFinishedCallback!=null){
+					scanningFinishedCallback.callback();
 				}
-			});
-		} 
+				if (turnOffAfterScan!=null){
+					turnOffAfterScan.callback();
+				}
+			}
+
+			@Override
+			public void callback(Object o) {
+				if (scanningFinishedCallback!=null){
+					scanningFinishedCallback.callback(o);
+				}
+			}
+		});
+		return scan;
 	} //end scanRadius()
 
+	private static List<FoundDevice> scanFound(LinkedHashMap<Object, FoundDevice> found){
+		synchronized (found) {
+			return new ArrayList<FoundDevice>(found.values());
+		}
+	}
+
 
 	/**
 	 * Wrapper function for requesting the user to become visible (discoverable) 
@@ -334,31 +453,90 @@ public class DroidTooth {
 	 * @param uuid
 	 * @param callback
 	 * @param newDeviceFound
+	 * @param errorOccurred called if connecting fails, including to a host known from
+	 * 			before, once the scan is over without finding it
 	 */
 	public static void tooth(final String broadcastingName, final UUID uuid, DTCallback scanningStartedCallback, final NewOutgoingClientConnectionCallback callback, final DeviceFoundCallback newDeviceFound, final DefaultCallback errorOccurred){
 
+		//a host known from before is connected to right away, the scan only matters if that fails
+		DTFuture<Connection> knownHost = null;
+		if (broadcastingName!=null){
+			for (FoundDevice host : getKnownHosts()){
+				if (broadcastingName.equals(host.DEVICE_NAME)){
+					knownHost = tooth(host, uuid, callback, null);
+					break;
+				}
+			}
+		}
+		final DTFuture<Connection> connectingToKnownHost = knownHost;
+		//whether the scan saw the host, which then reports its own connect's errors; UI thread only
+		final boolean[] hostFound = {false};
+		if (connectingToKnownHost != null){
+			connectingToKnownHost.addListener(new DefaultCallback() {
+				@Override
+				public void callback(Object o) {
+					if (connectingToKnownHost.isSucceeded()){
+						DroidToothInstance.get().stopDiscovery(); //found it without the scan
+					}
+				}
+			});
+		}
+
+		//the known host's connect only gets to report failing once the scan can't make up for it
+		DTCallback scanFinished = connectingToKnownHost == null ? null : new DTCallback() {
+			@Override
+			public void callback() {
+				if (hostFound[0]){
+					return;
+				}
+				connectingToKnownHost.addListener(new DefaultCallback() {
+					@Override
+					public void callback(Object o) {
+						if (!connectingToKnownHost.isSucceeded() && errorOccurred!=null){
+							errorOccurred.callback(String.valueOf(connectingToKnownHost.getFailure()));
+						}
+					}
+				});
+			}
+
+			@Override
+			public void callback(Object o) {
+			}
+		};
+
 		//first we need to do a scan of the 15m BT radius
-		DroidTooth.scanRadius(scanningStartedCallback, new DeviceFoundCallback() {
+		DroidTooth.scanRadius(scanningStartedCallback, scanFinished, new DeviceFoundCallback() {
 			//once we find some device
 			@Override
 			public void callback (Object o){
 				//check their name
-				FoundDevice newDevice = this.getFoundDeviceFromObject(o);
+				final FoundDevice newDevice = this.getFoundDeviceFromObject(o);
 
 				//we give priority to finding a specific device 
 				if (broadcastingName!=null && newDevice.DEVICE_NAME.equals(broadcastingName)){
 					//stop discovering once found the desired teeth() group.
 					if (DroidToothInstance.get().stopDiscovery()){
-						//attempt to start a handshake for the given device object and UUID
-						DroidToothClient handshake = tooth(newDevice, Utils.getKnownUUID(0), callback, errorOccurred);
-						tooths.put(broadcastingName, handshake);
-						newDevice.setSocket(handshake.getSocket()); //wait until we get a socket
+						//discovery finishing, which is reported on this thread after we return, is no failure now
+						hostFound[0] = true;
+						//attempt to start a handshake for the given device object and UUID,
+						//the connection is set on the device once made
+						if (connectingToKnownHost == null){
+							tooth(newDevice, uuid, callback, errorOccurred);
+						} else {
+							//only if connecting to it as known from before fails
+							connectingToKnownHost.addListener(new DefaultCallback() {
+								@Override
+								public void callback(Object o) {
+									if (!connectingToKnownHost.isSucceeded()){
+										tooth(newDevice, uuid, callback, errorOccurred);
+									}
+								}
+							});
+						}
 					}
 				}  else if (broadcastingName == null && Utils.isHost(newDevice.DEVICE_NAME)){	//if we detected a host using default DroidTooth library
-					//attempt to pair with the device
-					DroidToothClient handshake = tooth(newDevice, Utils.getKnownUUID(0), callback, errorOccurred);
-					//keep track of all existing threaded clients
-					tooths.put(broadcastingName, handshake);
+					//attempt to pair with the device, the pool keeps track of it
+					tooth(newDevice, uuid, callback, errorOccurred);
 				} 
 
 				//keep any interested clients notified when a device was found.
@@ -366,27 +544,214 @@ public class DroidTooth {
 					newDeviceFound.callback(o);
 				}
 			}
-		}, true, null); //leave bluetooth on after scan
+		}, true, (String) null); //leave bluetooth on after scan
 	}
 
 	/**
-	 * Attempt to connect (pair) to the found device while scanning. 
+	 * Attempt to connect (pair) to the found device while scanning. The connection is
+	 * held in DroidToothInstance's connection pool, so if one is already open to this
+	 * device on this UUID it is reused rather than a new one opened, and toothing a device
+	 * again, e.g. every time a scan sees it, holds it no more than once. release() lets the
+	 * pool close it once idle, untooth() closes it right away.
+	 * 
+	 * This used to return the DroidToothClient making the connection, which a pooled
+	 * connection no longer has one of; callers need the future instead.
 	 * @param device device we already know about from the past
 	 * @param uuid the agreed UUID
 	 * @param newOutgoingClientConnectionCallback a callback for when the client pairs successfully
 	 * @param errorOccurred a callback if there were any errors
-	 * @return An already started threaded client for your pleasure to refer to
+	 * @return the connect in progress, completed with the connection
 	 */
-	public static DroidToothClient tooth(FoundDevice device, UUID uuid, NewOutgoingClientConnectionCallback newOutgoingClientConnectionCallback, DefaultCallback errorOccurred){
+	public static DTFuture<Connection> tooth(final FoundDevice device, UUID uuid, final NewOutgoingClientConnectionCallback newOutgoingClientConnectionCallback, final DefaultCallback errorOccurred){
 		if (device == null){
 			return null;
 		}
 
-		DroidToothClient handshake = new DroidToothClient(device, uuid);
-		handshake.setNewOutgoingClientConnectionCallback(newOutgoingClientConnectionCallback);
-		handshake.setErrorOccurredCallback(errorOccurred);
-		handshake.execute(); //initiate the handshake connection
-		return handshake;
+		final DTFuture<Connection> lease = DroidToothInstance.get().getConnectionPool().hold(device, uuid, DroidToothClient.DEFAULT_CONNECTION_WAIT_MILLIS);
+		lease.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				if (lease.isSucceeded()){
+					Connection connection = device.getConnection();
+					try {
+						connection = lease.get();
+					} catch (Exception e) {
+						//succeeded, can't happen
+					}
+					device.setConnection(connection); //shared connections were made on another FoundDevice
+					if (newOutgoingClientConnectionCallback!=null){
+						newOutgoingClientConnectionCallback.callback(connection);
+					}
+				} else if (errorOccurred!=null){
+					errorOccurred.callback(String.valueOf(lease.getFailure()));
+				}
+			}
+		});
+		return lease;
+	}
+
+	/**
+	 * Connect to a found device without callbacks or an AsyncTask: the connect runs on
+	 * DroidToothInstance's connect executor and the returned future composes with others.
+	 * @param device
+	 * @param uuid the agreed UUID
+	 * @param timeoutMillis how long to give the connect before closing it and failing
+	 * 			with a TimeoutException
+	 * @return a future completed with the connection, handshake done
+	 */
+	public static DTFuture<Connection> connect(FoundDevice device, UUID uuid, long timeoutMillis){
+		DroidToothClient client = new DroidToothClient(device, uuid);
+		client.setConnectTimeout(timeoutMillis);
+		return client.connect(DroidToothInstance.get().getConnectExecutor());
+	}
+
+	/**
+	 * Connect to a found device trying each UUID in turn until one works, e.g. the
+	 * app's own UUID first and then the known DroidTooth ones.
+	 * @param device
+	 * @param uuids in order of preference
+	 * @param timeoutMillis given to each attempt
+	 * @return a future completed with the first connection made, failed like the last attempt otherwise
+	 */
+	public static DTFuture<Connection> connect(final FoundDevice device, List<UUID> uuids, final long timeoutMillis){
+		DTFuture<Connection> connecting = connect(device, uuids.get(0), timeoutMillis);
+		for (final UUID uuid : uuids.subList(1, uuids.size())){
+			connecting = connecting.orElse(new Callable<DTFuture<Connection>>() {
+				@Override
+				public DTFuture<Connection> call() {
+					return connect(device, uuid, timeoutMillis);
+				}
+			});
+		}
+		return connecting;
+	}
+
+	/**
+	 * Connect to a found device listening on any of the known DroidTooth UUIDs, trying
+	 * them side by side rather than in turn. Those the device is known to advertise
+	 * are tried first, then those connected to on it in past sessions.
+	 * @param device
+	 * @param timeoutMillis given to each attempt
+	 * @return a future completed with the first connection made
+	 */
+	public static DTFuture<Connection> probe(FoundDevice device, long timeoutMillis){
+		List<UUID> known = Utils.getKnownUUIDs();
+		List<UUID> uuids = new ArrayList<UUID>(known.size());
+		for (UUID uuid : DroidToothInstance.get().getServiceRecordCache().getServiceUuids(device.DEVICE_MAC)){
+			if (known.remove(uuid)){
+				uuids.add(uuid);
+			}
+		}
+		for (UUID uuid : DroidToothInstance.get().getDeviceLog().getKnownServices(device.DEVICE_MAC)){
+			if (known.remove(uuid)){
+				uuids.add(uuid);
+			}
+		}
+		uuids.addAll(known);
+		return probe(device, uuids, UuidProbe.DEFAULT_PARALLELISM, UuidProbe.DEFAULT_STAGGER_MILLIS, timeoutMillis);
+	}
+
+	/**
+	 * Connect to a found device listening on any of the given UUIDs, a new attempt starting
+	 * every staggerMillis, or when one fails, until parallelism of them are in flight.
+	 * The first to connect is kept and the rest are cancelled.
+	 * @param device
+	 * @param uuids in order of preference
+	 * @param parallelism most attempts in flight at once
+	 * @param staggerMillis head start each attempt gets over the next
+	 * @param timeoutMillis given to each attempt
+	 * @return a future completed with the first connection made, failed like the last attempt otherwise
+	 */
+	public static DTFuture<Connection> probe(FoundDevice device, List<UUID> uuids, int parallelism, long staggerMillis, long timeoutMillis){
+		return new UuidProbe(device, uuids, parallelism, staggerMillis, timeoutMillis).start();
+	}
+
+	/**
+	 * Reconnect to a device whenever its connection is lost, backing off between failed
+	 * attempts. See DroidToothInstance.getReconnectManager() for the policy and callbacks.
+	 * @param device
+	 * @param uuid the UUID to reconnect on
+	 * @return the device's watch, for how often and how long it was down
+	 */
+	public static ReconnectManager.Watch keepConnected(FoundDevice device, UUID uuid){
+		return DroidToothInstance.get().getReconnectManager().watch(device, uuid);
+	}
+
+	/**
+	 * Connect to several devices at once.
+	 * @param devices
+	 * @param uuid
+	 * @param timeoutMillis given to each connect
+	 * @return a future completed with a connection per device, in order; if any of them
+	 * 			fails, the rest are given up on and the ones made already are closed.
+	 */
+	public static DTFuture<List<Connection>> connectAll(List<FoundDevice> devices, UUID uuid, long timeoutMillis){
+		final List<DTFuture<Connection>> connects = connectEach(devices, uuid, timeoutMillis);
+		final DTFuture<List<Connection>> all = DTFuture.allOf(connects);
+		all.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				if (!all.isSucceeded()){
+					closeConnections(connects, null);
+				}
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * Connect to whichever of several devices answers first, e.g. any of the hosts found.
+	 * @param devices
+	 * @param uuid
+	 * @param timeoutMillis given to each connect
+	 * @return a future completed with the first connection made; the other attempts are
+	 * 			given up on, and closed if they connected too.
+	 */
+	public static DTFuture<Connection> connectAny(List<FoundDevice> devices, UUID uuid, long timeoutMillis){
+		final List<DTFuture<Connection>> connects = connectEach(devices, uuid, timeoutMillis);
+		final DTFuture<Connection> any = DTFuture.anyOf(connects);
+		any.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				closeConnections(connects, any);
+			}
+		});
+		return any;
+	}
+
+	private static List<DTFuture<Connection>> connectEach(List<FoundDevice> devices, UUID uuid, long timeoutMillis){
+		List<DTFuture<Connection>> connects = new ArrayList<DTFuture<Connection>>(devices.size());
+		for (FoundDevice device : devices){
+			connects.add(connect(device, uuid, timeoutMillis));
+		}
+		return connects;
+	}
+
+	//close the connections made by all but the kept future
+	private static void closeConnections(List<DTFuture<Connection>> connects, final DTFuture<Connection> kept){
+		for (final DTFuture<Connection> connect : connects){
+			connect.addListener(new DefaultCallback() {
+				@Override
+				public void callback(Object o) {
+					try {
+						if (connect.isSucceeded() && (kept == null || connect.get() != kept.get())){
+							connect.get().close();
+						}
+					} catch (Exception e) {
+						Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to close unused connection: "+e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Done with a connection made by tooth(). It stays open for the connection pool's
+	 * idle timeout in case the device is toothed again, and is closed after that.
+	 * @param connection
+	 */
+	public static void release(Connection connection){
+		DroidToothInstance.get().getConnectionPool().unhold(connection);
 	}
 
 	/**
@@ -396,16 +761,15 @@ public class DroidTooth {
 	 * 			if null then all connections will be closed.
 	 */
 	public static void untooth(String broadcastName){
+		ConnectionPool pool = DroidToothInstance.get().getConnectionPool();
 		if (broadcastName!=null){
-			if (tooths.containsKey(broadcastName)){ 
-				tooths.get(broadcastName).closeConnectionWithHost(); //close connection
-				tooths.remove(tooths.get(broadcastName)); //cleanup
+			for (FoundDevice device : pool.getDevices()){
+				if (broadcastName.equals(device.DEVICE_NAME)){
+					pool.close(device); //close connection and forget it
+				}
 			}
 		} else {
-			for(DroidToothClient client : tooths.values()){
-				client.closeConnectionWithHost();
-			}
-			tooths.clear(); //rather than wait for g.c. to handle that old memory, do it now.
+			pool.closeAll();
 		}
 	}
 
@@ -415,6 +779,9 @@ public class DroidTooth {
 			DroidToothInstance.get().getDroidToothServer().shutdownServer();
 		}
 
+		//write out the devices seen this session
+		DroidToothInstance.get().getDeviceLog().flush();
+
 		//if requested to turn off Bluetooth, all listeners will be unregistered regardless. 
 		if (turnOffBluetooth){
 			DroidToothInstance.get().turnOffBluetooth();
@@ -425,61 +792,22 @@ public class DroidTooth {
 	}
 
 	/**
-	 * Return the now-useless AsyncTask because it served
-	 * it's main purpose to establish a pairing request
-	 * with a client. However we can still use it's shell
-	 * to inquire about the connection it established. 
-	 * @return any known clients
+	 * Return whether the device is still there: whether a connection to it that we are
+	 * listening on heard from it, heartbeats included, within the heartbeat monitor's miss
+	 * threshold. Just a lookup, it neither touches the radio nor blocks.
+	 * @param device
+	 * @return false if the device went silent, or we aren't listening to a connection to it.
 	 */
-	private static DroidToothClient getClient(String name){
-		if (tooths.containsKey(name)){
-			return tooths.get(name);
-		}
-		return null;
+	public static boolean isDeviceAlive(FoundDevice device){
+		return device != null && DroidToothInstance.get().getHeartbeatMonitor().isAlive(device.DEVICE_MAC);
 	}
+
 	/**
-	 * Return whether the device is turned on. Prior to using this function,
-	 * a pairing might have happened and after a certain period of inactivity
-	 * the host (mouse, keyboard, input device) might timeout and when the client
-	 * attempts to communicate with it via its input/output streams it will
-	 * have to wait because read/write are blocking calls. 
-	 * 
-	 * This method attempts to purely re-establish a connection with the device.
-	 * @return
+	 * @see #isDeviceAlive(FoundDevice)
+	 * @deprecated the UUID is no longer needed, liveness comes from the connection already open.
 	 */
+	@Deprecated
 	public static boolean isDeviceAlive(FoundDevice device, UUID uuid){
-		if (device == null){
-			return false;
-		}
-		
-		try {
-			//If this succeeds then the device was OFF but is ON again however it lost track
-			//of whom it was already paired to.
-			BluetoothSocket socket = device.DEVICE.createRfcommSocketToServiceRecord(uuid);
-			
-			Log.d(Constants.DEBUG_DROIDTOOTH, "was able to re-pair with socket: "+socket.getInputStream());
-			
-			socket.connect();
-			Log.d(Constants.DEBUG_DROIDTOOTH, "____reading from socket socket: "+socket.getInputStream().read());
-			 //Device was off and willing to re-establish communication. 
-			socket.close(); //close this test socket to relinquish access to a socket that matters.
-			
-			//finally all is well, the device is "alive" and is awaiting connections.
-			return true;
-		} catch (Exception e) {
-			//the device is already connected and is using the sockets!
-			if (e.toString().contains("busy")){
-				return true; //is alive for sure
-			} 
-			
-			//We are unable to communicate with the device, as in, it cannot be seen as being visible
-			//in the spectrum of bluetooth radios (regardless of whether it's broadcasting its name)
-			Log.d(Constants.DEBUG_DROIDTOOTH, "Could not verify whether device is alive: "+e);
-			
-			//device is "dead" (beef) 
-			return false; 
-		}
-		
-
+		return isDeviceAlive(device);
 	}
 }
@@ -1,16 +1,29 @@
 package dx.xtremelabs.droidtooth.main;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
 import dx.xtremelabs.droidtooth.callbacks.DefaultCallback;
 import dx.xtremelabs.droidtooth.callbacks.NewOutgoingClientConnectionCallback;
 import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
 import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.RfcommConnection;
+import dx.xtremelabs.droidtooth.transport.Transport;
 
 /**
  * Defines a Bluetooth client-to-server connection for establishing a pairing with the specified host.
@@ -22,11 +35,27 @@ import dx.xtremelabs.droidtooth.common.FoundDevice;
  */
 public class DroidToothClient extends AsyncTask<Void, Void, Void> {
 
-	//one instance of this class can have only one instance of BluetoothServerSocket which represents
+	//one instance of this class can have only one connection which represents
 	//the handshake connection between client and server. For reliability and correctness of channels 
 	//and communication, we declare the socket as final then assign a different pointer to it.
 	private final BluetoothDevice hostDevice;
-	private BluetoothSocket socketWithHost;
+	private final Transport transport;
+	private volatile Connection socketWithHost;
+	//opened as soon as socketWithHost is set
+	private final CountDownLatch socketReady = new CountDownLatch(1);
+	
+	//how long getConnection() waits for the connection to be created
+	public static final long DEFAULT_CONNECTION_WAIT_MILLIS = 30000;
+
+	//how long a connect, handshake included, may take before the watchdog closes it
+	public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 12000;
+	//how often the watchdog checks on a connect
+	static final long WATCHDOG_PERIOD_MILLIS = 200;
+
+	private volatile long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	//set once whoever asked for the connection stops waiting for it, or its deadline passed
+	private volatile boolean abandoned = false;
+	private volatile boolean deadlinePassed = false;
 
 	//keep track of the host to connect to
 	private FoundDevice host;
@@ -39,18 +68,27 @@ public class DroidToothClient extends AsyncTask<Void, Void, Void> {
 	private boolean isConnected = false;
 
 	public DroidToothClient(FoundDevice host, UUID uuid){
+		this(host, uuid, DroidToothInstance.get().getTransport());
+	}
+
+	/**
+	 * Connect over any transport, such as an InMemoryTransport when testing off-device.
+	 */
+	public DroidToothClient(FoundDevice host, UUID uuid, Transport transport){
 		this.host = host;
 		this.hostDevice = host.DEVICE; //Bluetooth device
 		this.uuid = uuid;
+		this.transport = transport;
 		initConnectionWithHost();
 	}
 
 	private void initConnectionWithHost(){
 		try {
 			// MY_UUID is the app's UUID string, also used by the server code
-			socketWithHost = hostDevice.createRfcommSocketToServiceRecord(uuid);
+			socketWithHost = transport.createConnection(host.DEVICE_MAC, uuid);
+			socketReady.countDown();
 		} catch (IOException e) { 
-			Log.e(Constants.DEBUG_DROIDTOOTH, "Unable to connect to HOST "+hostDevice.getName()+", with UUID: "+uuid);
+			Log.e(Constants.DEBUG_DROIDTOOTH, "Unable to connect to HOST "+host.DEVICE_NAME+", with UUID: "+uuid);
 		}
 	}
 	public UUID getUuid() {
@@ -66,38 +104,37 @@ public class DroidToothClient extends AsyncTask<Void, Void, Void> {
 		return isConnected;
 	}
 
+	public long getConnectTimeout() {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * @param connectTimeoutMillis how long connecting may block before the connection is
+	 * 			closed and the connect fails with a SocketTimeoutException, 0 for no limit.
+	 */
+	public void setConnectTimeout(long connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
 	/**
 	 * Start the client-server connection
 	 */
 	@Override
 	protected Void doInBackground(Void... params) {
 
-		if (socketWithHost==null){
-			initConnectionWithHost();
-		}
-		//		if (socketWithHost==null){
-		//			return null;
-		//		}
-
-		//initialize server socket
-		BluetoothSocket incomingDevice;
-
 		try {
-			//attempt to connect to server
-			socketWithHost.connect();
+			host.setConnection(connectWithHost());
 		} catch (Exception e) {
 			//issue a callback to any interested clients
 			if (errorOccurred!=null){
 				//obviously the "agreement" for passing in a string can be switched to be an Exception
 				errorOccurred.callback(e.toString()); 
 			}
-			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to connect client with host "+hostDevice.getName()+" because: "+e);
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to connect client with host "+host.DEVICE_NAME+" because: "+e);
 			
 			return null;
 		}
 
-		host.setSocket(socketWithHost);
-		
 		//issue a callback to those interested clients that a new connection has been established.
 		if (newConnection!=null){
 			//at this point the clients should be using setSocket() on their own FoundDevice objects
@@ -109,10 +146,143 @@ public class DroidToothClient extends AsyncTask<Void, Void, Void> {
 		
 	}
 
+	/**
+	 * Connect on the given executor rather than as an AsyncTask, the callbacks are
+	 * not issued. The connection is set on the host device only once the future has it. The returned future fails with a TimeoutException once the connect
+	 * timeout passes; that or cancelling it closes the connection and with it any
+	 * connect attempt still blocking.
+	 * 
+	 * @param executor such as DroidToothInstance.getConnectExecutor()
+	 * @return a future completed with the connection once connected and handshaken
+	 */
+	public DTFuture<Connection> connect(Executor executor){
+		final DTFuture<Connection> future = new DTFuture<Connection>();
+		future.addListener(new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				if (!future.isSucceeded() && socketWithHost != null){
+					if (future.getFailure() instanceof TimeoutException){
+						deadlinePassed = true;
+					} else {
+						abandoned = true;
+					}
+					closeConnectionWithHost();
+				}
+			}
+
+			@Override
+			public void callback() {
+			}
+		});
+		if (connectTimeoutMillis > 0){
+			future.failAfter(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isDone()){
+					return; //given up on before it even started
+				}
+				try {
+					Connection connection = connectWithHost();
+					if (future.set(connection)){
+						host.setConnection(connection);
+					} else {
+						closeConnectionWithHost(); //too late, nobody wants it anymore
+					}
+				} catch (Exception e) {
+					Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to connect client with host "+host.DEVICE_NAME+" because: "+e);
+					future.fail(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Connect and run the session handshake, on the calling thread. Both block on the
+	 * radio with no timeout of their own, so a watchdog closes the connection if they
+	 * run past the connect timeout or this task is cancelled.
+	 * @return the connection with the host
+	 */
+	private Connection connectWithHost() throws IOException {
+		if (socketWithHost==null){
+			initConnectionWithHost();
+		}
+		final Connection connection = socketWithHost;
+		if (connection==null){
+			throw new IOException("Unable to create a connection to "+host.DEVICE_NAME);
+		}
+
+		ConnectMetrics metrics = DroidToothInstance.get().getConnectMetrics();
+		RadioCoordinator radio = DroidToothInstance.get().getRadioCoordinator();
+		radio.begin(RadioCoordinator.CONNECT); //connecting while discovering takes far longer
+		final long started = SystemClock.elapsedRealtime();
+		//both guarded by watchdogFired: once handshaken the watchdog leaves the connection alone
+		final boolean[] watchdogFired = new boolean[1];
+		final boolean[] handshaken = new boolean[1];
+		ScheduledFuture<?> watchdog = DTFuture.getTimer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				long timeout = connectTimeoutMillis;
+				boolean expired = timeout > 0 && SystemClock.elapsedRealtime() - started >= timeout;
+				synchronized (watchdogFired) {
+					if (watchdogFired[0] || handshaken[0] || !(expired || isCancelled())){
+						return;
+					}
+					watchdogFired[0] = true;
+				}
+				Log.d(Constants.DEBUG_DROIDTOOTH, (expired ? "Timed out" : "Cancelled")+" connecting to "+host.DEVICE_NAME);
+				closeConnectionWithHost();
+			}
+		}, WATCHDOG_PERIOD_MILLIS, WATCHDOG_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+		try {
+			//attempt to connect to server, then agree with it on how to talk
+			connection.connect();
+			DroidToothInstance.get().negotiateSession(connection);
+			boolean closedByWatchdog;
+			synchronized (watchdogFired) {
+				closedByWatchdog = watchdogFired[0];
+				handshaken[0] = true;
+			}
+			//it may have fired just as the handshake completed, closing the connection
+			if (closedByWatchdog){
+				throw new IOException("Connection to "+host.DEVICE_NAME+" closed by the watchdog");
+			}
+		} catch (IOException e) {
+			long elapsed = SystemClock.elapsedRealtime() - started;
+			boolean timedOut = deadlinePassed || (connectTimeoutMillis > 0 && elapsed >= connectTimeoutMillis);
+			boolean cancelled = !timedOut && (isCancelled() || abandoned);
+			metrics.failed(elapsed, timedOut, cancelled);
+			if (timedOut){
+				throw new SocketTimeoutException("Connecting to "+host.DEVICE_NAME+" timed out after "+elapsed+"ms");
+			}
+			if (cancelled){
+				throw new InterruptedIOException("Connecting to "+host.DEVICE_NAME+" was cancelled");
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			metrics.failed(SystemClock.elapsedRealtime() - started, false, false);
+			throw e;
+		} finally {
+			watchdog.cancel(false);
+			radio.end(RadioCoordinator.CONNECT);
+		}
+		metrics.connected(SystemClock.elapsedRealtime() - started);
+		DroidToothInstance.get().getDeviceLog().connected(host, uuid); //tried first next time
+
+		isConnected = true;
+		return connection;
+	}
+
 	/**
 	 * Close connection with host.
 	 */
 	public void closeConnectionWithHost(){
+		if (socketWithHost == null){
+			return;
+		}
 		try {
 			socketWithHost.close();
 		} catch (IOException e) {
@@ -122,10 +292,34 @@ public class DroidToothClient extends AsyncTask<Void, Void, Void> {
 	
 	/**
 	 * Return the socket connection with the host, for establishing i/o streams.
-	 * @return
+	 * @return the Bluetooth socket, null if connected over a transport other than RFCOMM.
 	 */
 	public BluetoothSocket getSocket(){
-		while (socketWithHost==null) ; //wait until we can get a socket
+		Connection connection = getConnection();
+		return connection instanceof RfcommConnection ? ((RfcommConnection) connection).getSocket() : null;
+	}
+
+	/**
+	 * Return the connection with the host, whichever transport it runs on,
+	 * waiting up to DEFAULT_CONNECTION_WAIT_MILLIS for it to be created.
+	 * @return the connection, null if it could not be created in time.
+	 */
+	public Connection getConnection(){
+		return getConnection(DEFAULT_CONNECTION_WAIT_MILLIS);
+	}
+
+	/**
+	 * Return the connection with the host, parking the calling thread until it
+	 * is created or the timeout elapses.
+	 * @param timeoutMillis
+	 * @return the connection, null if it could not be created in time.
+	 */
+	public Connection getConnection(long timeoutMillis){
+		try {
+			socketReady.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		return socketWithHost;
 	}
 	
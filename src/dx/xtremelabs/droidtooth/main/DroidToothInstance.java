@@ -1,9 +1,17 @@
 package dx.xtremelabs.droidtooth.main;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -17,12 +25,32 @@ import android.os.RemoteException;
 import android.widget.Toast;
 import dx.xtremelabs.droidtooth.DroidToothActivity;
 import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.common.DeviceLog;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.common.RunnableCallback;
 import dx.xtremelabs.droidtooth.listeners.DTDeviceFoundListener;
 import dx.xtremelabs.droidtooth.listeners.DTDiscoveryStateListener;
 import dx.xtremelabs.droidtooth.listeners.DTStateListener;
+import dx.xtremelabs.droidtooth.messaging.BufferPool;
+import dx.xtremelabs.droidtooth.messaging.BulkReceiver;
+import dx.xtremelabs.droidtooth.messaging.BulkSender;
+import dx.xtremelabs.droidtooth.messaging.ChannelMultiplexer;
+import dx.xtremelabs.droidtooth.messaging.FrameCodec;
+import dx.xtremelabs.droidtooth.messaging.MessageInbox;
+import dx.xtremelabs.droidtooth.messaging.MessageWriter;
+import dx.xtremelabs.droidtooth.messaging.RpcEndpoint;
+import dx.xtremelabs.droidtooth.messaging.RpcHandler;
+import dx.xtremelabs.droidtooth.messaging.SessionHandshake;
+import dx.xtremelabs.droidtooth.messaging.VarintFrameCodec;
 import dx.xtremelabs.droidtooth.runners.DiscoverabilityRunner;
 import dx.xtremelabs.droidtooth.runners.ListenForMessageRunner;
 import dx.xtremelabs.droidtooth.runners.Runner;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.RfcommConnection;
+import dx.xtremelabs.droidtooth.transport.RfcommTransport;
+import dx.xtremelabs.droidtooth.transport.ServiceRecordCache;
+import dx.xtremelabs.droidtooth.transport.Transport;
 
 /**
  * The all-knowing DroidToothInstance singleton which deals with all low-level
@@ -39,6 +67,7 @@ public class DroidToothInstance {
 	public static final int DISCOVERY_ALREADY_ONGOING = 1;
 	public static final int DISCOVERY_STARTED = 2;
 	public static final int DISCOVERY_RESTARTED = 3;
+	public static final int DISCOVERY_DEFERRED = 4;
 
 	// Bluetooth adapter
 	BluetoothAdapter droidTooth;
@@ -81,7 +110,61 @@ public class DroidToothInstance {
 	// a thread class for handling discoverability
 	private Runner discoverabilityRunner;
 
-	private Runner listenForMessageRunner;
+	private ListenForMessageRunner listenForMessageRunner; // the most recently started one
+	private ConcurrentHashMap<Connection, ListenForMessageRunner> messageListeners = new ConcurrentHashMap<Connection, ListenForMessageRunner>();
+	private DTCallback connectionLostCallback;
+	private int inboxCapacity = MessageInbox.DEFAULT_CAPACITY;
+	private boolean keepCallbackMessages = false;
+
+	// how messages are delimited on sockets, shared by senders and listeners
+	private FrameCodec frameCodec = new VarintFrameCodec();
+
+	// what new connections agree on before use, and what each one ended up with
+	private SessionHandshake sessionHandshake = new SessionHandshake();
+	private ConcurrentHashMap<Connection, SessionHandshake.Session> sessions = new ConcurrentHashMap<Connection, SessionHandshake.Session>();
+
+	// how connections are made, RFCOMM unless replaced
+	private Transport transport;
+
+	// RFCOMM channels of services connected to before
+	private ServiceRecordCache serviceRecordCache;
+
+	// reconnects watched devices whose connection was lost
+	private ReconnectManager reconnectManager;
+
+	// client connections opened by tooth()
+	private ConnectionPool connectionPool;
+
+	// devices seen in past sessions, kept in the activity's files
+	private DeviceLog deviceLog;
+
+	// how client connects have gone
+	private final ConnectMetrics connectMetrics = new ConnectMetrics();
+
+	// keeps discovery paused while connecting or transferring
+	private final RadioCoordinator radioCoordinator = new RadioCoordinator(this);
+
+	// exchanges heartbeats on connections whose handshake agreed on them
+	private final HeartbeatMonitor heartbeatMonitor = new HeartbeatMonitor(this);
+	private boolean heartbeatsEnabled = true;
+
+	// where future-returning connects run, rather than the shared AsyncTask queue
+	private Executor connectExecutor;
+	// where listeners block reading, one thread each
+	private Executor listenerExecutor;
+
+	// one asynchronous writer per connection, created on first send
+	private ConcurrentHashMap<Connection, MessageWriter> messageWriters = new ConcurrentHashMap<Connection, MessageWriter>();
+	private int writerQueueCapacity = MessageWriter.DEFAULT_QUEUE_CAPACITY;
+	private int writerBackpressure = MessageWriter.FAIL_FAST;
+	// connections a transfer or multiplexer writes to directly, which get no writer meanwhile
+	private ConcurrentHashMap<Connection, Boolean> takenOver = new ConcurrentHashMap<Connection, Boolean>();
+
+	// request/response endpoints, at most one per connection
+	private ConcurrentHashMap<Connection, RpcEndpoint> rpcEndpoints = new ConcurrentHashMap<Connection, RpcEndpoint>();
+
+	// multiplexed connections, which have no writer of their own
+	private ConcurrentHashMap<Connection, ChannelMultiplexer> multiplexers = new ConcurrentHashMap<Connection, ChannelMultiplexer>();
 
 	// private holder of instance, don't want it swapped now!
 	private static DroidToothInstance instance;
@@ -139,6 +222,7 @@ public class DroidToothInstance {
 		// finally make sure we are made aware whenever a device is found while
 		// scanning in progress
 		deviceFoundListener = new DTDeviceFoundListener();
+		((DTDeviceFoundListener) deviceFoundListener).setDeviceLog(getDeviceLog());
 		// register these listeners into the system
 		registerListeners();
 	}
@@ -260,7 +344,7 @@ public class DroidToothInstance {
 	 */
 	public DroidToothServer getDroidToothServer() {
 		return droidToothServer == null || droidToothServer.wasRunning() ? 
-																			droidToothServer = new DroidToothServer(droidTooth)
+																			droidToothServer = new DroidToothServer(getTransport())
 																		 : 
 																			droidToothServer;
 	}
@@ -271,7 +355,102 @@ public class DroidToothInstance {
 	 * @return
 	 */
 	public DroidToothServer getNewDroidToothServer() {
-		return new DroidToothServer(droidTooth);
+		return new DroidToothServer(getTransport());
+	}
+
+	/**
+	 * Return the executor DroidTooth.connect() runs connection attempts on. Unless
+	 * replaced, a pool of daemon threads that grows with the number of connects in
+	 * flight and shrinks once they are done, so connects never wait behind each other
+	 * or behind unrelated AsyncTasks.
+	 * 
+	 * @return the connect executor
+	 */
+	public synchronized Executor getConnectExecutor() {
+		if (connectExecutor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			connectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DroidTooth-connect-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return connectExecutor;
+	}
+
+	public synchronized void setConnectExecutor(Executor connectExecutor) {
+		this.connectExecutor = connectExecutor;
+	}
+
+	/**
+	 * Return the executor message listeners run on. Each listener blocks reading its
+	 * connection for as long as the connection lasts, so rather than the shared AsyncTask
+	 * pool, where a few of them would keep everything after them queued, every listener
+	 * gets a daemon thread of its own, kept around a while for the next one.
+	 * 
+	 * @return the listener executor
+	 */
+	public synchronized Executor getListenerExecutor() {
+		if (listenerExecutor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			listenerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DroidTooth-listener-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return listenerExecutor;
+	}
+
+	/**
+	 * @param listenerExecutor must be able to run as many listeners at once as there
+	 * 			are connections being listened to
+	 */
+	public synchronized void setListenerExecutor(Executor listenerExecutor) {
+		this.listenerExecutor = listenerExecutor;
+	}
+
+	/**
+	 * Return the transport servers and clients connect through.
+	 * 
+	 * @return the transport set with setTransport(), an RfcommTransport on
+	 *         the default adapter otherwise.
+	 */
+	public Transport getTransport() {
+		if (transport == null) {
+			doesBluetoothExist(); // make sure we hold the adapter
+			transport = new RfcommTransport(droidTooth, getServiceRecordCache());
+		}
+		return transport;
+	}
+
+	/**
+	 * Return what is known of nearby devices' services, which the default transport
+	 * uses to reconnect without looking services up again.
+	 * 
+	 * @return the service record cache
+	 */
+	public synchronized ServiceRecordCache getServiceRecordCache() {
+		if (serviceRecordCache == null) {
+			serviceRecordCache = new ServiceRecordCache(getIBluetooth());
+		}
+		return serviceRecordCache;
+	}
+
+	/**
+	 * Run DroidTooth over another transport, such as an InMemoryTransport or
+	 * TcpTransport for testing off-device.
+	 * 
+	 * @param transport
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
 	}
 
 	/**
@@ -312,6 +491,7 @@ public class DroidToothInstance {
 	 */
 	public boolean unpairDevice(String MAC){
 		IBluetooth ib = DroidToothInstance.get().getIBluetooth();
+		getServiceRecordCache().invalidate(MAC);
 		try {
 			ib.removeBond(MAC);
 			return true;
@@ -329,6 +509,17 @@ public class DroidToothInstance {
 				.setOnDeviceFoundCallback(callback);
 	}
 
+	/**
+	 * Notify some callback class of what changed between scans: a device first seen,
+	 * renamed, seen again after being missed, or lost. See DeviceDeltaCallback.
+	 * 
+	 * @param callback
+	 */
+	public void setOnDeviceDeltaCallback(DTCallback callback) {
+		((DTDeviceFoundListener) deviceFoundListener)
+				.setOnDeviceDeltaCallback(callback);
+	}
+
 	public void setDiscoveryStartedCallback(DTCallback callback) {
 		((DTDiscoveryStateListener) discoveryStateListener)
 				.setDiscoveryStartedCallback(callback);
@@ -442,12 +633,16 @@ public class DroidToothInstance {
 	 *         through. DISCOVERY_ADAPTER_NULL if adapter is null.
 	 *         DISCOVERY_ALREADY_ONGOING if discovery is already.
 	 *         DISCOVERY_RESTARTED if forced to stop an existing discovery
-	 *         process and started anew.
+	 *         process and started anew. DISCOVERY_DEFERRED if a connect or
+	 *         transfer is active, discovery then starts once it ends.
 	 */
 	private int startDiscovery(boolean forceRestart) {
 		if (droidTooth == null) {
 			return DISCOVERY_ADAPTER_NULL;
 		}
+		if (radioCoordinator.deferDiscovery()) {
+			return DISCOVERY_DEFERRED;
+		}
 		
 		int returnValue = DISCOVERY_STARTED; // default value
 
@@ -480,7 +675,12 @@ public class DroidToothInstance {
 	 * @return whether stopping the discovery process was a success.
 	 */
 	public boolean stopDiscovery() {
-		return droidTooth.cancelDiscovery();
+		radioCoordinator.discoveryStopped(); // don't resume it after a connect either
+		return cancelDiscovery();
+	}
+
+	boolean cancelDiscovery() {
+		return droidTooth != null && droidTooth.cancelDiscovery();
 	}
 
 	/**
@@ -654,33 +854,622 @@ public class DroidToothInstance {
 	}
 
 	/**
-	 * Given a socket,
+	 * Return the codec used to delimit messages sent and received on sockets.
+	 * 
+	 * @return the current frame codec, a VarintFrameCodec unless changed.
+	 */
+	public FrameCodec getFrameCodec() {
+		return frameCodec;
+	}
+
+	/**
+	 * Plug in a different way of framing messages. Both ends of a connection
+	 * must use the same codec, and it should be set before any listener starts.
+	 * 
+	 * @param frameCodec
+	 */
+	public void setFrameCodec(FrameCodec frameCodec) {
+		this.frameCodec = frameCodec;
+	}
+
+	/**
+	 * Return the codec to frame messages on a given connection with: the one its session
+	 * handshake agreed on, such as a CompressingFrameCodec, or the default codec.
+	 * 
+	 * @param connection
+	 * @return the connection's codec
+	 */
+	public FrameCodec getFrameCodec(Connection connection) {
+		SessionHandshake.Session session = sessions.get(connection);
+		return session != null ? session.getFrameCodec() : frameCodec;
+	}
+
+	/**
+	 * Run the session handshake on a new connection and remember what it agreed on.
+	 * Called by DroidToothClient and DroidToothServer once connected, before any
+	 * callbacks see the connection. If both ends agreed on heartbeats we start sending
+	 * ours right away, whether or not we ever listen on the connection, since the peer
+	 * now counts on them.
+	 * 
+	 * @param connection a freshly connected connection
+	 * @throws IOException if the peer does not complete the handshake
+	 */
+	public void negotiateSession(Connection connection) throws IOException {
+		if (sessionHandshake == null) {
+			return;
+		}
+		SessionHandshake.Session session = sessionHandshake.negotiate(connection, frameCodec, heartbeatsEnabled);
+		sessions.put(connection, session);
+		if (session.isHeartbeats()) {
+			heartbeatMonitor.monitor(connection, null);
+		}
+	}
+
+	/**
+	 * @param connection
+	 * @return whether the connection's handshake agreed on heartbeats, so that its
+	 *         empty messages are heartbeats and its peer is dead once they stop.
+	 */
+	public boolean isHeartbeating(Connection connection) {
+		SessionHandshake.Session session = sessions.get(connection);
+		return session != null && session.isHeartbeats();
+	}
+
+	public SessionHandshake getSessionHandshake() {
+		return sessionHandshake;
+	}
+
+	/**
+	 * Change what new connections offer during the session handshake, e.g. to turn
+	 * compression off or use another dictionary. Both ends must agree on whether
+	 * there is a handshake at all.
+	 * 
+	 * @param sessionHandshake null to skip the handshake
+	 */
+	public void setSessionHandshake(SessionHandshake sessionHandshake) {
+		this.sessionHandshake = sessionHandshake;
+	}
+
+	/**
+	 * Given a socket, start listening for framed messages coming through it.
 	 * 
 	 * @param socket
-	 * @return
+	 * @param gotMessage called with a ReceivedMessage for every message received
 	 */
 	public void listenForMessage(BluetoothSocket socket, DTCallback gotMessage) {
-		listenForMessageRunner = new ListenForMessageRunner(socket, gotMessage);
-		listenForMessageRunner.execute();
+		listenForMessage(new RfcommConnection(socket), gotMessage);
+	}
+
+	/**
+	 * Given a connection, start listening for framed messages coming through it.
+	 * 
+	 * @param connection
+	 * @param gotMessage called with a ReceivedMessage for every message received
+	 */
+	public void listenForMessage(final Connection connection, DTCallback gotMessage) {
+		ListenForMessageRunner listener = new ListenForMessageRunner(connection, getFrameCodec(connection), BufferPool.getDefault(), 
+				new MessageInbox(inboxCapacity), gotMessage);
+		listener.setKeepCallbackMessages(keepCallbackMessages);
+		boolean heartbeating = isHeartbeating(connection);
+		listener.setHeartbeats(heartbeating);
+		listener.setConnectionLostCallback(new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				connectionLost(connection);
+			}
+
+			@Override
+			public void callback() {
+			}
+		});
+		ListenForMessageRunner previous = messageListeners.put(connection, listener);
+		if (previous != null) {
+			previous.cancel(true);
+		}
+		listenForMessageRunner = listener;
+		getListenerExecutor().execute(listener);
+		if (heartbeating) {
+			heartbeatMonitor.monitor(connection, listener);
+		}
+	}
+
+	/**
+	 * Return the inbox of messages received by the current listener and not read yet.
+	 * 
+	 * @return the inbox, null if not listening.
+	 */
+	public MessageInbox getMessageInbox() {
+		return listenForMessageRunner == null ? null : listenForMessageRunner.getInbox();
+	}
+
+	/**
+	 * Return the inbox of messages received on a given connection and not read yet.
+	 * 
+	 * @param connection
+	 * @return the inbox, null if not listening on that connection.
+	 */
+	public MessageInbox getMessageInbox(Connection connection) {
+		ListenForMessageRunner listener = messageListeners.get(connection);
+		return listener == null ? null : listener.getInbox();
+	}
+
+	/**
+	 * Set how many unread messages a listener keeps before dropping the oldest,
+	 * applies to listeners started after this call.
+	 * 
+	 * @param inboxCapacity
+	 */
+	public void setInboxCapacity(int inboxCapacity) {
+		this.inboxCapacity = inboxCapacity;
+	}
+
+	/**
+	 * Set whether messages handed to a gotMessage callback are kept in the inbox as
+	 * well, off by default. Applies to listeners started after this call.
+	 * 
+	 * @param keepCallbackMessages
+	 */
+	public void setKeepCallbackMessages(boolean keepCallbackMessages) {
+		this.keepCallbackMessages = keepCallbackMessages;
 	}
 
 	public void stopListeningForMessage() {
 		listenForMessageRunner.cancel(true);
+		messageListeners.remove(listenForMessageRunner.getConnection(), listenForMessageRunner);
+		stoppedListening(listenForMessageRunner.getConnection());
 		listenForMessageRunner = null; // clear any old pointers
 	}
 
-	private void sendMessage(BluetoothSocket socket, String message) {
-		synchronized (socket) {
-			OutputStream outStream;
-			try {
-				outStream = socket.getOutputStream();
-				// Add a stop character.
-				byte[] byteArray = (message + " ").getBytes();
-				byteArray[byteArray.length - 1] = 0;
-				outStream.write(byteArray);
+	/**
+	 * Stop listening on a given connection.
+	 * 
+	 * @param connection
+	 */
+	public void stopListeningForMessage(Connection connection) {
+		ListenForMessageRunner listener = messageListeners.remove(connection);
+		stoppedListening(connection);
+		if (listener != null) {
+			listener.cancel(true);
+			if (listener == listenForMessageRunner) {
+				listenForMessageRunner = null;
+			}
+		}
+	}
+
+	// with nobody reading, the peer can't be told dead, but it still expects our heartbeats
+	private void stoppedListening(Connection connection) {
+		if (isHeartbeating(connection)) {
+			heartbeatMonitor.monitor(connection, null);
+		} else {
+			heartbeatMonitor.stopMonitoring(connection);
+		}
+	}
+
+	/**
+	 * Called when a connection turns out to be gone, because its listener read the end
+	 * of it or its writer failed. Stops everything running on the connection, frees its
+	 * slot on the server if the server accepted it, then issues the connection lost callback.
+	 * 
+	 * @param connection
+	 */
+	public void connectionLost(Connection connection) {
+		heartbeatMonitor.stopMonitoring(connection);
+		ListenForMessageRunner listener = messageListeners.remove(connection);
+		if (listener == listenForMessageRunner) {
+			listenForMessageRunner = null;
+		}
+		closeMessageWriter(connection);
+		closeRpcEndpoint(connection);
+		ChannelMultiplexer multiplexer = multiplexers.remove(connection);
+		if (multiplexer != null) {
+			multiplexer.close();
+		}
+		if (droidToothServer != null) {
+			droidToothServer.releaseConnection(connection);
+		}
+		ConnectionPool pool = connectionPool;
+		if (pool != null) {
+			pool.connectionLost(connection);
+		}
+		ReconnectManager reconnects = reconnectManager;
+		if (reconnects != null) {
+			reconnects.connectionLost(connection);
+		}
+		//on the UI thread, like the server's callbacks, rather than whichever reader or writer noticed
+		final DTCallback lost = connectionLostCallback;
+		if (lost != null) {
+			activity.runOnUiThread(new RunnableCallback(connection) {
+				@Override
+				public void run() {
+					lost.callback(o);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the monitor telling whether peers listened to are still there.
+	 */
+	public HeartbeatMonitor getHeartbeatMonitor() {
+		return heartbeatMonitor;
+	}
+
+	/**
+	 * @param heartbeatsEnabled whether connections handshaken from now on offer to
+	 *            exchange heartbeats, on by default. Heartbeats are only exchanged with
+	 *            peers that offer them too, so never without a session handshake, and on
+	 *            those connections empty messages are heartbeats, which listeners never
+	 *            deliver. Elsewhere empty messages are delivered like any other.
+	 */
+	public void setHeartbeatsEnabled(boolean heartbeatsEnabled) {
+		this.heartbeatsEnabled = heartbeatsEnabled;
+	}
+
+	/**
+	 * @return the coordinator connects and transfers pause discovery through, and
+	 *         which accounts for the time the radio spends in each mode.
+	 */
+	public RadioCoordinator getRadioCoordinator() {
+		return radioCoordinator;
+	}
+
+	/**
+	 * @return how long client connects take to succeed or fail.
+	 */
+	public ConnectMetrics getConnectMetrics() {
+		return connectMetrics;
+	}
+
+	/**
+	 * @return the pool of client connections, shared by everyone connecting to the same service.
+	 */
+	public synchronized ConnectionPool getConnectionPool() {
+		if (connectionPool == null) {
+			connectionPool = new ConnectionPool();
+		}
+		return connectionPool;
+	}
+
+	/**
+	 * @return the log of devices seen in past sessions, which DroidTooth.init() loads.
+	 */
+	public synchronized DeviceLog getDeviceLog() {
+		if (deviceLog == null) {
+			deviceLog = new DeviceLog(new File(activity.getFilesDir(), DeviceLog.FILE_NAME));
+		}
+		return deviceLog;
+	}
+
+	/**
+	 * @return the devices seen in this or past sessions, most recently seen first.
+	 */
+	public List<FoundDevice> getKnownDevices() {
+		return getDeviceLog().getKnownDevices(droidTooth);
+	}
+
+	/**
+	 * @return the DroidTooth hosts seen in this or past sessions, most recently seen first.
+	 */
+	public List<FoundDevice> getKnownHosts() {
+		return getDeviceLog().getKnownHosts(droidTooth);
+	}
+
+	/**
+	 * @return the reconnect manager lost connections are reported to.
+	 */
+	public synchronized ReconnectManager getReconnectManager() {
+		if (reconnectManager == null) {
+			reconnectManager = new ReconnectManager();
+		}
+		return reconnectManager;
+	}
+
+	/**
+	 * @param connectionLostCallback called on the UI thread with the Connection whenever one is lost.
+	 */
+	public void setConnectionLostCallback(DTCallback connectionLostCallback) {
+		this.connectionLostCallback = connectionLostCallback;
+	}
+
+	/**
+	 * Queue a text message to be sent on the given socket.
+	 * 
+	 * @see #sendMessage(Connection, byte[])
+	 */
+	public boolean sendMessage(BluetoothSocket socket, String message) {
+		return sendMessage(new RfcommConnection(socket), message.getBytes());
+	}
+
+	/**
+	 * Queue a message to be sent on the given socket.
+	 * 
+	 * @see #sendMessage(Connection, byte[])
+	 */
+	public boolean sendMessage(BluetoothSocket socket, byte[] message) {
+		return sendMessage(new RfcommConnection(socket), message);
+	}
+
+	/**
+	 * Queue a message to be sent on the given connection by the connection's
+	 * writer thread. Returns right away unless the writer backpressure is BLOCK
+	 * and the queue is full, so it is safe to call from the UI thread otherwise.
+	 * 
+	 * @param connection a connected connection
+	 * @param message the payload, must not be modified after this call
+	 * @return whether the message was queued. False if the queue was full
+	 *         (FAIL_FAST) or the connection can no longer be written to.
+	 */
+	public boolean sendMessage(Connection connection, byte[] message) {
+		MessageWriter writer = getMessageWriter(connection);
+		return writer != null && writer.send(message);
+	}
+
+	/**
+	 * Return the writer for the given connection, starting one if there is none yet.
+	 * 
+	 * @param connection a connected connection
+	 * @return the connection's writer, null if its output stream is unavailable
+	 *         or a transfer has the connection.
+	 */
+	public MessageWriter getMessageWriter(final Connection connection) {
+		if (takenOver.containsKey(connection)) {
+			return null;
+		}
+		MessageWriter writer = messageWriters.get(connection);
+		if (writer != null && writer.isRunning()) {
+			return writer;
+		}
 
-			} catch (IOException e) {
+		try {
+			MessageWriter newWriter = new MessageWriter(connection.getOutputStream(), getFrameCodec(connection), 
+					writerQueueCapacity, writerBackpressure, MessageWriter.DEFAULT_COALESCE_SIZE);
+			//another thread may have beaten us to it
+			boolean installed = writer == null ? messageWriters.putIfAbsent(connection, newWriter) == null
+											   : messageWriters.replace(connection, writer, newWriter);
+			if (!installed) {
+				newWriter.close();
+				return messageWriters.get(connection);
 			}
+			newWriter.setErrorOccurredCallback(new DTCallback() {
+				@Override
+				public void callback(Object o) {
+					connectionLost(connection);
+				}
+
+				@Override
+				public void callback() {
+				}
+			});
+			return newWriter;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stop the writer of a connection that is being closed, discarding anything still queued,
+	 * stop its heartbeats and forget what its handshake agreed on.
+	 * 
+	 * @param connection
+	 */
+	public void closeMessageWriter(Connection connection) {
+		heartbeatMonitor.stopMonitoring(connection);
+		sessions.remove(connection);
+		takenOver.remove(connection);
+		MessageWriter writer = messageWriters.remove(connection);
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Set how many messages may wait to be sent per connection, applies to writers
+	 * created after this call.
+	 * 
+	 * @param writerQueueCapacity
+	 */
+	public void setWriterQueueCapacity(int writerQueueCapacity) {
+		this.writerQueueCapacity = writerQueueCapacity;
+	}
+
+	/**
+	 * Set what sendMessage() does when a connection's queue is full: 
+	 * MessageWriter.BLOCK, DROP_OLDEST or FAIL_FAST (default). Applies to 
+	 * writers created after this call.
+	 * 
+	 * @param writerBackpressure
+	 */
+	public void setWriterBackpressure(int writerBackpressure) {
+		this.writerBackpressure = writerBackpressure;
+	}
+
+	/**
+	 * Start answering requests and making calls on a connection. Takes over reading
+	 * from the connection, so don't also listenForMessage() on it; the peer must open
+	 * an endpoint on its end too. Heartbeats keep going out through the connection's
+	 * writer, which the endpoint shares, and the endpoint skips the peer's.
+	 * 
+	 * @param connection a connected connection
+	 * @param handler answers the peer's requests, null if this end only makes calls
+	 * @return the connection's endpoint, the existing one if already open.
+	 */
+	public RpcEndpoint openRpcEndpoint(Connection connection, RpcHandler handler) {
+		RpcEndpoint endpoint = rpcEndpoints.get(connection);
+		if (endpoint != null && endpoint.isRunning()) {
+			return endpoint;
+		}
+		MessageWriter writer = getMessageWriter(connection);
+		if (writer == null) {
+			return null;
+		}
+		endpoint = new RpcEndpoint(connection, getFrameCodec(connection), writer, handler);
+		rpcEndpoints.put(connection, endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Call the peer on a connection that has an open endpoint.
+	 * 
+	 * @param connection
+	 * @param request
+	 * @param timeoutMillis how long to wait for the response
+	 * @return a future completed with the response
+	 * @see RpcEndpoint#call(byte[], long)
+	 */
+	public DTFuture<byte[]> call(Connection connection, byte[] request, long timeoutMillis) {
+		RpcEndpoint endpoint = rpcEndpoints.get(connection);
+		if (endpoint == null) {
+			DTFuture<byte[]> future = new DTFuture<byte[]>();
+			future.fail(new IOException("No RPC endpoint open on "+connection.getRemoteAddress()));
+			return future;
+		}
+		return endpoint.call(request, timeoutMillis);
+	}
+
+	/**
+	 * Stop the endpoint of a connection, failing its calls still waiting for a response.
+	 * 
+	 * @param connection
+	 */
+	public void closeRpcEndpoint(Connection connection) {
+		RpcEndpoint endpoint = rpcEndpoints.remove(connection);
+		if (endpoint != null) {
+			endpoint.close();
+		}
+	}
+
+	/**
+	 * Carry numbered channels over a connection. The multiplexer takes the connection
+	 * over for good: its heartbeats stop, messages still queued on it are discarded and
+	 * sendMessage() on it fails from now on, so don't listenForMessage() on it either.
+	 * The peer must open a multiplexer on its end too.
+	 * 
+	 * @param connection a connected connection
+	 * @return a future completed with the connection's multiplexer, the existing one if
+	 *         already open, once the connection's writer has stopped.
+	 */
+	public DTFuture<ChannelMultiplexer> openMultiplexer(final Connection connection) {
+		ChannelMultiplexer multiplexer = multiplexers.get(connection);
+		if (multiplexer != null && multiplexer.isRunning()) {
+			DTFuture<ChannelMultiplexer> open = new DTFuture<ChannelMultiplexer>();
+			open.set(multiplexer);
+			return open;
+		}
+		DTFuture<ChannelMultiplexer> opened = takeOver(connection).then(new Callable<DTFuture<ChannelMultiplexer>>() {
+			@Override
+			public DTFuture<ChannelMultiplexer> call() throws IOException {
+				ChannelMultiplexer multiplexer = new ChannelMultiplexer(connection, getFrameCodec(connection));
+				multiplexers.put(connection, multiplexer);
+				DTFuture<ChannelMultiplexer> open = new DTFuture<ChannelMultiplexer>();
+				open.set(multiplexer);
+				return open;
+			}
+		});
+		opened.addListener(new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				if (!((DTFuture<?>) o).isSucceeded()) {
+					handBack(connection);
+				}
+			}
+
+			@Override
+			public void callback() {
+			}
+		});
+		return opened;
+	}
+
+	/**
+	 * Stop the multiplexer of a connection, which closes the connection.
+	 * 
+	 * @param connection
+	 */
+	public void closeMultiplexer(Connection connection) {
+		ChannelMultiplexer multiplexer = multiplexers.remove(connection);
+		if (multiplexer != null) {
+			multiplexer.close();
+			closeMessageWriter(connection);
+		}
+	}
+
+	/**
+	 * Stream a file to a peer that is receiving with receiveBulk(). The connection is
+	 * used for nothing else until the returned future completes: its heartbeats stop,
+	 * messages still queued on it are discarded and sendMessage() on it fails. If the
+	 * transfer fails, sending the same transferId again over a new connection resumes
+	 * where it stopped.
+	 * 
+	 * @param connection a connected connection
+	 * @param transferId names the payload on the receiving end
+	 * @param source
+	 * @return a future completed with the number of bytes in the payload
+	 */
+	public DTFuture<Long> sendBulk(final Connection connection, final String transferId, final FileChannel source) {
+		DTFuture<Long> transfer = takeOver(connection).then(new Callable<DTFuture<Long>>() {
+			@Override
+			public DTFuture<Long> call() {
+				return new BulkSender(connection, getFrameCodec(connection)).send(transferId, source);
+			}
+		});
+		handBackAfter(connection, transfer);
+		return radioCoordinator.during(RadioCoordinator.TRANSFER, transfer);
+	}
+
+	/**
+	 * Receive a payload streamed with sendBulk() into a file named after its transfer id.
+	 * The connection is used for nothing else until the returned future completes, as
+	 * with sendBulk().
+	 * 
+	 * @param connection a connected connection
+	 * @param directory where the payload is stored, and partial payloads are kept for resuming
+	 * @return a future completed with the stored file
+	 */
+	public DTFuture<File> receiveBulk(final Connection connection, final File directory) {
+		DTFuture<File> transfer = takeOver(connection).then(new Callable<DTFuture<File>>() {
+			@Override
+			public DTFuture<File> call() {
+				return new BulkReceiver(connection, getFrameCodec(connection), directory).receive();
+			}
+		});
+		handBackAfter(connection, transfer);
+		return radioCoordinator.during(RadioCoordinator.TRANSFER, transfer);
+	}
+
+	// a transfer or multiplexer writes its frames straight to the connection, nothing else
+	// may write between them: stop the heartbeats and the writer, and start no writer
+	// meanwhile. The returned future completes once the writer thread is done writing.
+	private DTFuture<Void> takeOver(Connection connection) {
+		takenOver.put(connection, Boolean.TRUE);
+		heartbeatMonitor.stopMonitoring(connection);
+		MessageWriter writer = messageWriters.remove(connection);
+		if (writer == null) {
+			DTFuture<Void> idle = new DTFuture<Void>();
+			idle.set(null);
+			return idle;
+		}
+		writer.close();
+		return writer.whenStopped();
+	}
+
+	private void handBackAfter(final Connection connection, DTFuture<?> transfer) {
+		transfer.addListener(new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				handBack(connection);
+			}
+
+			@Override
+			public void callback() {
+			}
+		});
+	}
+
+	private void handBack(Connection connection) {
+		takenOver.remove(connection);
+		// not if the connection was lost meanwhile, that forgets its session
+		if (isHeartbeating(connection)) {
+			heartbeatMonitor.monitor(connection, messageListeners.get(connection));
 		}
 	}
 
@@ -1,62 +1,99 @@
 package dx.xtremelabs.droidtooth.main;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import dx.xtremelabs.droidtooth.callbacks.DTCallback;
 import dx.xtremelabs.droidtooth.callbacks.NewIncomingServerConnectionCallback;
+import dx.xtremelabs.droidtooth.common.ConnectedPeer;
 import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
 import dx.xtremelabs.droidtooth.common.RunnableCallback;
 import dx.xtremelabs.droidtooth.common.Utils;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.ConnectionAcceptor;
+import dx.xtremelabs.droidtooth.transport.RfcommTransport;
+import dx.xtremelabs.droidtooth.transport.Transport;
 
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.os.AsyncTask;
 import android.util.Log;
 
 /**
  * Defines a Bluetooth server that listens for incoming connections.
  * Takes an integer value as parameter defining how many connections
- * this server is to allow (up to 7).
+ * this server is to allow (up to 7). Without one the server accepts a single
+ * client and shuts down; with one it keeps serving, and a client that drops
+ * frees its slot for the next one to join.
  * 
  * @author Dritan Xhabija
  *
  */
 public class DroidToothServer extends AsyncTask<Integer, Void, Void> {
 	
-	//one instance of this class can have only one instance of BluetoothServerSocket for reliability
+	//one instance of this class can have only one listening socket (acceptor) for reliability
 	//of channels and communication, we declare the socket as final then assign a different pointer to it.
-	private BluetoothServerSocket droidToothSocket;
+	private volatile ConnectionAcceptor droidToothSocket;
+	//opened once the listening socket is there, replaced by a closed one whenever the socket goes away
+	private volatile CountDownLatch socketReady = new CountDownLatch(1);
 	
-	private final BluetoothAdapter droidToothAdapter;
+	//how long to wait for a listening socket before trying to open one again
+	public static final long SOCKET_RETRY_MILLIS = 2000;
+	
+	private final Transport transport;
 	private String broadcastName, oldBroadcastName;
 	private UUID uuid;
 	
-	private boolean isRunning = false;
+	//a piconet has room for 7 slaves
+	public static final int MAX_CONNECTIONS = 7;
+	
+	//how long a client that connected has to complete the session handshake
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 5000;
+	private volatile long handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+	
+	private volatile boolean isRunning = false;
 	private boolean wasRunning = false;
 	
 	private NewIncomingServerConnectionCallback newConnection;
 	private DTCallback serverStartedCallback;
 	
-	//list containing all connected devices
-	private LinkedList <BluetoothSocket> connectedDevices = new LinkedList <BluetoothSocket> (); //up to 7 connected devices according to BT
+	//table of all connected devices, up to 7 according to BT; each holds one of the slots
+	private ConcurrentHashMap <Connection, ConnectedPeer> connectedDevices = new ConcurrentHashMap <Connection, ConnectedPeer> ();
+	private Semaphore connectionSlots = new Semaphore(1);
+	private int permittedConnections = 1;
 	
 	public DroidToothServer(BluetoothAdapter droidToothAdapter){
-		this.droidToothAdapter = droidToothAdapter;
+		this(new RfcommTransport(droidToothAdapter));
 	}
 	
 	public DroidToothServer(BluetoothAdapter droidToothAdapter, UUID uuid){
-		this.droidToothAdapter = droidToothAdapter;
-		this.uuid = uuid;
+		this(new RfcommTransport(droidToothAdapter), null, uuid);
 		
 	}
 	public DroidToothServer(BluetoothAdapter droidToothAdapter, String broadcastName, UUID uuid){
-		this.droidToothAdapter = droidToothAdapter;
+		this(new RfcommTransport(droidToothAdapter), broadcastName, uuid);
+		
+	}
+
+	/**
+	 * Serve over any transport, such as an InMemoryTransport when testing off-device.
+	 * @param transport
+	 */
+	public DroidToothServer(Transport transport){
+		this.transport = transport;
+	}
+
+	public DroidToothServer(Transport transport, String broadcastName, UUID uuid){
+		this.transport = transport;
 		this.broadcastName = broadcastName;
 		this.uuid = uuid;
-		
 	}
 	
 	private void initServerSocket(){
@@ -65,14 +102,38 @@ public class DroidToothServer extends AsyncTask<Integer, Void, Void> {
 			return;
 		}
 		
-		BluetoothServerSocket tmpSocket;
+		ConnectionAcceptor tmpSocket;
 		
 		try {
-			tmpSocket = droidToothAdapter.listenUsingRfcommWithServiceRecord(Utils.getSDPName(), uuid);
+			tmpSocket = transport.listen(Utils.getSDPName(), uuid);
 		} catch (IOException e){
 			tmpSocket = null;
 		}
 		droidToothSocket = tmpSocket;
+		if (tmpSocket != null){
+			socketReady.countDown();
+		}
+	}
+
+	/**
+	 * Park the server thread until there is a listening socket to accept on,
+	 * trying to open one again every SOCKET_RETRY_MILLIS in case it failed.
+	 * @return false if the server was shut down or interrupted meanwhile.
+	 */
+	private boolean awaitServerSocket(){
+		while (droidToothSocket == null){
+			if (!isRunning){
+				return false;
+			}
+			try {
+				if (!socketReady.await(SOCKET_RETRY_MILLIS, TimeUnit.MILLISECONDS)){
+					initServerSocket();
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return isRunning;
 	}
 	
 	public String getBroadcastName() {
@@ -100,6 +161,63 @@ public class DroidToothServer extends AsyncTask<Integer, Void, Void> {
 		return wasRunning;
 	}
 
+	/**
+	 * @return a snapshot of the clients currently connected to this server.
+	 */
+	public List<ConnectedPeer> getConnectedPeers(){
+		return new ArrayList<ConnectedPeer>(connectedDevices.values());
+	}
+
+	/**
+	 * @return the table entry of a connection accepted by this server, null if it is not (or no longer) connected.
+	 */
+	public ConnectedPeer getConnectedPeer(Connection connection){
+		return connectedDevices.get(connection);
+	}
+
+	public int getConnectionCount(){
+		return connectedDevices.size();
+	}
+
+	public int getPermittedConnections(){
+		return permittedConnections;
+	}
+
+	public long getHandshakeTimeout(){
+		return handshakeTimeoutMillis;
+	}
+
+	/**
+	 * @param handshakeTimeoutMillis how long a client may take over the session handshake
+	 * 			before it is disconnected and its slot freed
+	 */
+	public void setHandshakeTimeout(long handshakeTimeoutMillis){
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+	}
+
+	/**
+	 * Drop a client from the connection table, closing its connection and freeing
+	 * its slot for another client to join. DroidToothInstance calls this when it
+	 * notices a connection was lost.
+	 * 
+	 * @param connection
+	 * @return false if the connection was not in this server's table.
+	 */
+	public boolean releaseConnection(Connection connection){
+		ConnectedPeer peer = connectedDevices.remove(connection);
+		if (peer == null){
+			return false;
+		}
+		peer.disconnected();
+		try {
+			connection.close();
+		} catch (IOException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to close connection with "+peer.getRemoteAddress());
+		}
+		connectionSlots.release();
+		return true;
+	}
+
 	/**
 	 * Start the server listening process.
 	 * @param params an array of Integers, we are interested in the first [0] which 
@@ -132,19 +250,24 @@ public class DroidToothServer extends AsyncTask<Integer, Void, Void> {
 			}
 		}
 		
-		Integer permittedConnections = params.length > 0 ? params[0] : null;
+		//without a number of connections, serve one client then stop
+		final boolean singleClient = params.length == 0 || params[0] == null;
+		permittedConnections = singleClient ? 1 : Math.max(1, Math.min(params[0], MAX_CONNECTIONS));
+		connectionSlots = new Semaphore(permittedConnections);
 		
 		//initialize server socket
 		initServerSocket();
 		
-		BluetoothSocket incomingDevice;
-		while (true){
-			while(droidToothSocket==null){ //wait until we have a socket 
-				; //do nothing
+		Connection incomingDevice;
+		boolean notifiedStarted = false;
+		while (isRunning){
+			if (!awaitServerSocket()){ //wait until we have a socket 
+				break;
 			}
 			
 			//notify any interested callbacks that the server started
-			if (serverStartedCallback!=null){
+			if (serverStartedCallback!=null && !notifiedStarted){
+				notifiedStarted = true;
 				dtinstance.getActivity().runOnUiThread( new Runnable() {
 					public void run() {
 						serverStartedCallback.callback();
@@ -152,56 +275,117 @@ public class DroidToothServer extends AsyncTask<Integer, Void, Void> {
 				});
 			}
 			
+			//with every slot taken, wait for a client to drop before accepting another
+			try {
+				connectionSlots.acquire();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (!isRunning){
+				break;
+			}
+			
 			try {
 				//block this thread until some device decides to connect
 				incomingDevice = droidToothSocket.accept();
 			} catch (IOException e) {
+				connectionSlots.release();
 				break;
 			}
 			
 			//if some connection went through
-			if (incomingDevice !=null){
-				//issue a callback to those interested in this new device
-				if (newConnection !=null){
-					
-					DroidToothInstance.get().getActivity().runOnUiThread( new RunnableCallback(incomingDevice) {
-						@Override
-						public void run() {
-							newConnection.callback(o);
-						}
-					});
-					
-				}
-				
-				/*
-				if (permittedConnections==null){ //only 1 device pairing
-					shutdownServer();
-					break;
-				} else if (connectedDevices.size() == permittedConnections){
-					
-					shutdownServer();
-					isRunning = false;
-					break;
-				}
-				*/
-				
-				shutdownServer();
-				isRunning = false;
-				wasRunning = true;
-				break;
+			if (incomingDevice ==null){
+				connectionSlots.release();
+				continue;
 			}
+			
+			//the handshake happens off this thread, so that a client taking its time
+			//over it doesn't keep the ones after it from joining
+			final Connection joining = incomingDevice;
+			dtinstance.getConnectExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					join(joining, singleClient);
+				}
+			});
 		}
 		
+		isRunning = false;
+		wasRunning = true;
 		return null; //aka Void
 	}
 
 	/**
-	 * Shutdown the server and "renew" the socket for next use.
+	 * Agree with a client that just connected on how to talk before anyone gets to use
+	 * the connection, then add it to the table. The handshake reads with no timeout of its
+	 * own, so a watchdog closes the connection if the client does not finish it in time.
+	 * Either way the client fails to join, its slot is freed.
+	 * 
+	 * @param connection holding one of the slots
+	 * @param singleClient whether to stop serving once the client joined
+	 */
+	private void join(final Connection connection, boolean singleClient){
+		ScheduledFuture<?> watchdog = DTFuture.getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				Log.d(Constants.DEBUG_DROIDTOOTH, "Incoming client did not complete the handshake within "+handshakeTimeoutMillis+"ms");
+				try {
+					connection.close();
+				} catch (IOException ignored) { }
+			}
+		}, handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+		
+		boolean joined = false;
+		try {
+			DroidToothInstance.get().negotiateSession(connection);
+			joined = watchdog.cancel(false); //too late if the watchdog already closed it
+		} catch (IOException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Handshake with incoming client failed: "+e);
+		} finally {
+			watchdog.cancel(false);
+			if (!joined){
+				try {
+					connection.close();
+				} catch (IOException ignored) { }
+				connectionSlots.release();
+			}
+		}
+		if (!joined){
+			return;
+		}
+		connectedDevices.put(connection, new ConnectedPeer(connection));
+		
+		//issue a callback to those interested in this new device
+		if (newConnection !=null){
+			
+			DroidToothInstance.get().getActivity().runOnUiThread( new RunnableCallback(connection) {
+				@Override
+				public void run() {
+					newConnection.callback(o);
+				}
+			});
+			
+		}
+		
+		if (singleClient){ //only 1 device pairing
+			shutdownServer();
+		}
+	}
+
+	/**
+	 * Shutdown the server and "renew" the socket for next use. Clients already
+	 * connected stay connected.
 	 */
 	public void shutdownServer(){
 		revertDeviceName();
 		closeServer();
 		droidToothSocket = null;
+		isRunning = false;
+		//wake the server up if it waits for a socket or a free slot
+		CountDownLatch oldSocketReady = socketReady;
+		socketReady = new CountDownLatch(1);
+		oldSocketReady.countDown();
+		connectionSlots.release();
 	}
 	
 	public void restartServer(){
@@ -214,12 +398,17 @@ public class DroidToothServer extends AsyncTask<Integer, Void, Void> {
 	}
 	
 	private void closeServer(){
+		ConnectionAcceptor socket = droidToothSocket;
+		if (socket == null){
+			isRunning = false;
+			return;
+		}
 		try {
-			droidToothSocket.close();
+			socket.close();
 			//change back the device name to what it was originally, if set at all
 			isRunning = false; //after name change we can conclude that we're done
 		} catch (IOException e) {
-			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to terminate BluetoothServerSocket from listening server!");
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to terminate listening socket from listening server!");
 		}
 	}
 	
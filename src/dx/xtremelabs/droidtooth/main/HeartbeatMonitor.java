@@ -0,0 +1,235 @@
+package dx.xtremelabs.droidtooth.main;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.messaging.MessageWriter;
+import dx.xtremelabs.droidtooth.runners.ListenForMessageRunner;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Tells whether the peers we are listening to are still there without asking the radio.
+ * Every interval, each monitored connection that sent nothing since the last interval
+ * gets an empty message, a heartbeat, so a quiet peer still hears from us; and a peer
+ * we listen to and heard nothing from, heartbeats included, for missThreshold intervals
+ * is dead. Its connection is then closed, which makes its listener report it lost.
+ *
+ * Only connections whose session handshake agreed on heartbeats are monitored, so a
+ * peer is never expected to send heartbeats it did not offer.
+ *
+ * Whether a device is alive is then just how long ago its connection last heard from it.
+ */
+public class HeartbeatMonitor {
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 2000;
+	public static final int DEFAULT_MISS_THRESHOLD = 3;
+
+	private static final byte[] HEARTBEAT = new byte[0];
+
+	private final DroidToothInstance instance;
+	private final ConcurrentHashMap<Connection, Peer> peers = new ConcurrentHashMap<Connection, Peer>();
+	private final ConcurrentHashMap<String, Peer> peersByAddress = new ConcurrentHashMap<String, Peer>();
+
+	private volatile long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+	private volatile int missThreshold = DEFAULT_MISS_THRESHOLD;
+	private DTCallback deadPeerCallback;
+
+	//guarded by this
+	private ScheduledFuture<?> ticker;
+	private long deadPeers = 0;
+
+	HeartbeatMonitor(DroidToothInstance instance){
+		this.instance = instance;
+	}
+
+	/**
+	 * Start exchanging heartbeats on a connection, or change its listener.
+	 * @param connection
+	 * @param listener the connection's listener, which notes when the peer was last heard from;
+	 * 			null to only send heartbeats, with nobody reading what the peer sends.
+	 */
+	public void monitor(Connection connection, ListenForMessageRunner listener){
+		Peer peer = new Peer(connection, listener);
+		Peer previous = peers.put(connection, peer);
+		String address = connection.getRemoteAddress();
+		if (address != null){
+			//only peers we listen to can tell whether the device is alive
+			if (listener != null){
+				peersByAddress.put(address, peer);
+			} else if (previous != null){
+				peersByAddress.remove(address, previous);
+			}
+		}
+		startTicking();
+	}
+
+	public void stopMonitoring(Connection connection){
+		Peer peer = peers.remove(connection);
+		if (peer != null && connection.getRemoteAddress() != null){
+			peersByAddress.remove(connection.getRemoteAddress(), peer);
+		}
+		if (peers.isEmpty()){
+			stopTicking();
+		}
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @return whether a connection to the device heard from it within the miss threshold;
+	 * 			false if we have no monitored connection to it.
+	 */
+	public boolean isAlive(String address){
+		long silent = getMillisSinceSeen(address);
+		return silent >= 0 && silent <= intervalMillis * missThreshold;
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @return how long ago the device was last heard from, -1 if we have no monitored connection to it
+	 */
+	public long getMillisSinceSeen(String address){
+		Peer peer = address == null ? null : peersByAddress.get(address);
+		if (peer == null){
+			return -1;
+		}
+		return SystemClock.elapsedRealtime() - peer.listener.getLastReadTime();
+	}
+
+	/**
+	 * @param intervalMillis how often heartbeats are sent and peers checked on
+	 * @param missThreshold how many intervals a peer may stay silent before it is dead
+	 */
+	public void setInterval(long intervalMillis, int missThreshold){
+		this.intervalMillis = intervalMillis;
+		this.missThreshold = missThreshold;
+		synchronized (this) {
+			if (ticker != null){
+				stopTicking();
+				startTicking();
+			}
+		}
+	}
+
+	public long getInterval() {
+		return intervalMillis;
+	}
+
+	public int getMissThreshold() {
+		return missThreshold;
+	}
+
+	/**
+	 * @param deadPeerCallback called with the Connection of a peer gone silent, before it is closed.
+	 */
+	public void setDeadPeerCallback(DTCallback deadPeerCallback) {
+		this.deadPeerCallback = deadPeerCallback;
+	}
+
+	/**
+	 * @return how many peers were declared dead
+	 */
+	public synchronized long getDeadPeers() {
+		return deadPeers;
+	}
+
+	public int getMonitoredConnections() {
+		return peers.size();
+	}
+
+	/**
+	 * @param connection
+	 * @return the writer heartbeats go out through, the connection's own unless overridden;
+	 * 			null if the connection can't be written to.
+	 */
+	MessageWriter getMessageWriter(Connection connection){
+		return instance.getMessageWriter(connection);
+	}
+
+	private synchronized void startTicking(){
+		if (ticker == null){
+			ticker = DTFuture.getTimer().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					tick();
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void stopTicking(){
+		if (ticker != null){
+			ticker.cancel(false);
+			ticker = null;
+		}
+	}
+
+	void tick(){
+		long now = SystemClock.elapsedRealtime();
+		long deadline = intervalMillis * missThreshold;
+		for (Peer peer : peers.values()){
+			if (peer.listener != null && now - peer.listener.getLastReadTime() > deadline){
+				dead(peer);
+			} else {
+				peer.beat();
+			}
+		}
+	}
+
+	private void dead(Peer peer){
+		if (peers.remove(peer.connection) == null){
+			return; //stopped monitoring in the meantime
+		}
+		if (peer.connection.getRemoteAddress() != null){
+			peersByAddress.remove(peer.connection.getRemoteAddress(), peer);
+		}
+		synchronized (this) {
+			deadPeers++;
+		}
+		Log.d(Constants.DEBUG_DROIDTOOTH, "Nothing heard from "+peer.connection+" in "+(intervalMillis * missThreshold)+"ms, closing it");
+
+		if (deadPeerCallback != null){
+			deadPeerCallback.callback(peer.connection);
+		}
+		try {
+			peer.connection.close(); //its listener stops and reports it lost
+		} catch (IOException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to close dead connection: "+e);
+		}
+	}
+
+	private class Peer {
+
+		final Connection connection;
+		final ListenForMessageRunner listener;
+		//only touched by the timer thread
+		long messagesSent = 0;
+
+		Peer(Connection connection, ListenForMessageRunner listener){
+			this.connection = connection;
+			this.listener = listener;
+		}
+
+		//messages going out already tell the peer we're here, so only beat when there were none;
+		//nor when some are queued, which also keeps a full queue from blocking the timer thread
+		void beat(){
+			MessageWriter writer = getMessageWriter(connection);
+			if (writer == null){
+				stopMonitoring(connection); //can't be written to any more
+				return;
+			}
+			long sent = writer.getMessagesSent();
+			if (sent == messagesSent && writer.getQueuedMessages() == 0){
+				writer.send(HEARTBEAT);
+				sent++;
+			}
+			messagesSent = sent;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package dx.xtremelabs.droidtooth.main;
+
+import android.os.SystemClock;
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DefaultCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+
+/**
+ * Keeps discovery out of the way of connects and transfers. An inquiry scan takes
+ * most of the radio's time, so connecting during one takes far longer and transfers
+ * crawl. While any connect or transfer is active, discovery is paused, and a scan
+ * asked for in the meantime is held back; once the last one ends, the scan resumes.
+ *
+ * Also accounts for how long the radio spent in each mode.
+ */
+public class RadioCoordinator {
+
+	//activities that pause discovery
+	public static final int CONNECT = 0;
+	public static final int TRANSFER = 1;
+
+	//radio modes, a busier one takes precedence
+	public static final int IDLE = 0;
+	public static final int DISCOVERING = 1;
+	public static final int TRANSFERRING = 2;
+	public static final int CONNECTING = 3;
+
+	private static final String[] MODE_NAMES = {"idle", "discovering", "transferring", "connecting"};
+
+	private final DroidToothInstance instance;
+
+	//guarded by this
+	private final int[] active = new int[2];
+	private boolean discovering = false;
+	private boolean discoveryPaused = false;
+	//whether the pause cut a running scan short, and whether the next scan to start carries it on
+	private boolean scanInterrupted = false;
+	private boolean scanResuming = false;
+	private long pauses = 0;
+	private int mode = IDLE;
+	private long modeSince = SystemClock.elapsedRealtime();
+	private final long[] timeInMode = new long[4];
+
+	RadioCoordinator(DroidToothInstance instance){
+		this.instance = instance;
+	}
+
+	/**
+	 * A connect or transfer is starting, pause discovery if it's the first.
+	 * Every begin() must be followed by an end().
+	 * @param activity CONNECT or TRANSFER
+	 */
+	public void begin(int activity){
+		boolean pause;
+		synchronized (this) {
+			pause = !isBusy() && !discoveryPaused && (discovering || instance.isDiscovering());
+			active[activity]++;
+			if (pause){
+				discoveryPaused = true;
+				scanInterrupted = true;
+				pauses++;
+			}
+			switchMode();
+		}
+		if (pause){
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Pausing discovery while "+MODE_NAMES[getMode()]);
+			instance.cancelDiscovery();
+		}
+	}
+
+	/**
+	 * A connect or transfer ended, resume discovery if it was the last.
+	 * @param activity CONNECT or TRANSFER
+	 */
+	public void end(int activity){
+		boolean resume;
+		synchronized (this) {
+			if (active[activity] > 0){
+				active[activity]--;
+			}
+			resume = !isBusy() && discoveryPaused;
+			if (resume){
+				discoveryPaused = false;
+				//a scan asked for while busy is a new one, not a resumed one
+				scanResuming = scanInterrupted;
+				scanInterrupted = false;
+			}
+			switchMode();
+		}
+		if (resume){
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Resuming discovery");
+			if (instance.startDiscovery() != DroidToothInstance.DISCOVERY_STARTED){
+				synchronized (this) {
+					scanResuming = false; //no scan of ours is about to start
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hold an activity for as long as a future is running.
+	 * @param activity CONNECT or TRANSFER
+	 * @param future
+	 * @return the future
+	 */
+	public <T> DTFuture<T> during(final int activity, DTFuture<T> future){
+		begin(activity);
+		future.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				end(activity);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @return whether a connect or transfer is active
+	 */
+	public synchronized boolean isBusy(){
+		return active[CONNECT] > 0 || active[TRANSFER] > 0;
+	}
+
+	/**
+	 * @return whether discovery was stopped, or held back, until the radio is no longer busy
+	 */
+	public synchronized boolean isDiscoveryPaused(){
+		return discoveryPaused;
+	}
+
+	/**
+	 * Hold a scan asked for while busy back until the radio is free.
+	 * @return whether it was held back, false if the radio isn't busy and it can start now
+	 */
+	synchronized boolean deferDiscovery(){
+		if (!isBusy()){
+			return false;
+		}
+		discoveryPaused = true;
+		return true;
+	}
+
+	//discovery was stopped on purpose, so it isn't to be resumed
+	synchronized void discoveryStopped(){
+		discoveryPaused = false;
+		scanInterrupted = false;
+	}
+
+	/**
+	 * Called by the discovery state listener as a scan starts.
+	 * @return whether the scan carries on one paused for a connect or transfer, rather than
+	 * 			being a new one; the answer is only given once.
+	 */
+	public synchronized boolean takeScanResumed(){
+		boolean resumed = scanResuming;
+		scanResuming = false;
+		return resumed;
+	}
+
+	//called by the discovery state listener
+	public synchronized void discoveryStateChanged(boolean discovering){
+		this.discovering = discovering;
+		switchMode();
+	}
+
+	/**
+	 * @return IDLE, DISCOVERING, TRANSFERRING or CONNECTING
+	 */
+	public synchronized int getMode(){
+		return mode;
+	}
+
+	/**
+	 * @param mode IDLE, DISCOVERING, TRANSFERRING or CONNECTING
+	 * @return how long the radio has spent in the mode, in milliseconds
+	 */
+	public synchronized long getTimeInMode(int mode){
+		long time = timeInMode[mode];
+		if (mode == this.mode){
+			time += SystemClock.elapsedRealtime() - modeSince;
+		}
+		return time;
+	}
+
+	/**
+	 * @return how many times discovery was paused for a connect or transfer
+	 */
+	public synchronized long getPauses(){
+		return pauses;
+	}
+
+	//guarded by this
+	private void switchMode(){
+		int newMode = active[CONNECT] > 0 ? CONNECTING
+				: active[TRANSFER] > 0 ? TRANSFERRING
+				: discovering ? DISCOVERING : IDLE;
+		if (newMode != mode){
+			long now = SystemClock.elapsedRealtime();
+			timeInMode[mode] += now - modeSince;
+			modeSince = now;
+			mode = newMode;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder modes = new StringBuilder();
+		for (int i = 0; i < MODE_NAMES.length; i++){
+			modes.append(i == 0 ? "" : ", ").append(MODE_NAMES[i]).append(' ').append(getTimeInMode(i)).append("ms");
+		}
+		return MODE_NAMES[mode]+" ("+modes+"), discovery paused "+pauses+" times";
+	}
+}
@@ -0,0 +1,345 @@
+package dx.xtremelabs.droidtooth.main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.callbacks.DefaultCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Keeps watched devices connected: when a watched device's connection is lost it is
+ * reconnected, waiting longer after every failed attempt so that a device out of range
+ * isn't hammered with connects. The wait doubles from the base delay up to the cap,
+ * and is jittered so that devices that dropped together don't all retry together.
+ *
+ * A connection counts as lost once DroidToothInstance.connectionLost() is called for
+ * it, which its message listener and writer do when the link breaks.
+ */
+public class ReconnectManager {
+
+	//watch states
+	public static final int CONNECTED = 0;
+	public static final int RECONNECTING = 1;
+	public static final int GAVE_UP = 2;
+
+	public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+	public static final int DEFAULT_MAX_ATTEMPTS = 20;
+	//0 for no limit
+	public static final long DEFAULT_MAX_DOWNTIME_MILLIS = 0;
+	public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+
+	private static final String[] STATE_NAMES = {"connected", "reconnecting", "gave up"};
+
+	private final ConcurrentHashMap<FoundDevice, Watch> watches = new ConcurrentHashMap<FoundDevice, Watch>();
+	private final Random random = new Random();
+
+	private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+	private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private volatile long maxDowntimeMillis = DEFAULT_MAX_DOWNTIME_MILLIS;
+	private volatile long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+	private DTCallback reconnectedCallback;
+	private DTCallback gaveUpCallback;
+
+	/**
+	 * Start keeping a device connected. If it isn't connected right now, reconnecting
+	 * starts right away.
+	 * @param device
+	 * @param uuid the UUID to reconnect on
+	 * @return the watch, for its statistics
+	 */
+	public Watch watch(FoundDevice device, UUID uuid){
+		Watch watch = new Watch(device, uuid);
+		Watch previous = watches.put(device, watch);
+		if (previous != null){
+			previous.stop();
+		}
+		if (device.getConnection() == null){
+			watch.lost();
+		}
+		return watch;
+	}
+
+	/**
+	 * Stop reconnecting a device, its current connection is left alone.
+	 * @param device
+	 */
+	public void unwatch(FoundDevice device){
+		Watch watch = watches.remove(device);
+		if (watch != null){
+			watch.stop();
+		}
+	}
+
+	public Watch getWatch(FoundDevice device){
+		return watches.get(device);
+	}
+
+	public List<Watch> getWatches(){
+		return new ArrayList<Watch>(watches.values());
+	}
+
+	/**
+	 * Called when a connection is gone, starts reconnecting the watched device it belonged to.
+	 * @param connection
+	 */
+	public void connectionLost(Connection connection){
+		for (Watch watch : watches.values()){
+			if (connection.equals(watch.connection)){
+				watch.lost();
+			}
+		}
+	}
+
+	/**
+	 * How long to wait before the given attempt: the base delay doubled for every attempt
+	 * before it, capped, then jittered down by up to half, so never less than half of it.
+	 * @param attempt 0 for the first attempt after a loss
+	 */
+	long delayBefore(int attempt){
+		long delay = maxDelayMillis;
+		if (attempt < 30 && baseDelayMillis << attempt < maxDelayMillis){
+			delay = baseDelayMillis << attempt;
+		}
+		long half = delay / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (delay - half));
+		}
+	}
+
+	/**
+	 * @param baseDelayMillis wait before the first attempt after a loss
+	 * @param maxDelayMillis longest wait between attempts
+	 */
+	public void setBackoff(long baseDelayMillis, long maxDelayMillis){
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * When to give up on a device: after maxAttempts failed attempts in a row, or once it
+	 * has been down for maxDowntimeMillis, whichever comes first. 0 means no limit.
+	 * @param maxAttempts
+	 * @param maxDowntimeMillis
+	 */
+	public void setGiveUpPolicy(int maxAttempts, long maxDowntimeMillis){
+		this.maxAttempts = maxAttempts;
+		this.maxDowntimeMillis = maxDowntimeMillis;
+	}
+
+	public void setConnectTimeout(long connectTimeoutMillis){
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	/**
+	 * @param reconnectedCallback called with the FoundDevice once it is connected again,
+	 * 			its new connection is on the device. Listen for messages on it so that
+	 * 			losing it again is noticed too.
+	 */
+	public void setReconnectedCallback(DTCallback reconnectedCallback) {
+		this.reconnectedCallback = reconnectedCallback;
+	}
+
+	/**
+	 * @param gaveUpCallback called with the FoundDevice when it will no longer be reconnected.
+	 */
+	public void setGaveUpCallback(DTCallback gaveUpCallback) {
+		this.gaveUpCallback = gaveUpCallback;
+	}
+
+	/**
+	 * @return reconnects made across all watched devices
+	 */
+	public long getReconnects(){
+		long reconnects = 0;
+		for (Watch watch : watches.values()){
+			reconnects += watch.getReconnects();
+		}
+		return reconnects;
+	}
+
+	/**
+	 * @return time spent disconnected across all watched devices, in milliseconds
+	 */
+	public long getDowntimeMillis(){
+		long downtime = 0;
+		for (Watch watch : watches.values()){
+			downtime += watch.getDowntimeMillis();
+		}
+		return downtime;
+	}
+
+	/**
+	 * A watched device: its state, the attempt in progress and how it has fared.
+	 */
+	public class Watch {
+
+		private final FoundDevice device;
+		private final UUID uuid;
+
+		//guarded by this
+		private int state = CONNECTED;
+		private volatile Connection connection;
+		private int attempt = 0;
+		private long downSince = 0;
+		private long downtimeMillis = 0;
+		private long reconnects = 0;
+		private long failedAttempts = 0;
+		private ScheduledFuture<?> scheduled;
+		private DTFuture<Connection> connecting;
+		private boolean stopped = false;
+
+		Watch(FoundDevice device, UUID uuid){
+			this.device = device;
+			this.uuid = uuid;
+			this.connection = device.getConnection();
+		}
+
+		public FoundDevice getDevice() {
+			return device;
+		}
+
+		/**
+		 * @return CONNECTED, RECONNECTING or GAVE_UP
+		 */
+		public synchronized int getState() {
+			return state;
+		}
+
+		public synchronized long getReconnects() {
+			return reconnects;
+		}
+
+		public synchronized long getFailedAttempts() {
+			return failedAttempts;
+		}
+
+		/**
+		 * @return time spent disconnected so far, including the current outage
+		 */
+		public synchronized long getDowntimeMillis() {
+			return downtimeMillis + (state == RECONNECTING ? SystemClock.elapsedRealtime() - downSince : 0);
+		}
+
+		synchronized void lost(){
+			if (stopped || state != CONNECTED){
+				return; //already on it
+			}
+			closeQuietly(connection);
+			connection = null;
+			state = RECONNECTING;
+			attempt = 0;
+			downSince = SystemClock.elapsedRealtime();
+			scheduleAttempt();
+		}
+
+		//guarded by this
+		private void scheduleAttempt(){
+			long delay = delayBefore(attempt);
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Reconnecting to "+device.DEVICE_NAME+" in "+delay+"ms, attempt "+(attempt+1));
+			scheduled = DTFuture.getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					attempt();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void attempt(){
+			final DTFuture<Connection> future;
+			synchronized (this) {
+				if (stopped){
+					return;
+				}
+				future = DroidTooth.connect(device, uuid, connectTimeoutMillis);
+				connecting = future;
+			}
+			future.addListener(new DefaultCallback() {
+				@Override
+				public void callback(Object o) {
+					attemptDone(future);
+				}
+			});
+		}
+
+		private void attemptDone(DTFuture<Connection> future){
+			DTCallback toCall = null;
+			synchronized (this) {
+				connecting = null;
+				if (stopped){
+					return;
+				}
+				if (future.isSucceeded()){
+					try {
+						connection = future.get();
+					} catch (Exception e) {
+						connection = device.getConnection(); //succeeded, can't happen
+					}
+					state = CONNECTED;
+					reconnects++;
+					downtimeMillis += SystemClock.elapsedRealtime() - downSince;
+					toCall = reconnectedCallback;
+				} else {
+					failedAttempts++;
+					attempt++;
+					long down = SystemClock.elapsedRealtime() - downSince;
+					if ((maxAttempts > 0 && attempt >= maxAttempts) || (maxDowntimeMillis > 0 && down >= maxDowntimeMillis)){
+						Log.d(Constants.DEBUG_DROIDTOOTH, "Giving up on "+device.DEVICE_NAME+" after "+attempt+" attempts");
+						state = GAVE_UP;
+						downtimeMillis += down;
+						toCall = gaveUpCallback;
+					} else {
+						scheduleAttempt();
+					}
+				}
+			}
+			if (toCall != null){
+				toCall.callback(device);
+			}
+		}
+
+		synchronized void stop(){
+			stopped = true;
+			if (scheduled != null){
+				scheduled.cancel(false);
+			}
+			if (connecting != null){
+				connecting.cancel(true);
+			}
+			if (state == RECONNECTING){
+				downtimeMillis += SystemClock.elapsedRealtime() - downSince;
+				state = GAVE_UP;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return device.DEVICE_NAME+": "+STATE_NAMES[getState()]
+					+", "+getReconnects()+" reconnects, down "+getDowntimeMillis()+"ms";
+		}
+	}
+
+	private static void closeQuietly(Connection connection){
+		if (connection == null){
+			return;
+		}
+		try {
+			connection.close();
+		} catch (Exception e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to close lost connection: "+e);
+		}
+	}
+}
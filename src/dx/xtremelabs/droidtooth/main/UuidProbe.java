@@ -0,0 +1,224 @@
+package dx.xtremelabs.droidtooth.main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DefaultCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Connects to a device that may be listening on any of several UUIDs, without trying
+ * them one after the other. Attempts are started a stagger apart, or as soon as an
+ * earlier one fails, with no more than parallelism of them in flight. The first to
+ * connect wins and the rest are cancelled, closing their connections, so a host on
+ * the fourth UUID is joined in about one connect's time rather than four.
+ *
+ * A parallelism of 1 with a stagger of 0 tries the UUIDs strictly in turn.
+ */
+public class UuidProbe {
+
+	public static final int DEFAULT_PARALLELISM = 2;
+	//long enough for the likely UUID to connect without competing, short enough not to matter if it doesn't
+	public static final long DEFAULT_STAGGER_MILLIS = 300;
+
+	private final FoundDevice device;
+	private final List<UUID> uuids;
+	private final int parallelism;
+	private final long staggerMillis;
+	private final long timeoutMillis;
+
+	private final DTFuture<Connection> result = new DTFuture<Connection>();
+
+	//guarded by this
+	private final List<DTFuture<Connection>> attempts = new ArrayList<DTFuture<Connection>>();
+	private int inFlight = 0;
+	private int failed = 0;
+	private Throwable lastFailure;
+	private ScheduledFuture<?> stagger;
+	private UUID winningUuid;
+
+	public UuidProbe(FoundDevice device, List<UUID> uuids){
+		this(device, uuids, DEFAULT_PARALLELISM, DEFAULT_STAGGER_MILLIS, DroidToothClient.DEFAULT_CONNECTION_WAIT_MILLIS);
+	}
+
+	/**
+	 * @param device
+	 * @param uuids in order of preference, the first is tried first
+	 * @param parallelism most attempts to have in flight at once
+	 * @param staggerMillis how long to give an attempt before starting the next alongside it
+	 * @param timeoutMillis how long to give each attempt
+	 */
+	public UuidProbe(FoundDevice device, List<UUID> uuids, int parallelism, long staggerMillis, long timeoutMillis){
+		if (uuids.isEmpty()){
+			throw new IllegalArgumentException("No UUIDs to probe");
+		}
+		this.device = device;
+		this.uuids = new ArrayList<UUID>(uuids);
+		this.parallelism = Math.max(1, parallelism);
+		this.staggerMillis = staggerMillis;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Start probing.
+	 * @return a future completed with the first connection made, or failed like the last
+	 * 			attempt if none connected. Cancelling it cancels every attempt.
+	 */
+	public DTFuture<Connection> start(){
+		result.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				finished();
+			}
+		});
+		launchNext();
+		return result;
+	}
+
+	/**
+	 * @return the UUID the connection was made on, null until one was.
+	 */
+	public synchronized UUID getWinningUuid() {
+		return winningUuid;
+	}
+
+	/**
+	 * @return how many attempts were started, at most the number of UUIDs.
+	 */
+	public synchronized int getAttemptsStarted() {
+		return attempts.size();
+	}
+
+	private void launchNext(){
+		final UUID uuid;
+		synchronized (this) {
+			if (stagger != null){
+				stagger.cancel(false);
+				stagger = null;
+			}
+			if (result.isDone() || attempts.size() == uuids.size() || inFlight >= parallelism){
+				return;
+			}
+			uuid = uuids.get(attempts.size());
+			inFlight++;
+		}
+
+		//each attempt connects on a copy of the device, so that only the winner's connection is ever set on it
+		FoundDevice attemptDevice = new FoundDevice(device.DEVICE_NAME, device.DEVICE, device.DEVICE_FOUND_TIME);
+		final DTFuture<Connection> attempt = DroidTooth.connect(attemptDevice, uuid, timeoutMillis);
+		boolean more;
+		synchronized (this) {
+			attempts.add(attempt);
+			more = attempts.size() < uuids.size();
+			if (more && staggerMillis > 0){
+				stagger = DTFuture.getTimer().schedule(new Runnable() {
+					@Override
+					public void run() {
+						launchNext();
+					}
+				}, staggerMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		attempt.addListener(new DefaultCallback() {
+			@Override
+			public void callback(Object o) {
+				attemptDone(attempt, uuid);
+			}
+		});
+		if (result.isDone()){
+			attempt.cancel(true); //finished while this one was being started
+			return;
+		}
+		if (more && staggerMillis <= 0){
+			launchNext();
+		}
+	}
+
+	private void attemptDone(DTFuture<Connection> attempt, UUID uuid){
+		if (attempt.isSucceeded()){
+			Connection connection;
+			try {
+				connection = attempt.get();
+			} catch (Exception e) {
+				return; //can't happen, it succeeded
+			}
+			boolean won;
+			synchronized (this) {
+				won = winningUuid == null;
+				if (won){
+					winningUuid = uuid;
+				}
+			}
+			//another attempt got there first, or the caller gave up
+			if (won && result.set(connection)){
+				device.setConnection(connection);
+			} else {
+				closeQuietly(connection);
+			}
+			return;
+		}
+
+		boolean allFailed;
+		Throwable failure;
+		synchronized (this) {
+			inFlight--;
+			failed++;
+			if (!attempt.isCancelled()){
+				lastFailure = attempt.getFailure();
+			}
+			allFailed = failed == uuids.size();
+			failure = lastFailure;
+		}
+		Log.d(Constants.DEBUG_DROIDTOOTH, "Probing "+device.DEVICE_NAME+" on "+uuid+" failed: "+attempt.getFailure());
+		if (allFailed){
+			result.fail(failure != null ? failure : new CancellationException());
+		} else {
+			launchNext(); //a failure frees its slot right away, no need to wait out the stagger
+		}
+	}
+
+	//cancel what is still in flight once there is a winner, or once the caller gave up
+	private void finished(){
+		List<DTFuture<Connection>> toCancel;
+		synchronized (this) {
+			if (stagger != null){
+				stagger.cancel(false);
+				stagger = null;
+			}
+			toCancel = new ArrayList<DTFuture<Connection>>(attempts);
+		}
+		Connection kept = result.isSucceeded() ? valueOf(result) : null;
+		for (DTFuture<Connection> attempt : toCancel){
+			if (!attempt.cancel(true) && attempt.isSucceeded() && valueOf(attempt) != kept){
+				closeQuietly(valueOf(attempt));
+			}
+		}
+	}
+
+	private static Connection valueOf(DTFuture<Connection> future){
+		try {
+			return future.get();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void closeQuietly(Connection connection){
+		if (connection == null){
+			return;
+		}
+		try {
+			connection.close();
+		} catch (Exception e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to close unused connection: "+e);
+		}
+	}
+}
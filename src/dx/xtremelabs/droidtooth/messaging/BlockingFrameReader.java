@@ -0,0 +1,78 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Pulls one frame at a time off a stream, for protocols that wait for a particular
+ * answer rather than reacting to whatever arrives. Reads go into pooled buffers and
+ * frames are handed out as slices of them, like ListenForMessageRunner does.
+ */
+public class BlockingFrameReader implements FrameHandler {
+
+	public static final int BUFFER_SIZE = 1024;
+
+	private final InputStream in;
+	private final FrameDecoder decoder;
+	private final BufferPool bufferPool;
+	private PooledBuffer readBuffer;
+	//frames decoded from the last read and not handed out yet
+	private final LinkedList<ReceivedMessage> ready = new LinkedList<ReceivedMessage>();
+
+	public BlockingFrameReader(InputStream in, FrameCodec frameCodec){
+		this(in, frameCodec, BufferPool.getDefault());
+	}
+
+	public BlockingFrameReader(InputStream in, FrameCodec frameCodec, BufferPool bufferPool){
+		this.in = in;
+		this.decoder = frameCodec.newDecoder();
+		this.bufferPool = bufferPool;
+		this.readBuffer = bufferPool.acquire(BUFFER_SIZE);
+	}
+
+	/**
+	 * Block until the next frame arrives.
+	 * @return the frame, which the caller must release()
+	 * @throws EOFException if the stream ends first
+	 */
+	public ReceivedMessage next() throws IOException {
+		while (ready.isEmpty()){
+			if (readBuffer.refCount() > 1){
+				//frames handed out earlier still point into it
+				readBuffer.release();
+				readBuffer = bufferPool.acquire(BUFFER_SIZE);
+			}
+			int bytesRead = in.read(readBuffer.array(), 0, readBuffer.capacity());
+			if (bytesRead == -1){
+				throw new EOFException("Stream ended while waiting for a frame");
+			}
+			ByteBuffer bytes = readBuffer.buffer();
+			bytes.clear();
+			bytes.limit(bytesRead);
+			decoder.decode(readBuffer, this);
+		}
+		return ready.removeFirst();
+	}
+
+	@Override
+	public void frameDecoded(ByteBuffer payload, PooledBuffer owner) {
+		ready.add(new ReceivedMessage(payload, owner));
+	}
+
+	/**
+	 * Give back the buffers held by this reader. The stream itself is left open.
+	 */
+	public void close(){
+		while (!ready.isEmpty()){
+			ready.removeFirst().release();
+		}
+		decoder.reset();
+		if (readBuffer != null){
+			readBuffer.release();
+			readBuffer = null;
+		}
+	}
+}
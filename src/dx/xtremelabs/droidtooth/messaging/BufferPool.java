@@ -0,0 +1,104 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+/**
+ * A pool of byte buffers shared by all socket readers, so that a steady stream of
+ * incoming messages does not keep allocating (and garbage collecting) byte arrays.
+ * 
+ * Buffers come in power-of-two size classes from MIN_BUFFER_SIZE to MAX_BUFFER_SIZE.
+ * A request is served from the smallest class that fits; requests bigger than the largest
+ * class get a one-off buffer which is left to the garbage collector when released. Every
+ * class keeps at most a fixed number of free buffers, anything beyond that is dropped.
+ */
+public class BufferPool {
+
+	public static final int MIN_BUFFER_SIZE = 256;
+	public static final int MAX_BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_BUFFERS_PER_CLASS = 16;
+
+	private static BufferPool defaultPool = new BufferPool(DEFAULT_BUFFERS_PER_CLASS);
+
+	//free lists, one stack per size class
+	private final PooledBuffer[][] free;
+	private final int[] freeCount;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	public BufferPool(int buffersPerClass){
+		int classes = sizeClass(MAX_BUFFER_SIZE) + 1;
+		free = new PooledBuffer[classes][buffersPerClass];
+		freeCount = new int[classes];
+	}
+
+	/**
+	 * @return the pool used by DroidTooth's listeners.
+	 */
+	public static BufferPool getDefault(){
+		return defaultPool;
+	}
+
+	/**
+	 * Hand out a buffer of at least minCapacity bytes, holding one reference
+	 * which the caller gives back with PooledBuffer.release().
+	 * @param minCapacity
+	 * @return a cleared buffer
+	 */
+	public PooledBuffer acquire(int minCapacity){
+		if (minCapacity > MAX_BUFFER_SIZE){
+			synchronized (this) {
+				misses++;
+			}
+			return new PooledBuffer(null, new byte[minCapacity]);
+		}
+
+		int sizeClass = sizeClass(minCapacity);
+		PooledBuffer buffer = null;
+		synchronized (this) {
+			if (freeCount[sizeClass] > 0){
+				buffer = free[sizeClass][--freeCount[sizeClass]];
+				free[sizeClass][freeCount[sizeClass]] = null;
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+
+		if (buffer == null){
+			return new PooledBuffer(this, new byte[MIN_BUFFER_SIZE << sizeClass]);
+		}
+		buffer.reuse();
+		return buffer;
+	}
+
+	/**
+	 * Called by a PooledBuffer once its last reference is released.
+	 */
+	synchronized void recycle(PooledBuffer buffer){
+		int sizeClass = sizeClass(buffer.capacity());
+		if (freeCount[sizeClass] < free[sizeClass].length){
+			free[sizeClass][freeCount[sizeClass]++] = buffer;
+		}
+	}
+
+	/**
+	 * @return how many acquire() calls were served by a recycled buffer.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return how many acquire() calls had to allocate a new buffer.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private static int sizeClass(int capacity){
+		int sizeClass = 0;
+		while ((MIN_BUFFER_SIZE << sizeClass) < capacity){
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+}
@@ -0,0 +1,177 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Receives a payload streamed by a BulkSender into a file named after the transfer id,
+ * in the directory given.
+ *
+ * Chunks are written straight to "id.part" as they arrive, and acknowledged once they
+ * have been forced to storage; that file's length is the checkpoint a resumed transfer
+ * carries on from. Once the sender is done the part file is renamed to the id.
+ */
+public class BulkReceiver {
+
+	public static final String PART_SUFFIX = ".part";
+	//chunks written between acknowledgements
+	public static final int DEFAULT_ACK_INTERVAL = 4;
+
+	private final Connection connection;
+	private final FrameCodec frameCodec;
+	private final File directory;
+	private final int ackInterval;
+
+	private volatile long bytesReceived = 0;
+	private volatile long resumedFrom = 0;
+
+	public BulkReceiver(Connection connection, FrameCodec frameCodec, File directory){
+		this(connection, frameCodec, directory, DEFAULT_ACK_INTERVAL);
+	}
+
+	/**
+	 * @param connection a connected connection nothing else uses during the transfer
+	 * @param frameCodec codec both ends frame messages with
+	 * @param directory where payloads and their part files are kept
+	 * @param ackInterval how many chunks to write before acknowledging them,
+	 * 			must be below the sender's window
+	 */
+	public BulkReceiver(Connection connection, FrameCodec frameCodec, File directory, int ackInterval){
+		this.connection = connection;
+		this.frameCodec = frameCodec;
+		this.directory = directory;
+		this.ackInterval = ackInterval;
+	}
+
+	/**
+	 * Wait for the sender's offer on a thread of its own and receive the payload.
+	 * @return a future completed with the stored file
+	 */
+	public DTFuture<File> receive(){
+		final DTFuture<File> future = new DTFuture<File>();
+		Thread receiverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				BlockingFrameReader reader = null;
+				try {
+					reader = new BlockingFrameReader(connection.getInputStream(), frameCodec);
+					future.set(transfer(reader));
+				} catch (IOException e) {
+					Log.d(Constants.DEBUG_DROIDTOOTH, "Bulk transfer stopped at "+bytesReceived+": "+e);
+					future.fail(e);
+				} finally {
+					if (reader != null){
+						reader.close();
+					}
+				}
+			}
+		}, "DroidTooth-bulk-receiver");
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+		return future;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return the offset the current transfer was resumed at, zero if it started from scratch.
+	 */
+	public long getResumedFrom() {
+		return resumedFrom;
+	}
+
+	private File transfer(BlockingFrameReader reader) throws IOException {
+		OutputStream out = connection.getOutputStream();
+
+		ByteBuffer offer = BulkSender.expect(reader, BulkSender.OFFER);
+		long length = offer.getLong();
+		String transferId = new String(offer.array(), offer.position(), offer.remaining(), "UTF-8");
+		if (length < 0 || !isValidId(transferId)){
+			send(out, BulkSender.ACCEPT, -1);
+			throw new IOException("Refused transfer "+transferId);
+		}
+
+		File part = new File(directory, transferId + PART_SUFFIX);
+		RandomAccessFile file = new RandomAccessFile(part, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			long offset = file.length();
+			if (offset > length){
+				//left over from a different payload under the same id
+				file.setLength(0);
+				offset = 0;
+			}
+			resumedFrom = offset;
+			bytesReceived = offset;
+			send(out, BulkSender.ACCEPT, offset);
+
+			int unacknowledged = 0;
+			while (true){
+				ReceivedMessage message = BulkSender.nextFrame(reader);
+				try {
+					ByteBuffer payload = message.getPayload();
+					byte type = payload.hasRemaining() ? payload.get() : -1;
+					if (type == BulkSender.DONE){
+						break;
+					} else if (type != BulkSender.CHUNK || payload.remaining() < 8){
+						throw new MalformedFrameException("Expected a chunk of "+transferId);
+					}
+					long chunkOffset = payload.getLong();
+					if (chunkOffset != bytesReceived || bytesReceived + payload.remaining() > length){
+						throw new MalformedFrameException("Chunk at "+chunkOffset+" does not follow "+bytesReceived+" of "+length);
+					}
+					while (payload.hasRemaining()){
+						bytesReceived += channel.write(payload, bytesReceived);
+					}
+				} finally {
+					message.release();
+				}
+
+				if (++unacknowledged == ackInterval || bytesReceived == length){
+					channel.force(false);
+					send(out, BulkSender.ACK, bytesReceived);
+					unacknowledged = 0;
+				}
+			}
+			if (bytesReceived != length){
+				throw new MalformedFrameException("Transfer "+transferId+" done at "+bytesReceived+" of "+length+" bytes");
+			}
+		} finally {
+			file.close();
+		}
+
+		File complete = new File(directory, transferId);
+		if (complete.exists() && !complete.delete() || !part.renameTo(complete)){
+			throw new IOException("Unable to store "+complete);
+		}
+		byte[] done = {BulkSender.DONE};
+		frameCodec.encode(done, 0, done.length, out);
+		out.flush();
+		return complete;
+	}
+
+	private void send(OutputStream out, byte type, long offset) throws IOException {
+		ByteBuffer message = ByteBuffer.allocate(1 + 8);
+		message.put(type).putLong(offset);
+		frameCodec.encode(message.array(), 0, message.capacity(), out);
+		out.flush();
+	}
+
+	//ids become file names, keep them inside the directory
+	private static boolean isValidId(String transferId){
+		return transferId.length() > 0 && !transferId.startsWith(".")
+				&& transferId.indexOf('/') == -1 && transferId.indexOf(File.separatorChar) == -1;
+	}
+}
@@ -0,0 +1,281 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Streams a large payload to a BulkReceiver on the other end of a connection, a chunk
+ * at a time, so that neither end ever holds the whole payload in memory. The connection
+ * is dedicated to the transfer while it runs.
+ *
+ * Every transfer is named by an id. The sender offers the id and total length, and the
+ * receiver accepts with the offset it already holds for that id, zero for a new transfer.
+ * If the link drops, sending the same id again over a new connection carries on from
+ * the last chunk the receiver acknowledged instead of starting over.
+ *
+ * Frames are a type byte followed by:
+ * OFFER [length, 8 bytes][id, UTF-8]; ACCEPT [offset, 8 bytes, negative to refuse];
+ * CHUNK [offset, 8 bytes][data]; ACK [offset received up to, 8 bytes]; DONE, sent by the
+ * sender after the last chunk and echoed by the receiver once the payload is stored.
+ */
+public class BulkSender {
+
+	static final byte OFFER = 0;
+	static final byte ACCEPT = 1;
+	static final byte CHUNK = 2;
+	static final byte ACK = 3;
+	static final byte DONE = 4;
+
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+	//chunks that may be sent ahead of the receiver's acknowledgements
+	public static final int DEFAULT_WINDOW_CHUNKS = 16;
+
+	private static final int CHUNK_HEADER_SIZE = 1 + 8;
+
+	private final Connection connection;
+	private final FrameCodec frameCodec;
+	private final int chunkSize;
+	private final int windowChunks;
+	private DTCallback progressCallback;
+
+	private volatile long bytesAcknowledged = 0;
+	private volatile long resumedFrom = 0;
+
+	public BulkSender(Connection connection, FrameCodec frameCodec){
+		this(connection, frameCodec, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW_CHUNKS);
+	}
+
+	/**
+	 * @param connection a connected connection nothing else uses during the transfer
+	 * @param frameCodec codec both ends frame messages with
+	 * @param chunkSize largest number of payload bytes per chunk
+	 * @param windowChunks how many chunks may be unacknowledged at once
+	 */
+	public BulkSender(Connection connection, FrameCodec frameCodec, int chunkSize, int windowChunks){
+		this.connection = connection;
+		this.frameCodec = frameCodec;
+		this.chunkSize = chunkSize;
+		this.windowChunks = windowChunks;
+	}
+
+	/**
+	 * Send the whole contents of a file channel, from its start.
+	 * @param transferId names the transfer on the receiver, the same id resumes it
+	 * @param source
+	 * @return a future completed with the payload's length once the receiver stored all of it
+	 */
+	public DTFuture<Long> send(String transferId, final FileChannel source){
+		final DTFuture<Long> future = new DTFuture<Long>();
+		try {
+			start(transferId, source.size(), new ChunkSource() {
+				private long position = 0;
+
+				@Override
+				public void skipTo(long offset) {
+					position = offset;
+				}
+
+				@Override
+				public int read(byte[] dst, int offset, int length) throws IOException {
+					int bytesRead = source.read(ByteBuffer.wrap(dst, offset, length), position);
+					if (bytesRead > 0){
+						position += bytesRead;
+					}
+					return bytesRead;
+				}
+			}, future);
+		} catch (IOException e) {
+			future.fail(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Send length bytes read from a stream.
+	 * @param transferId names the transfer on the receiver, the same id resumes it
+	 * @param source positioned at the start of the payload, even when resuming;
+	 * 			it is skipped ahead to wherever the receiver left off.
+	 * @param length
+	 * @return a future completed with the payload's length once the receiver stored all of it
+	 */
+	public DTFuture<Long> send(String transferId, final InputStream source, long length){
+		DTFuture<Long> future = new DTFuture<Long>();
+		start(transferId, length, new ChunkSource() {
+			@Override
+			public void skipTo(long offset) throws IOException {
+				long remaining = offset;
+				while (remaining > 0){
+					long skipped = source.skip(remaining);
+					if (skipped <= 0){
+						//skip() may refuse to move, fall back to reading
+						if (source.read() == -1){
+							throw new IOException("Source ended before offset "+offset);
+						}
+						skipped = 1;
+					}
+					remaining -= skipped;
+				}
+			}
+
+			@Override
+			public int read(byte[] dst, int offset, int length) throws IOException {
+				return source.read(dst, offset, length);
+			}
+		}, future);
+		return future;
+	}
+
+	/**
+	 * @param progressCallback called with a Long, the bytes acknowledged so far, after
+	 * 			every acknowledgement. Called on the sending thread.
+	 */
+	public void setProgressCallback(DTCallback progressCallback) {
+		this.progressCallback = progressCallback;
+	}
+
+	public long getBytesAcknowledged() {
+		return bytesAcknowledged;
+	}
+
+	/**
+	 * @return the offset the current transfer was resumed at, zero if it started from scratch.
+	 */
+	public long getResumedFrom() {
+		return resumedFrom;
+	}
+
+	private void start(final String transferId, final long length, final ChunkSource source, final DTFuture<Long> future){
+		Thread senderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				BlockingFrameReader reader = null;
+				try {
+					reader = new BlockingFrameReader(connection.getInputStream(), frameCodec);
+					transfer(transferId, length, source, reader, future);
+					future.set(length);
+				} catch (IOException e) {
+					Log.d(Constants.DEBUG_DROIDTOOTH, "Bulk transfer "+transferId+" stopped at "+bytesAcknowledged+": "+e);
+					future.fail(e);
+				} finally {
+					if (reader != null){
+						reader.close();
+					}
+				}
+			}
+		}, "DroidTooth-bulk-sender");
+		senderThread.setDaemon(true);
+		senderThread.start();
+	}
+
+	private void transfer(String transferId, long length, ChunkSource source, BlockingFrameReader reader, DTFuture<Long> future) throws IOException {
+		OutputStream out = new BufferedOutputStream(connection.getOutputStream(), chunkSize + CHUNK_HEADER_SIZE + VarintFrameCodec.MAX_HEADER_SIZE);
+		byte[] chunk = new byte[CHUNK_HEADER_SIZE + chunkSize];
+
+		byte[] id = transferId.getBytes("UTF-8");
+		ByteBuffer offer = ByteBuffer.allocate(1 + 8 + id.length);
+		offer.put(OFFER).putLong(length).put(id);
+		frameCodec.encode(offer.array(), 0, offer.capacity(), out);
+		out.flush();
+
+		ByteBuffer accept = expect(reader, ACCEPT);
+		long offset = accept.getLong();
+		if (offset < 0 || offset > length){
+			throw new IOException("Receiver refused transfer "+transferId);
+		}
+		resumedFrom = offset;
+		bytesAcknowledged = offset;
+		source.skipTo(offset);
+
+		long sent = offset;
+		long window = (long) windowChunks * chunkSize;
+		while (bytesAcknowledged < length){
+			if (future.isCancelled()){
+				throw new IOException("Transfer cancelled");
+			}
+			if (sent < length && sent - bytesAcknowledged < window){
+				int toRead = (int) Math.min(chunkSize, length - sent);
+				int bytesRead = source.read(chunk, CHUNK_HEADER_SIZE, toRead);
+				if (bytesRead == -1){
+					throw new IOException("Source ended at "+sent+" of "+length+" bytes");
+				}
+				ByteBuffer header = ByteBuffer.wrap(chunk, 0, CHUNK_HEADER_SIZE);
+				header.put(CHUNK).putLong(sent);
+				frameCodec.encode(chunk, 0, CHUNK_HEADER_SIZE + bytesRead, out);
+				sent += bytesRead;
+				if (sent == length || sent - bytesAcknowledged >= window){
+					out.flush();
+				}
+			} else {
+				out.flush();
+				long acked = expect(reader, ACK).getLong();
+				if (acked < bytesAcknowledged || acked > sent){
+					throw new MalformedFrameException("Acknowledged "+acked+" with "+sent+" sent");
+				}
+				bytesAcknowledged = acked;
+				if (progressCallback != null){
+					progressCallback.callback(Long.valueOf(acked));
+				}
+			}
+		}
+
+		byte[] done = {DONE};
+		frameCodec.encode(done, 0, done.length, out);
+		out.flush();
+		expect(reader, DONE); //the receiver has the payload stored under its name
+	}
+
+	/**
+	 * Wait for a frame of the given type.
+	 * @return the frame's body as a copy positioned after its type
+	 */
+	static ByteBuffer expect(BlockingFrameReader reader, byte type) throws IOException {
+		ReceivedMessage message = nextFrame(reader);
+		try {
+			ByteBuffer payload = message.getPayload();
+			if (!payload.hasRemaining() || payload.get() != type){
+				throw new MalformedFrameException("Expected bulk transfer frame of type "+type);
+			}
+			ByteBuffer body = ByteBuffer.allocate(payload.remaining());
+			body.put(payload);
+			body.flip();
+			return body;
+		} finally {
+			message.release();
+		}
+	}
+
+	/**
+	 * Wait for the next frame that is not a heartbeat. The peer's heartbeats stop once
+	 * the transfer has the connection, but some may have been sent before.
+	 * @return the frame, which the caller must release()
+	 */
+	static ReceivedMessage nextFrame(BlockingFrameReader reader) throws IOException {
+		ReceivedMessage message = reader.next();
+		while (message.length() == 0){
+			message.release();
+			message = reader.next();
+		}
+		return message;
+	}
+
+	/**
+	 * Where chunks are read from, positioned once before the first read.
+	 */
+	private interface ChunkSource {
+
+		void skipTo(long offset) throws IOException;
+
+		int read(byte[] dst, int offset, int length) throws IOException;
+	}
+}
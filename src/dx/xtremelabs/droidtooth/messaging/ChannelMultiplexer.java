@@ -0,0 +1,586 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Carries any number of numbered logical channels over a single connection, since
+ * phones only allow a handful of RFCOMM links at a time. Both ends must wrap the
+ * connection in a ChannelMultiplexer; a channel comes into existence on either side
+ * the first time it is used, by getChannel() or by data arriving for it.
+ *
+ * Messages are cut into chunks of at most chunkSize bytes and the writer thread takes
+ * one chunk from every channel that has something to send per round, so a small control
+ * message never waits behind more than one chunk of a large transfer on another channel.
+ *
+ * Every channel has its own flow-control window: a sender may only have window bytes
+ * that the receiving application has not consumed yet in flight on a channel. Messages
+ * count as consumed once polled from the channel, or once its callback returns. A channel
+ * nobody reads from therefore stalls alone instead of stalling the connection. Messages
+ * bigger than the window still get through: all but their last window bytes are handed
+ * back as soon as they arrive, since the message has to be assembled anyway.
+ *
+ * Every frame's payload starts with the channel id (varint) and a type byte:
+ * DATA_FIRST carries the message length (varint) and the first chunk, DATA_MORE the
+ * following chunks and WINDOW_UPDATE a varint number of bytes the sender may send again.
+ * Empty frames are heartbeats the peer sent before multiplexing and are skipped.
+ *
+ * The multiplexer must be the only one writing to the connection, which
+ * DroidToothInstance.openMultiplexer() sees to.
+ */
+public class ChannelMultiplexer {
+
+	public static final int DEFAULT_WINDOW = 16 * 1024;
+	public static final int DEFAULT_CHUNK_SIZE = 512;
+	//messages each channel may have waiting to be sent
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	//largest message either end may send, as large as a frame may be unmultiplexed
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = VarintFrameCodec.DEFAULT_MAX_FRAME_SIZE;
+	//channels there may be at once, counting those the peer opened
+	public static final int DEFAULT_MAX_CHANNELS = 256;
+
+	static final byte DATA_FIRST = 0;
+	static final byte DATA_MORE = 1;
+	static final byte WINDOW_UPDATE = 2;
+
+	private static final int READ_BUFFER_SIZE = 1024;
+	private static final int MAX_CHUNK_HEADER = 2 * VarintFrameCodec.MAX_HEADER_SIZE + 1;
+
+	private final Connection connection;
+	private final FrameCodec frameCodec;
+	private final BufferPool bufferPool;
+	private final int window;
+	private final int chunkSize;
+	private final int maxMessageSize;
+	private final int maxChannels;
+
+	//guards the channels and everything about sending
+	private final Object lock = new Object();
+	private final HashMap<Integer, Channel> channels = new HashMap<Integer, Channel>();
+	private final ArrayList<Channel> roundRobin = new ArrayList<Channel>();
+	private int nextInRound = 0;
+
+	private final OutputStream out;
+	private final InputStream in;
+	private final Thread writerThread, readerThread;
+	private volatile boolean isRunning = true;
+	private DTCallback errorOccurred;
+
+	public ChannelMultiplexer(Connection connection, FrameCodec frameCodec) throws IOException {
+		this(connection, frameCodec, BufferPool.getDefault(), DEFAULT_WINDOW, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Start multiplexing over a connected connection. Both ends must use the same window.
+	 * @param connection
+	 * @param frameCodec codec framing each chunk
+	 * @param bufferPool where received messages are assembled
+	 * @param window bytes a channel may have in flight unconsumed
+	 * @param chunkSize largest piece of a message sent in one go
+	 * @throws IOException if the connection's streams are unavailable
+	 */
+	public ChannelMultiplexer(Connection connection, FrameCodec frameCodec, BufferPool bufferPool, int window, int chunkSize) throws IOException {
+		this(connection, frameCodec, bufferPool, window, chunkSize, DEFAULT_MAX_MESSAGE_SIZE, DEFAULT_MAX_CHANNELS);
+	}
+
+	/**
+	 * Start multiplexing over a connected connection. Both ends must use the same window.
+	 * @param connection
+	 * @param frameCodec codec framing each chunk
+	 * @param bufferPool where received messages are assembled
+	 * @param window bytes a channel may have in flight unconsumed
+	 * @param chunkSize largest piece of a message sent in one go
+	 * @param maxMessageSize largest message accepted from the peer, or sent to it
+	 * @param maxChannels most channels there may be, the peer opening one more fails the connection
+	 * @throws IOException if the connection's streams are unavailable
+	 */
+	public ChannelMultiplexer(Connection connection, FrameCodec frameCodec, BufferPool bufferPool, int window, int chunkSize,
+			int maxMessageSize, int maxChannels) throws IOException {
+		this.connection = connection;
+		this.frameCodec = frameCodec;
+		this.bufferPool = bufferPool;
+		this.window = window;
+		this.chunkSize = chunkSize;
+		this.maxMessageSize = maxMessageSize;
+		this.maxChannels = maxChannels;
+		this.out = connection.getOutputStream();
+		this.in = connection.getInputStream();
+
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "DroidTooth-mux-writer");
+		readerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "DroidTooth-mux-reader");
+		writerThread.setDaemon(true);
+		readerThread.setDaemon(true);
+		writerThread.start();
+		readerThread.start();
+	}
+
+	/**
+	 * Return the channel with the given id, creating it if it does not exist yet.
+	 * @param id any non-negative number both ends agree on
+	 * @return the channel
+	 */
+	public Channel getChannel(int id){
+		if (id < 0){
+			throw new IllegalArgumentException("Channel ids must not be negative");
+		}
+		synchronized (lock) {
+			Channel channel = channels.get(id);
+			if (channel == null){
+				channel = new Channel(id);
+				channels.put(id, channel);
+				roundRobin.add(channel);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Called by the reader thread for the channel a frame is for, which may be
+	 * one the peer is just opening.
+	 */
+	private Channel channelFor(int id) throws MalformedFrameException {
+		if (id < 0){
+			throw new MalformedFrameException("Negative channel id "+id);
+		}
+		synchronized (lock) {
+			Channel channel = channels.get(id);
+			if (channel != null){
+				return channel;
+			}
+			if (channels.size() >= maxChannels){
+				throw new MalformedFrameException("Peer opened channel "+id+" past the maximum of "+maxChannels+" channels");
+			}
+			return getChannel(id);
+		}
+	}
+
+	/**
+	 * Stop both threads and close the connection underneath.
+	 */
+	public void close(){
+		synchronized (lock) {
+			if (!isRunning){
+				return;
+			}
+			isRunning = false;
+			lock.notifyAll();
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to close multiplexed connection: "+e);
+		}
+		synchronized (lock) {
+			for (Channel channel : roundRobin){
+				channel.discard();
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	/**
+	 * @param errorOccurred to be called with the IOException that stopped the multiplexer.
+	 */
+	public void setErrorOccurredCallback(DTCallback errorOccurred) {
+		this.errorOccurred = errorOccurred;
+	}
+
+	private void failed(IOException e){
+		if (!isRunning){
+			return; //closed on purpose
+		}
+		Log.d(Constants.DEBUG_DROIDTOOTH, "ChannelMultiplexer stopped: "+e);
+		close();
+		if (errorOccurred != null){
+			errorOccurred.callback(e);
+		}
+	}
+
+	/**
+	 * Writer thread: every round takes at most one chunk (and any window update)
+	 * from each channel, then writes the whole round to the connection at once.
+	 */
+	private void writeLoop(){
+		ByteArrayOutputStream round = new ByteArrayOutputStream(chunkSize * 2);
+		byte[] chunk = new byte[MAX_CHUNK_HEADER + chunkSize];
+		try {
+			while (true){
+				round.reset();
+				synchronized (lock) {
+					while (isRunning && !fillRound(round, chunk)){
+						waitForLock();
+					}
+					if (!isRunning){
+						return;
+					}
+				}
+				round.writeTo(out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Called with the lock held.
+	 * @return whether anything was put in the round.
+	 */
+	private boolean fillRound(ByteArrayOutputStream round, byte[] chunk) throws IOException {
+		boolean filled = false;
+		int channelCount = roundRobin.size();
+		for (int i = 0; i < channelCount; i++){
+			Channel channel = roundRobin.get((nextInRound + i) % channelCount);
+			filled |= channel.writeWindowUpdate(round, chunk);
+			filled |= channel.writeChunk(round, chunk);
+		}
+		if (channelCount > 0){
+			nextInRound = (nextInRound + 1) % channelCount;
+		}
+		return filled;
+	}
+
+	private void waitForLock(){
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			isRunning = false;
+		}
+	}
+
+	/**
+	 * Reader thread: decodes frames and hands each to the channel it belongs to.
+	 */
+	private void readLoop(){
+		PooledBuffer readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+		FrameDecoder decoder = frameCodec.newDecoder();
+		ChunkHandler handler = new ChunkHandler();
+		try {
+			int bytesRead;
+			while ((bytesRead = in.read(readBuffer.array(), 0, readBuffer.capacity())) != -1){
+				ByteBuffer bytes = readBuffer.buffer();
+				bytes.clear();
+				bytes.limit(bytesRead);
+				decoder.decode(readBuffer, handler);
+				if (handler.failure != null){
+					throw handler.failure;
+				}
+				if (readBuffer.refCount() > 1){
+					readBuffer.release();
+					readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+				}
+			}
+			failed(new IOException("Connection closed by peer"));
+		} catch (IOException e) {
+			failed(e);
+		} finally {
+			readBuffer.release();
+			decoder.reset();
+			synchronized (lock) {
+				for (Channel channel : roundRobin){
+					channel.abandonAssembly();
+				}
+			}
+		}
+	}
+
+	private class ChunkHandler implements FrameHandler {
+
+		MalformedFrameException failure;
+
+		@Override
+		public void frameDecoded(ByteBuffer payload, PooledBuffer owner) {
+			if (failure != null || !payload.hasRemaining()){
+				return; //after a failure, or a heartbeat
+			}
+			try {
+				Channel channel = channelFor(VarintFrameCodec.readVarint(payload));
+				if (!payload.hasRemaining()){
+					throw new MalformedFrameException("Multiplexed frame without a type");
+				}
+				byte type = payload.get();
+				switch (type){
+				case DATA_FIRST:
+					channel.firstChunk(VarintFrameCodec.readVarint(payload), payload, owner);
+					break;
+				case DATA_MORE:
+					channel.nextChunk(payload);
+					break;
+				case WINDOW_UPDATE:
+					channel.creditGranted(VarintFrameCodec.readVarint(payload));
+					break;
+				default:
+					throw new MalformedFrameException("Unknown multiplexed frame type "+type);
+				}
+			} catch (MalformedFrameException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * One logical channel. Sending queues whole messages; received messages are
+	 * either handed to the message callback or kept in the channel's inbox.
+	 */
+	public class Channel {
+
+		private final int id;
+
+		//sending side, guarded by the multiplexer's lock
+		private final LinkedList<byte[]> outgoing = new LinkedList<byte[]>();
+		private int headOffset = 0; //how much of the first outgoing message went out
+		private int sendCredit = window;
+		private int creditToGrant = 0;
+
+		//receiving side, only touched by the reader thread
+		private PooledBuffer assembling;
+		private int assembled = 0;
+		private int assemblingLength = 0;
+		private final MessageInbox inbox = new MessageInbox();
+		private volatile DTCallback messageCallback;
+
+		Channel(int id){
+			this.id = id;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Queue a message on this channel. Never blocks.
+		 * @param message must not be modified after this call
+		 * @return false if the channel's queue is full, the message is over the maximum
+		 * 			size or the multiplexer stopped.
+		 */
+		public boolean send(byte[] message){
+			if (message.length > maxMessageSize){
+				return false;
+			}
+			synchronized (lock) {
+				if (!isRunning || outgoing.size() >= DEFAULT_QUEUE_CAPACITY){
+					return false;
+				}
+				outgoing.add(message);
+				lock.notifyAll();
+				return true;
+			}
+		}
+
+		/**
+		 * Take the oldest message received on this channel, if any, opening up
+		 * the window for the peer by its size. The caller must release() it.
+		 * @return the message, null if none is waiting
+		 */
+		public ReceivedMessage poll(){
+			ReceivedMessage message = inbox.poll();
+			if (message != null){
+				consumed(heldCredit(message.length()));
+			}
+			return message;
+		}
+
+		/**
+		 * Have received messages handed to a callback (on the reader thread) instead
+		 * of kept for poll(). The message is only valid during the callback unless retained.
+		 * @param messageCallback called with a ReceivedMessage
+		 */
+		public void setMessageCallback(DTCallback messageCallback) {
+			this.messageCallback = messageCallback;
+		}
+
+		/**
+		 * @return how many messages wait to be sent on this channel.
+		 */
+		public int getQueuedMessages(){
+			synchronized (lock) {
+				return outgoing.size();
+			}
+		}
+
+		/**
+		 * @return how many bytes may still be sent before the peer consumes some.
+		 */
+		public int getSendCredit(){
+			synchronized (lock) {
+				return sendCredit;
+			}
+		}
+
+		//called with the lock held
+		private boolean writeChunk(ByteArrayOutputStream round, byte[] chunk) throws IOException {
+			if (outgoing.isEmpty()){
+				return false;
+			}
+			byte[] message = outgoing.getFirst();
+			int length = Math.min(Math.min(chunkSize, sendCredit), message.length - headOffset);
+			if (length <= 0 && message.length > 0){
+				return false; //waiting for the peer to open the window
+			}
+
+			int pos = VarintFrameCodec.writeVarint(id, chunk, 0);
+			if (headOffset == 0){
+				chunk[pos++] = DATA_FIRST;
+				pos += VarintFrameCodec.writeVarint(message.length, chunk, pos);
+			} else {
+				chunk[pos++] = DATA_MORE;
+			}
+			System.arraycopy(message, headOffset, chunk, pos, length);
+			frameCodec.encode(chunk, 0, pos + length, round);
+
+			sendCredit -= length;
+			headOffset += length;
+			if (headOffset == message.length){
+				outgoing.removeFirst();
+				headOffset = 0;
+			}
+			return true;
+		}
+
+		//called with the lock held
+		private boolean writeWindowUpdate(ByteArrayOutputStream round, byte[] chunk) throws IOException {
+			if (creditToGrant == 0){
+				return false;
+			}
+			int pos = VarintFrameCodec.writeVarint(id, chunk, 0);
+			chunk[pos++] = WINDOW_UPDATE;
+			pos += VarintFrameCodec.writeVarint(creditToGrant, chunk, pos);
+			frameCodec.encode(chunk, 0, pos, round);
+			creditToGrant = 0;
+			return true;
+		}
+
+		private void creditGranted(int credit) throws MalformedFrameException {
+			synchronized (lock) {
+				//the peer only hands back what we sent, never more than the window
+				if (credit <= 0 || credit > window - sendCredit){
+					throw new MalformedFrameException("Window update of "+credit+" bytes on channel "+id+" with "+sendCredit+" of "+window+" bytes of credit left");
+				}
+				sendCredit += credit;
+				lock.notifyAll();
+			}
+		}
+
+		//how much of a message's size is handed back only once it is consumed
+		private int heldCredit(int messageLength){
+			return Math.min(messageLength, window);
+		}
+
+		private void consumed(int bytes){
+			if (bytes == 0){
+				return;
+			}
+			synchronized (lock) {
+				creditToGrant += bytes;
+				lock.notifyAll();
+			}
+		}
+
+		private void firstChunk(int length, ByteBuffer data, PooledBuffer owner) throws MalformedFrameException {
+			if (assembling != null){
+				throw new MalformedFrameException("New message on channel "+id+" before the last one completed");
+			}
+			//the length is the peer's word, don't allocate whatever it says
+			if (length < 0 || length > maxMessageSize){
+				throw new MalformedFrameException("Message of "+length+" bytes on channel "+id+" exceeds the maximum of "+maxMessageSize);
+			}
+			if (data.remaining() > length){
+				throw new MalformedFrameException("Chunk longer than its message on channel "+id);
+			}
+			if (data.remaining() == length){
+				//the whole message came in one chunk, no need to copy it
+				deliver(new ReceivedMessage(data, owner));
+				return;
+			}
+			assembling = bufferPool.acquire(length);
+			assemblingLength = length;
+			assembled = 0;
+			nextChunk(data);
+		}
+
+		private void nextChunk(ByteBuffer data) throws MalformedFrameException {
+			if (assembling == null || data.remaining() > assemblingLength - assembled){
+				throw new MalformedFrameException("Unexpected chunk on channel "+id);
+			}
+			int length = data.remaining();
+			data.get(assembling.array(), assembled, length);
+			//only the tail of the message is held back until it is consumed
+			int creditedEarly = assemblingLength - heldCredit(assemblingLength);
+			if (assembled < creditedEarly){
+				consumed(Math.min(assembled + length, creditedEarly) - assembled);
+			}
+			assembled += length;
+			if (assembled == assemblingLength){
+				ByteBuffer payload = assembling.buffer().asReadOnlyBuffer();
+				payload.position(0);
+				payload.limit(assemblingLength);
+				PooledBuffer owner = assembling;
+				assembling = null;
+				deliver(new ReceivedMessage(payload, owner));
+				owner.release(); //the message holds its own reference
+			}
+		}
+
+		private void deliver(ReceivedMessage message){
+			DTCallback callback = messageCallback;
+			if (callback != null){
+				try {
+					callback.callback(message);
+				} finally {
+					consumed(heldCredit(message.length()));
+					message.release();
+				}
+			} else {
+				if (inbox.size() == inbox.capacity()){
+					//nobody reads this channel, drop the oldest but give its window back
+					ReceivedMessage dropped = poll();
+					if (dropped != null){
+						dropped.release();
+					}
+				}
+				inbox.offer(message);
+				message.release(); //the inbox holds its own reference
+			}
+		}
+
+		//called by the reader thread once it stops
+		private void abandonAssembly(){
+			if (assembling != null){
+				assembling.release();
+				assembling = null;
+			}
+		}
+
+		//called with the lock held when the multiplexer closes
+		private void discard(){
+			outgoing.clear();
+			inbox.clear();
+		}
+	}
+}
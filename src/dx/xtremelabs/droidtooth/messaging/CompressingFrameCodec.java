@@ -0,0 +1,296 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+
+/**
+ * Deflates frame payloads on their way through another codec. Payloads under the
+ * threshold, and those that do not shrink, go out as they are; every payload is
+ * prefixed with a byte telling the receiver which of the two it got, and deflated
+ * ones with their original length as a varint.
+ *
+ * Each frame is deflated on its own against a preset dictionary of strings our
+ * messages commonly contain, so even short messages compress well without the frames
+ * depending on each other. Both ends must use the same dictionary, which is what the
+ * session handshake checks before agreeing on compression.
+ */
+public class CompressingFrameCodec implements FrameCodec {
+
+	static final byte RAW = 0;
+	static final byte DEFLATED = 1;
+
+	//below this, deflate's own overhead eats most of the gain
+	public static final int DEFAULT_THRESHOLD = 64;
+
+	public static final byte[] DEFAULT_DICTIONARY = ("{\"type\":\"\",\"id\":\"\",\"name\":\"\",\"message\":\"\","
+			+ "\"value\":\"\",\"status\":\"\",\"data\":\"\",\"time\":\"\",\"device\":\"\",\"address\":\"\","
+			+ "\"error\":\"\",\"ok\",\"true\",\"false\",\"null\",[{\"\":\"\"}],_DTHOST").getBytes();
+
+	private final FrameCodec frameCodec;
+	private final byte[] dictionary;
+	private final int threshold;
+	private final BufferPool bufferPool;
+
+	//guarded by this
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] scratch = new byte[1024];
+
+	//counters, guarded by this
+	private long framesSent = 0;
+	private long framesCompressed = 0;
+	private long bytesBeforeCompression = 0;
+	private long bytesAfterCompression = 0;
+	private long bytesReceived = 0;
+	private long bytesAfterInflating = 0;
+
+	public CompressingFrameCodec(FrameCodec frameCodec){
+		this(frameCodec, DEFAULT_DICTIONARY, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param frameCodec codec the (possibly deflated) payloads are framed with
+	 * @param dictionary preset dictionary, must be the same on both ends
+	 * @param threshold smallest payload worth deflating
+	 */
+	public CompressingFrameCodec(FrameCodec frameCodec, byte[] dictionary, int threshold){
+		this.frameCodec = frameCodec;
+		this.dictionary = dictionary;
+		this.threshold = threshold;
+		this.bufferPool = BufferPool.getDefault();
+	}
+
+	/**
+	 * @return a checksum of the dictionary, for the two ends to compare.
+	 */
+	public int getDictionaryId(){
+		return dictionaryId(dictionary);
+	}
+
+	public static int dictionaryId(byte[] dictionary){
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+		return (int) adler.getValue();
+	}
+
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the largest payload that still fits the codec underneath sent raw,
+	 * 			as it is when it does not shrink. Larger ones are refused both ways.
+	 */
+	@Override
+	public int getMaxFrameSize() {
+		return frameCodec.getMaxFrameSize() - 1;
+	}
+
+	@Override
+	public synchronized void encode(byte[] payload, int offset, int length, OutputStream out) throws IOException {
+		if (length > getMaxFrameSize()){
+			throw new MalformedFrameException("Frame of "+length+" bytes exceeds the maximum of "+getMaxFrameSize());
+		}
+		int headerSize = 1 + VarintFrameCodec.MAX_HEADER_SIZE;
+		ensureScratch(headerSize + length);
+		int frameLength = 0;
+
+		if (length >= threshold){
+			deflater.reset();
+			deflater.setDictionary(dictionary);
+			deflater.setInput(payload, offset, length);
+			deflater.finish();
+			int pos = 1 + VarintFrameCodec.writeVarint(length, scratch, 1);
+			//only worth it if the result is smaller, so never deflate past the original size
+			int room = Math.min(length, scratch.length - pos);
+			int deflated = 0;
+			while (!deflater.finished() && deflated < room){
+				deflated += deflater.deflate(scratch, pos + deflated, room - deflated);
+			}
+			if (deflater.finished() && pos + deflated < 1 + length){
+				scratch[0] = DEFLATED;
+				frameLength = pos + deflated;
+				framesCompressed++;
+			}
+		}
+		if (frameLength == 0){
+			scratch[0] = RAW;
+			System.arraycopy(payload, offset, scratch, 1, length);
+			frameLength = 1 + length;
+		}
+
+		frameCodec.encode(scratch, 0, frameLength, out);
+		framesSent++;
+		bytesBeforeCompression += length;
+		bytesAfterCompression += frameLength;
+	}
+
+	private void ensureScratch(int size){
+		if (scratch.length < size){
+			scratch = new byte[Math.max(size, scratch.length * 2)];
+		}
+	}
+
+	@Override
+	public FrameDecoder newDecoder() {
+		return new Decoder(frameCodec.newDecoder());
+	}
+
+	public synchronized long getFramesSent() {
+		return framesSent;
+	}
+
+	/**
+	 * @return how many of the frames sent were deflated, the rest were under the
+	 * 			threshold or did not shrink.
+	 */
+	public synchronized long getFramesCompressed() {
+		return framesCompressed;
+	}
+
+	public synchronized long getBytesBeforeCompression() {
+		return bytesBeforeCompression;
+	}
+
+	public synchronized long getBytesAfterCompression() {
+		return bytesAfterCompression;
+	}
+
+	/**
+	 * @return payload bytes sent per byte that went through the codec underneath, which is
+	 * 			how many times faster than the link payloads effectively travel. 1 until
+	 * 			something was sent.
+	 */
+	public synchronized double getSendRatio() {
+		return bytesAfterCompression == 0 ? 1 : (double) bytesBeforeCompression / bytesAfterCompression;
+	}
+
+	/**
+	 * @return payload bytes received per byte read through the codec underneath.
+	 */
+	public synchronized double getReceiveRatio() {
+		return bytesReceived == 0 ? 1 : (double) bytesAfterInflating / bytesReceived;
+	}
+
+	private synchronized void received(int frameLength, int payloadLength){
+		bytesReceived += frameLength;
+		bytesAfterInflating += payloadLength;
+	}
+
+	/**
+	 * Sits between the underlying decoder and the real handler, inflating
+	 * payloads into pooled buffers where needed.
+	 */
+	private class Decoder implements FrameDecoder, FrameHandler {
+
+		private final FrameDecoder decoder;
+		private final Inflater inflater = new Inflater();
+		private byte[] input = new byte[1024];
+
+		private FrameHandler handler;
+		private MalformedFrameException failure;
+
+		Decoder(FrameDecoder decoder){
+			this.decoder = decoder;
+		}
+
+		@Override
+		public void decode(PooledBuffer in, FrameHandler handler) throws IOException {
+			this.handler = handler;
+			decoder.decode(in, this);
+			if (failure != null){
+				throw failure;
+			}
+		}
+
+		@Override
+		public void frameDecoded(ByteBuffer payload, PooledBuffer owner) {
+			if (failure != null){
+				return;
+			}
+			try {
+				int frameLength = payload.remaining();
+				if (frameLength == 0){
+					throw new MalformedFrameException("Compressed frame without a header");
+				}
+				byte type = payload.get();
+				if (type == RAW){
+					received(frameLength, payload.remaining());
+					handler.frameDecoded(payload, owner);
+				} else if (type == DEFLATED){
+					inflate(frameLength, payload);
+				} else {
+					throw new MalformedFrameException("Unknown compression type "+type);
+				}
+			} catch (MalformedFrameException e) {
+				failure = e;
+			}
+		}
+
+		private void inflate(int frameLength, ByteBuffer payload) throws MalformedFrameException {
+			int length = VarintFrameCodec.readVarint(payload);
+			//encode() refuses anything larger, so a longer one is not ours to inflate
+			if (length < 0 || length > getMaxFrameSize()){
+				throw new MalformedFrameException("Compressed frame of "+length+" bytes is too large");
+			}
+			int deflatedLength = payload.remaining();
+			if (input.length < deflatedLength){
+				input = new byte[Math.max(deflatedLength, input.length * 2)];
+			}
+			payload.get(input, 0, deflatedLength);
+
+			//a byte to spare, so a stream inflating past its length shows, and inflating
+			//runs on to the end of the stream, where its checksum is verified
+			PooledBuffer inflated = bufferPool.acquire(length + 1);
+			try {
+				inflater.reset();
+				inflater.setInput(input, 0, deflatedLength);
+				int filled = 0;
+				while (!inflater.finished()){
+					int n = inflater.inflate(inflated.array(), filled, length + 1 - filled);
+					if (n == 0){
+						if (inflater.needsDictionary()){
+							inflater.setDictionary(dictionary);
+						} else if (inflater.needsInput()){
+							throw new MalformedFrameException("Compressed frame ended after "+filled+" of "+length+" bytes");
+						}
+					}
+					filled += n;
+					if (filled > length){
+						throw new MalformedFrameException("Compressed frame inflates past its "+length+" bytes");
+					}
+				}
+				if (filled < length){
+					throw new MalformedFrameException("Compressed frame ended after "+filled+" of "+length+" bytes");
+				}
+				received(frameLength, length);
+				ByteBuffer view = inflated.buffer().asReadOnlyBuffer();
+				view.position(0);
+				view.limit(length);
+				handler.frameDecoded(view, inflated);
+			} catch (DataFormatException e) {
+				throw new MalformedFrameException("Corrupt compressed frame: "+e.getMessage());
+			} catch (IllegalArgumentException e) {
+				throw new MalformedFrameException("Compressed with a different dictionary");
+			} finally {
+				inflated.release(); //the handler retained it if it wanted to keep it
+			}
+		}
+
+		@Override
+		public void reset() {
+			decoder.reset();
+			failure = null;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A FrameCodec defines how individual messages are delimited on the byte stream
+ * of a socket. The sending side calls encode() once per message, while every 
+ * listener on the receiving side holds its own FrameDecoder obtained from 
+ * newDecoder(), since a decoder keeps track of partially received frames.
+ * 
+ * Both ends of a connection must agree on the codec, see DroidToothInstance.setFrameCodec().
+ */
+public interface FrameCodec {
+
+	/**
+	 * Write the given payload as one frame onto the output stream.
+	 * @param payload bytes to send
+	 * @param offset where the message starts within payload
+	 * @param length number of bytes of the message
+	 * @param out stream to write the frame to
+	 * @throws IOException if writing failed or the payload is too big for this codec
+	 */
+	public void encode(byte[] payload, int offset, int length, OutputStream out) throws IOException;
+
+	/**
+	 * @return the largest payload encode() accepts.
+	 */
+	public int getMaxFrameSize();
+
+	/**
+	 * @return a fresh decoder with no partially received frame.
+	 */
+	public FrameDecoder newDecoder();
+}
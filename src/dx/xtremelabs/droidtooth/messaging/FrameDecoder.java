@@ -0,0 +1,27 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.IOException;
+
+/**
+ * Stateful half of a FrameCodec. Bytes are fed in as they are read off the socket,
+ * in whatever chunks the stream hands out, and every completed frame is handed to
+ * the FrameHandler.
+ */
+public interface FrameDecoder {
+
+	/**
+	 * Consume all remaining bytes of the buffer in a single pass, calling the handler 
+	 * once for every frame completed along the way. Bytes of an incomplete frame are
+	 * kept by the decoder until the next call. Payloads may be handed out as slices of
+	 * the input, in which case the input is their owner.
+	 * @param in bytes read from the stream, from in.buffer().position() to limit()
+	 * @param handler to be called back with each frame's payload
+	 * @throws IOException if the stream does not hold valid frames
+	 */
+	public void decode(PooledBuffer in, FrameHandler handler) throws IOException;
+
+	/**
+	 * Drop any partially received frame, giving its buffer back to the pool.
+	 */
+	public void reset();
+}
@@ -0,0 +1,17 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * To be called by a FrameDecoder whenever a complete frame was received.
+ */
+public interface FrameHandler {
+
+	/**
+	 * @param payload read-only view of the frame's payload from position() to limit().
+	 * 			It is only valid for the duration of this call, unless owner is retained.
+	 * @param owner the pooled buffer the payload points into, or null if the payload
+	 * 			is not pooled (such as an empty frame).
+	 */
+	public void frameDecoded(ByteBuffer payload, PooledBuffer owner);
+}
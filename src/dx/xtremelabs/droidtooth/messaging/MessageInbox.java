@@ -0,0 +1,128 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.util.Collection;
+
+/**
+ * Fixed-capacity inbox of received messages, backed by a ring buffer. Listeners offer
+ * the messages they decode (by default only those no callback takes) and the application
+ * polls them out at its own pace; when the application falls behind, the oldest unread
+ * message is dropped (and given back to its pool) to make room, so a long-lived
+ * connection never holds more than capacity messages no matter how much it receives.
+ * 
+ * All methods are O(1) per message and safe to call from any thread.
+ */
+public class MessageInbox {
+
+	public static final int DEFAULT_CAPACITY = 128;
+
+	private final ReceivedMessage[] messages;
+	private int head = 0;
+	private int size = 0;
+
+	private long received = 0;
+	private long overflowed = 0;
+
+	public MessageInbox(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	public MessageInbox(int capacity){
+		if (capacity < 1){
+			throw new IllegalArgumentException("Inbox capacity must be at least 1");
+		}
+		messages = new ReceivedMessage[capacity];
+	}
+
+	/**
+	 * Add a message, retaining it on behalf of the inbox. If the inbox is full
+	 * the oldest message is released and dropped.
+	 * @param message
+	 * @return whether room had to be made by dropping a message
+	 */
+	public synchronized boolean offer(ReceivedMessage message){
+		boolean overflow = false;
+		if (size == messages.length){
+			messages[head].release();
+			messages[head] = null;
+			head = (head + 1) % messages.length;
+			size--;
+			overflowed++;
+			overflow = true;
+		}
+		messages[(head + size) % messages.length] = message.retain();
+		size++;
+		received++;
+		return overflow;
+	}
+
+	/**
+	 * Take the oldest unread message without waiting. The caller owns the
+	 * returned message and must release() it when done.
+	 * @return the oldest message, null if the inbox is empty
+	 */
+	public synchronized ReceivedMessage poll(){
+		if (size == 0){
+			return null;
+		}
+		ReceivedMessage message = messages[head];
+		messages[head] = null;
+		head = (head + 1) % messages.length;
+		size--;
+		return message;
+	}
+
+	/**
+	 * Move up to maxMessages of the oldest unread messages into the given collection,
+	 * in the order they were received. The caller owns and must release them.
+	 * @param collection
+	 * @param maxMessages
+	 * @return how many messages were moved
+	 */
+	public synchronized int drainTo(Collection<? super ReceivedMessage> collection, int maxMessages){
+		int drained = 0;
+		while (size > 0 && drained < maxMessages){
+			collection.add(poll());
+			drained++;
+		}
+		return drained;
+	}
+
+	public int drainTo(Collection<? super ReceivedMessage> collection){
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Release and drop every unread message.
+	 */
+	public synchronized void clear(){
+		while (size > 0){
+			poll().release();
+		}
+	}
+
+	public synchronized int size(){
+		return size;
+	}
+
+	public synchronized boolean isEmpty(){
+		return size == 0;
+	}
+
+	public int capacity(){
+		return messages.length;
+	}
+
+	/**
+	 * @return how many messages were offered to this inbox so far.
+	 */
+	public synchronized long getReceivedCount(){
+		return received;
+	}
+
+	/**
+	 * @return how many unread messages were dropped because the inbox was full.
+	 */
+	public synchronized long getOverflowCount(){
+		return overflowed;
+	}
+}
@@ -0,0 +1,332 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+
+/**
+ * Sends messages on a socket from its own thread, so that callers (the UI thread included)
+ * only ever queue a message and return. One writer is meant to exist per socket.
+ *
+ * Outgoing messages wait in a bounded queue. Whenever the writer thread wakes up it frames
+ * as many queued messages as fit in its coalescing buffer and hands them to the socket in a
+ * single write, which keeps many small messages from each costing a separate RFCOMM packet.
+ *
+ * What happens when the queue is full is decided by the backpressure policy:
+ * BLOCK waits for room, DROP_OLDEST discards the oldest queued message to make room and
+ * FAIL_FAST rejects the new message right away.
+ */
+public class MessageWriter {
+
+	// backpressure policies
+	public static final int BLOCK = 0;
+	public static final int DROP_OLDEST = 1;
+	public static final int FAIL_FAST = 2;
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	//a little under what a single RFCOMM packet usually carries on Android devices
+	public static final int DEFAULT_COALESCE_SIZE = 990;
+
+	private static final AtomicInteger writerCount = new AtomicInteger();
+
+	private final OutputStream out;
+	private final FrameCodec frameCodec;
+	private final int backpressure;
+
+	//ring buffer of queued messages
+	private final byte[][] queue;
+	private int head = 0;
+	private int size = 0;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	//messages taken off the queue for the next write, only touched by the writer thread
+	private final byte[][] batch;
+	private final CoalescingBuffer coalescingBuffer;
+	private final Thread writerThread;
+	private volatile boolean isRunning = true;
+	private final DTFuture<Void> stopped = new DTFuture<Void>();
+	private DTCallback errorOccurred;
+
+	//counters of what was written, guarded by this
+	private long messagesSent = 0;
+	private long writes = 0;
+	private long bytesWritten = 0;
+	//counters of what never made it to the queue, guarded by lock
+	private long messagesDropped = 0;
+	private long messagesRejected = 0;
+
+	public MessageWriter(OutputStream out, FrameCodec frameCodec){
+		this(out, frameCodec, DEFAULT_QUEUE_CAPACITY, FAIL_FAST, DEFAULT_COALESCE_SIZE);
+	}
+
+	/**
+	 * Create a writer and start its thread.
+	 * @param out the socket's output stream
+	 * @param frameCodec codec to frame each message with
+	 * @param queueCapacity how many messages may wait to be sent
+	 * @param backpressure one of BLOCK, DROP_OLDEST or FAIL_FAST
+	 * @param coalesceSize how many bytes to gather before writing to the socket
+	 */
+	public MessageWriter(OutputStream out, FrameCodec frameCodec, int queueCapacity, int backpressure, int coalesceSize){
+		if (backpressure != BLOCK && backpressure != DROP_OLDEST && backpressure != FAIL_FAST){
+			throw new IllegalArgumentException("Unknown backpressure policy: "+backpressure);
+		}
+		this.out = out;
+		this.frameCodec = frameCodec;
+		this.backpressure = backpressure;
+		this.queue = new byte[queueCapacity][];
+		this.batch = new byte[queueCapacity][];
+		this.coalescingBuffer = new CoalescingBuffer(coalesceSize);
+
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "DroidTooth-writer-"+writerCount.incrementAndGet());
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Queue a message to be sent. Never blocks unless the policy is BLOCK.
+	 * @param message
+	 * @return whether the message was queued; false if it was rejected, for being
+	 * 			too big for the codec or the queue being full, or this writer is closed.
+	 */
+	public boolean send(byte[] message){
+		lock.lock();
+		try {
+			//the codec would refuse it on the writer thread, taking the connection down with it
+			if (message.length > frameCodec.getMaxFrameSize()){
+				Log.d(Constants.DEBUG_DROIDTOOTH, "MessageWriter rejected a message of "+message.length+" bytes, the maximum is "+frameCodec.getMaxFrameSize());
+				messagesRejected++;
+				return false;
+			}
+			while (isRunning && size == queue.length){
+				if (backpressure == FAIL_FAST){
+					messagesRejected++;
+					return false;
+				} else if (backpressure == DROP_OLDEST){
+					queue[head] = null;
+					head = (head + 1) % queue.length;
+					size--;
+					messagesDropped++;
+				} else {
+					notFull.awaitUninterruptibly();
+				}
+			}
+			if (!isRunning){
+				return false;
+			}
+			queue[(head + size) % queue.length] = message;
+			size++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the writer thread. Messages still in the queue are discarded,
+	 * the socket itself is left open.
+	 */
+	public void close(){
+		lock.lock();
+		try {
+			isRunning = false;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	/**
+	 * @return a future completed once the writer thread has stopped, after close() or a
+	 * 			failed write; from then on this writer no longer touches the socket.
+	 */
+	public DTFuture<Void> whenStopped() {
+		return stopped;
+	}
+
+	private void writeLoop(){
+		try {
+			while (true){
+				//take as many queued messages as fit in the coalescing buffer,
+				//a message too big to coalesce goes out on its own.
+				int batchSize = 0;
+				lock.lock();
+				try {
+					while (isRunning && size == 0){
+						notEmpty.awaitUninterruptibly();
+					}
+					if (!isRunning){
+						return;
+					}
+
+					int batchBytes = 0;
+					do {
+						byte[] message = queue[head];
+						if (batchSize > 0 && batchBytes + message.length > coalescingBuffer.capacity()){
+							break;
+						}
+						queue[head] = null;
+						head = (head + 1) % queue.length;
+						size--;
+						batch[batchSize++] = message;
+						batchBytes += message.length;
+					} while (size > 0);
+					notFull.signalAll();
+				} finally {
+					lock.unlock();
+				}
+
+				//frame and write them outside of the lock, so senders can keep queueing
+				//while the codec works, compressing included; one write per batch.
+				coalescingBuffer.reset();
+				for (int i = 0; i < batchSize; i++){
+					frameCodec.encode(batch[i], 0, batch[i].length, coalescingBuffer);
+					batch[i] = null;
+				}
+				coalescingBuffer.writeTo(out);
+				out.flush();
+				synchronized (this) {
+					messagesSent += batchSize;
+					writes++;
+					bytesWritten += coalescingBuffer.size();
+				}
+			}
+		} catch (IOException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "MessageWriter stopped writing: "+e);
+			close();
+			if (errorOccurred != null){
+				errorOccurred.callback(e);
+			}
+		} finally {
+			stopped.set(null);
+		}
+	}
+
+	/**
+	 * @param errorOccurred to be called with the IOException that stopped this writer.
+	 */
+	public void setErrorOccurredCallback(DTCallback errorOccurred) {
+		this.errorOccurred = errorOccurred;
+	}
+
+	public int getQueuedMessages() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public synchronized long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * @return how many times the socket was written to, compare with
+	 * 			getMessagesSent() to see how well messages get coalesced.
+	 */
+	public synchronized long getWrites() {
+		return writes;
+	}
+
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public long getMessagesDropped() {
+		lock.lock();
+		try {
+			return messagesDropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMessagesRejected() {
+		lock.lock();
+		try {
+			return messagesRejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reusable in-memory stream messages are framed into before being written
+	 * to the socket in one go. Grows when a single message does not fit.
+	 */
+	private static class CoalescingBuffer extends OutputStream {
+
+		private final int capacity;
+		private byte[] bytes;
+		private int count = 0;
+
+		CoalescingBuffer(int capacity){
+			this.capacity = capacity;
+			this.bytes = new byte[capacity];
+		}
+
+		@Override
+		public void write(int b) {
+			ensureRoom(1);
+			bytes[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureRoom(len);
+			System.arraycopy(b, off, bytes, count, len);
+			count += len;
+		}
+
+		private void ensureRoom(int len){
+			if (count + len > bytes.length){
+				byte[] bigger = new byte[Math.max(bytes.length * 2, count + len)];
+				System.arraycopy(bytes, 0, bigger, 0, count);
+				bytes = bigger;
+			}
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(bytes, 0, count);
+		}
+
+		void reset(){
+			count = 0;
+			//don't hang on to a buffer grown for one oversized message
+			if (bytes.length > capacity){
+				bytes = new byte[capacity];
+			}
+		}
+
+		int size(){
+			return count;
+		}
+
+		int capacity(){
+			return capacity;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted byte buffer handed out by a BufferPool. Whoever acquires it
+ * holds the first reference; anyone else who wants to keep looking at its bytes
+ * (such as a message sliced out of it) calls retain(), and every reference is given
+ * back with release(). The buffer returns to its pool when the count drops to zero,
+ * after which its bytes must not be touched.
+ */
+public class PooledBuffer {
+
+	private final BufferPool pool;
+	private final byte[] array;
+	private final ByteBuffer buffer;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+
+	PooledBuffer(BufferPool pool, byte[] array){
+		this.pool = pool;
+		this.array = array;
+		this.buffer = ByteBuffer.wrap(array);
+	}
+
+	/**
+	 * Wrap existing bytes, for decoding data that did not come from a pool. 
+	 * Releasing such a buffer simply leaves it to the garbage collector.
+	 * @param array
+	 * @param offset
+	 * @param length
+	 * @return a buffer whose buffer() spans the given range
+	 */
+	public static PooledBuffer wrap(byte[] array, int offset, int length){
+		PooledBuffer wrapped = new PooledBuffer(null, array);
+		wrapped.buffer.position(offset);
+		wrapped.buffer.limit(offset + length);
+		return wrapped;
+	}
+
+	/**
+	 * @return the backing array, for reading from streams straight into it.
+	 */
+	public byte[] array() {
+		return array;
+	}
+
+	/**
+	 * @return a ByteBuffer over the whole backing array, the same object on every call.
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public int capacity() {
+		return array.length;
+	}
+
+	public int refCount() {
+		return refCount.get();
+	}
+
+	/**
+	 * Take an extra reference to this buffer.
+	 * @return this buffer
+	 */
+	public PooledBuffer retain() {
+		refCount.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Give back one reference.
+	 * @return whether that was the last reference.
+	 */
+	public boolean release() {
+		int remaining = refCount.decrementAndGet();
+		if (remaining == 0){
+			if (pool != null){
+				pool.recycle(this);
+			}
+			return true;
+		} else if (remaining < 0){
+			throw new IllegalStateException("PooledBuffer released more times than it was retained");
+		}
+		return false;
+	}
+
+	/**
+	 * Reset state when handed out again by the pool.
+	 */
+	void reuse() {
+		refCount.set(1);
+		buffer.clear();
+	}
+}
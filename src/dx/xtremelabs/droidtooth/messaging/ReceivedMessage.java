@@ -0,0 +1,80 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message received on a socket. Its payload is a read-only slice of a pooled
+ * buffer rather than a copy, so it is only valid as long as a reference to it is held.
+ * 
+ * Listeners keep a message alive for the duration of their callback. To hold on to
+ * it any longer, call retain() and then release() once done with it; a message that
+ * is never released is simply left to the garbage collector instead of being recycled.
+ */
+public class ReceivedMessage {
+
+	private final ByteBuffer payload;
+	private final PooledBuffer owner;
+
+	/**
+	 * @param payload read-only view of the message's bytes
+	 * @param owner the pooled buffer the view points into, or null if not pooled.
+	 * 			A reference to it is taken on behalf of this message.
+	 */
+	public ReceivedMessage(ByteBuffer payload, PooledBuffer owner){
+		this.payload = payload;
+		this.owner = owner;
+		if (owner != null){
+			owner.retain();
+		}
+	}
+
+	/**
+	 * @return a read-only view of the payload from position() to limit(). Reading from it
+	 * 			moves its position, use duplicate() if it has to be read more than once.
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	public int length() {
+		return payload.remaining();
+	}
+
+	/**
+	 * Copy the payload out of the pool.
+	 * @return a new array with the message's bytes
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Keep this message beyond the callback that delivered it.
+	 * @return this message
+	 */
+	public ReceivedMessage retain() {
+		if (owner != null){
+			owner.retain();
+		}
+		return this;
+	}
+
+	/**
+	 * Give back a reference to this message.
+	 */
+	public void release() {
+		if (owner != null){
+			owner.release();
+		}
+	}
+
+	/**
+	 * @return the payload decoded as text using the platform charset.
+	 */
+	@Override
+	public String toString() {
+		return new String(toByteArray());
+	}
+}
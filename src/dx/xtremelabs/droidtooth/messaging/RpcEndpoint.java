@@ -0,0 +1,312 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+import dx.xtremelabs.droidtooth.exceptions.RemoteCallException;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Request/response calls over a connection. Every request carries a correlation id
+ * that its response echoes, so any number of calls may be in flight at once and each
+ * response completes the future of the call it answers as soon as it is read, in
+ * whatever order the peer answers them.
+ *
+ * Both ends of the connection must use an RpcEndpoint, either end may call the other.
+ * Requests are answered by the endpoint's RpcHandler, on the reader thread unless an
+ * Executor is given for them.
+ *
+ * Every message is one frame of the FrameCodec made of a type byte, the correlation
+ * id as a varint and the body: the request, the response or the error text. Empty
+ * frames are heartbeats sent through the shared writer and are skipped.
+ */
+public class RpcEndpoint {
+
+	static final byte REQUEST = 0;
+	static final byte RESPONSE = 1;
+	static final byte ERROR = 2;
+
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+	private static final int READ_BUFFER_SIZE = 1024;
+	private static final int MAX_HEADER_SIZE = 1 + VarintFrameCodec.MAX_HEADER_SIZE;
+
+	private final Connection connection;
+	private final FrameCodec frameCodec;
+	private final MessageWriter writer;
+	private final BufferPool bufferPool;
+	private final RpcHandler handler;
+	private volatile Executor requestExecutor;
+
+	private final AtomicInteger nextId = new AtomicInteger();
+	//calls waiting for their response, by correlation id
+	private final ConcurrentHashMap<Integer, DTFuture<byte[]>> pending = new ConcurrentHashMap<Integer, DTFuture<byte[]>>();
+
+	private final Thread readerThread;
+	private volatile boolean isRunning = true;
+	private DTCallback errorOccurred;
+
+	/**
+	 * Start reading calls and responses from the connection.
+	 * @param connection a connected connection nothing else reads from
+	 * @param frameCodec codec both ends frame messages with
+	 * @param writer the connection's writer, may be shared with other senders
+	 * @param handler answers the peer's requests, null if this end only makes calls
+	 */
+	public RpcEndpoint(Connection connection, FrameCodec frameCodec, MessageWriter writer, RpcHandler handler){
+		this(connection, frameCodec, writer, BufferPool.getDefault(), handler);
+	}
+
+	public RpcEndpoint(Connection connection, FrameCodec frameCodec, MessageWriter writer, BufferPool bufferPool, RpcHandler handler){
+		this.connection = connection;
+		this.frameCodec = frameCodec;
+		this.writer = writer;
+		this.bufferPool = bufferPool;
+		this.handler = handler;
+
+		readerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "DroidTooth-rpc-reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	/**
+	 * @see #call(byte[], long)
+	 */
+	public DTFuture<byte[]> call(byte[] request){
+		return call(request, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Send a request to the peer without waiting for its response.
+	 * @param request
+	 * @param timeoutMillis how long to wait for the response before failing with a TimeoutException
+	 * @return a future completed with the response, or failed with a TimeoutException, a
+	 * 			RemoteCallException if the peer's handler threw, or an IOException if the
+	 * 			request could not be queued or the connection was lost.
+	 */
+	public DTFuture<byte[]> call(byte[] request, long timeoutMillis){
+		final int id = nextId.getAndIncrement();
+		DTFuture<byte[]> future = new DTFuture<byte[]>();
+		if (!isRunning){
+			future.fail(new IOException("RpcEndpoint is closed"));
+			return future;
+		}
+
+		pending.put(id, future);
+		//forget about the call however it completes, timing out included
+		future.addListener(new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				pending.remove(id);
+			}
+
+			@Override
+			public void callback() {
+			}
+		});
+		future.failAfter(timeoutMillis, TimeUnit.MILLISECONDS);
+
+		if (!writer.send(message(REQUEST, id, request, 0, request.length))){
+			future.fail(new IOException("Unable to queue request"));
+		}
+		return future;
+	}
+
+	/**
+	 * Run the handler for incoming requests on the given executor rather than the reader
+	 * thread, so slow requests don't hold up responses to this end's own calls.
+	 * @param requestExecutor null to go back to the reader thread
+	 */
+	public void setRequestExecutor(Executor requestExecutor) {
+		this.requestExecutor = requestExecutor;
+	}
+
+	/**
+	 * @param errorOccurred to be called with the IOException that stopped this endpoint.
+	 */
+	public void setErrorOccurredCallback(DTCallback errorOccurred) {
+		this.errorOccurred = errorOccurred;
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	/**
+	 * @return how many calls are waiting for a response.
+	 */
+	public int getPendingCalls(){
+		return pending.size();
+	}
+
+	/**
+	 * Stop reading and fail every call still waiting. The connection is left open,
+	 * but the reader thread only stops once the connection is closed or the peer
+	 * sends something.
+	 */
+	public void close(){
+		shutdown(new IOException("RpcEndpoint closed"));
+	}
+
+	private void shutdown(IOException reason){
+		isRunning = false;
+		Iterator<DTFuture<byte[]>> calls = pending.values().iterator();
+		while (calls.hasNext()){
+			DTFuture<byte[]> call = calls.next();
+			calls.remove();
+			call.fail(reason);
+		}
+	}
+
+	private static byte[] message(byte type, int id, byte[] body, int offset, int length){
+		byte[] header = new byte[MAX_HEADER_SIZE];
+		header[0] = type;
+		int headerSize = 1 + VarintFrameCodec.writeVarint(id, header, 1);
+		byte[] message = new byte[headerSize + length];
+		System.arraycopy(header, 0, message, 0, headerSize);
+		System.arraycopy(body, offset, message, headerSize, length);
+		return message;
+	}
+
+	private void readLoop(){
+		PooledBuffer readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+		FrameDecoder decoder = frameCodec.newDecoder();
+		MessageHandler messageHandler = new MessageHandler();
+		try {
+			InputStream in = connection.getInputStream();
+			int bytesRead;
+			while (isRunning && (bytesRead = in.read(readBuffer.array(), 0, readBuffer.capacity())) != -1){
+				ByteBuffer bytes = readBuffer.buffer();
+				bytes.clear();
+				bytes.limit(bytesRead);
+				decoder.decode(readBuffer, messageHandler);
+				if (messageHandler.failure != null){
+					throw messageHandler.failure;
+				}
+				if (readBuffer.refCount() > 1){
+					readBuffer.release();
+					readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+				}
+			}
+			shutdown(new IOException("Connection closed"));
+		} catch (IOException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "RpcEndpoint stopped reading: "+e);
+			boolean wasRunning = isRunning;
+			shutdown(e);
+			if (wasRunning && errorOccurred != null){
+				errorOccurred.callback(e);
+			}
+		} finally {
+			readBuffer.release();
+			decoder.reset();
+		}
+	}
+
+	private class MessageHandler implements FrameHandler {
+
+		MalformedFrameException failure;
+
+		@Override
+		public void frameDecoded(ByteBuffer payload, PooledBuffer owner) {
+			if (failure != null){
+				return;
+			}
+			if (!payload.hasRemaining()){
+				return; //a heartbeat, every RPC message has a type
+			}
+			try {
+				byte type = payload.get();
+				int id = VarintFrameCodec.readVarint(payload);
+				switch (type){
+				case REQUEST:
+					requestReceived(id, new ReceivedMessage(payload, owner));
+					break;
+				case RESPONSE:
+				case ERROR:
+					responseReceived(type, id, payload);
+					break;
+				default:
+					throw new MalformedFrameException("Unknown RPC message type "+type);
+				}
+			} catch (MalformedFrameException e) {
+				failure = e;
+			}
+		}
+	}
+
+	private void responseReceived(byte type, int id, ByteBuffer body){
+		DTFuture<byte[]> call = pending.remove(id);
+		if (call == null){
+			return; //timed out or cancelled already
+		}
+		byte[] bytes = new byte[body.remaining()];
+		body.get(bytes);
+		if (type == RESPONSE){
+			call.set(bytes);
+		} else {
+			call.fail(new RemoteCallException(new String(bytes)));
+		}
+	}
+
+	private void requestReceived(final int id, final ReceivedMessage request){
+		Executor executor = requestExecutor;
+		if (executor == null){
+			answer(id, request);
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				answer(id, request);
+			}
+		});
+	}
+
+	//releases the request once answered
+	private void answer(int id, ReceivedMessage request){
+		byte[] response;
+		try {
+			if (handler == null){
+				throw new UnsupportedOperationException("No handler for requests");
+			}
+			response = handler.handleRequest(request);
+			if (response == null){
+				response = new byte[0];
+			}
+			byte[] message = message(RESPONSE, id, response, 0, response.length);
+			if (!writer.send(message)){
+				//a short error still fits where the response did not, rather than leaving the call to time out
+				sendError(id, message.length > frameCodec.getMaxFrameSize() ? "Response of "+response.length+" bytes is too large"
+						: "Response dropped, the queue is full");
+			}
+		} catch (Exception e) {
+			//not every exception has a message, its class name at least says what went wrong
+			sendError(id, e.getMessage() != null ? e.getMessage() : e.toString());
+		} finally {
+			request.release();
+		}
+	}
+
+	private void sendError(int id, String text){
+		byte[] error = text.getBytes();
+		if (!writer.send(message(ERROR, id, error, 0, error.length))){
+			Log.d(Constants.DEBUG_DROIDTOOTH, "RpcEndpoint could not send error for call "+id+": "+text);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+/**
+ * Answers the requests an RpcEndpoint receives from its peer.
+ */
+public interface RpcHandler {
+
+	/**
+	 * Handle one request. The request is only valid during this call.
+	 * @param request
+	 * @return the response to send back, null for an empty response
+	 * @throws Exception to have the caller's call fail with a RemoteCallException
+	 */
+	public byte[] handleRequest(ReceivedMessage request) throws Exception;
+
+}
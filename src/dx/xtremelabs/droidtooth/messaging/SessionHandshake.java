@@ -0,0 +1,131 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * First thing both ends of a new connection do: each sends a HELLO saying what it
+ * supports and reads the other's, and what both support is used from then on.
+ * Both sides send before reading, so it does not matter which end is the server.
+ *
+ * A HELLO is a fixed HELLO_SIZE bytes, not a frame, so that nothing beyond it is read
+ * off the stream before the negotiated codec takes over:
+ * [magic, 4 bytes][version][flags][reserved, 2 bytes][dictionary id, 4 bytes]
+ *
+ * A flag only takes effect if both HELLOs carry it, so a peer that predates a flag
+ * simply never gets the feature it stands for.
+ */
+public class SessionHandshake {
+
+	public static final int MAGIC = 0x44544831; //"DTH1"
+	public static final int VERSION = 1;
+	public static final int HELLO_SIZE = 12;
+
+	//flags
+	public static final int FLAG_COMPRESSION = 1;
+	//sends empty messages when idle and expects the same, see HeartbeatMonitor
+	public static final int FLAG_HEARTBEATS = 2;
+
+	private final boolean offerCompression;
+	private final byte[] dictionary;
+	private final int compressionThreshold;
+
+	/**
+	 * Offer compression with the default dictionary and threshold.
+	 */
+	public SessionHandshake(){
+		this(true, CompressingFrameCodec.DEFAULT_DICTIONARY, CompressingFrameCodec.DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param offerCompression whether to compress frames if the peer agrees
+	 * @param dictionary preset dictionary, compression is only agreed on if the peer's is the same
+	 * @param compressionThreshold smallest payload worth compressing
+	 */
+	public SessionHandshake(boolean offerCompression, byte[] dictionary, int compressionThreshold){
+		this.offerCompression = offerCompression;
+		this.dictionary = dictionary;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Exchange HELLOs over a freshly connected connection.
+	 * @param connection
+	 * @param frameCodec codec frames are delimited with
+	 * @param offerHeartbeats whether we will exchange heartbeats if the peer does too
+	 * @return what both ends agreed on
+	 * @throws IOException if the peer does not answer with a DroidTooth HELLO
+	 */
+	public Session negotiate(Connection connection, FrameCodec frameCodec, boolean offerHeartbeats) throws IOException {
+		int dictionaryId = CompressingFrameCodec.dictionaryId(dictionary);
+		int flags = (offerCompression ? FLAG_COMPRESSION : 0) | (offerHeartbeats ? FLAG_HEARTBEATS : 0);
+
+		ByteBuffer hello = ByteBuffer.allocate(HELLO_SIZE);
+		hello.putInt(MAGIC).put((byte) VERSION).put((byte) flags)
+				.putShort((short) 0).putInt(dictionaryId);
+		OutputStream out = connection.getOutputStream();
+		out.write(hello.array());
+		out.flush();
+
+		ByteBuffer peer = ByteBuffer.wrap(readFully(connection.getInputStream(), HELLO_SIZE));
+		if (peer.getInt() != MAGIC){
+			throw new IOException("Peer did not answer with a DroidTooth HELLO");
+		}
+		peer.get(); //version: only 1 exists so far, later ones must still understand it
+		int peerFlags = peer.get();
+		peer.getShort();
+		int peerDictionaryId = peer.getInt();
+
+		if (offerCompression && (peerFlags & FLAG_COMPRESSION) != 0 && peerDictionaryId == dictionaryId){
+			frameCodec = new CompressingFrameCodec(frameCodec, dictionary, compressionThreshold);
+		}
+		return new Session(frameCodec, offerHeartbeats && (peerFlags & FLAG_HEARTBEATS) != 0);
+	}
+
+	/**
+	 * What a handshake agreed on for one connection.
+	 */
+	public static class Session {
+
+		private final FrameCodec frameCodec;
+		private final boolean heartbeats;
+
+		Session(FrameCodec frameCodec, boolean heartbeats){
+			this.frameCodec = frameCodec;
+			this.heartbeats = heartbeats;
+		}
+
+		/**
+		 * @return the codec to use on the connection: the one negotiate() was given, or a
+		 * 			CompressingFrameCodec wrapping it if both ends agreed on compression.
+		 */
+		public FrameCodec getFrameCodec(){
+			return frameCodec;
+		}
+
+		/**
+		 * @return whether both ends send heartbeats, so each may expect them from the other
+		 */
+		public boolean isHeartbeats(){
+			return heartbeats;
+		}
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int filled = 0;
+		while (filled < length){
+			int bytesRead = in.read(bytes, filled, length - filled);
+			if (bytesRead == -1){
+				throw new EOFException("Connection closed during handshake");
+			}
+			filled += bytesRead;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,196 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+
+/**
+ * Default DroidTooth framing: every message is prefixed by its length encoded as an
+ * unsigned varint (7 bits per byte, least significant group first, high bit set on all
+ * but the last byte). Messages under 128 bytes cost a single byte of overhead and the
+ * payload may contain any bytes, zeros included.
+ */
+public class VarintFrameCodec implements FrameCodec {
+
+	//largest frame we are willing to buffer for a single message
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	//a 32-bit length never takes more than 5 varint bytes
+	public static final int MAX_HEADER_SIZE = 5;
+
+	//payloads of empty frames
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private final int maxFrameSize;
+	private final BufferPool bufferPool;
+
+	public VarintFrameCodec(){
+		this(DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	public VarintFrameCodec(int maxFrameSize){
+		this(maxFrameSize, BufferPool.getDefault());
+	}
+
+	/**
+	 * @param maxFrameSize largest payload accepted on either side
+	 * @param bufferPool where decoders get the buffers for frames spanning several reads
+	 */
+	public VarintFrameCodec(int maxFrameSize, BufferPool bufferPool){
+		this.maxFrameSize = maxFrameSize;
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	@Override
+	public void encode(byte[] payload, int offset, int length, OutputStream out) throws IOException {
+		if (length > maxFrameSize){
+			throw new MalformedFrameException("Frame of "+length+" bytes exceeds the maximum of "+maxFrameSize);
+		}
+		byte[] header = new byte[MAX_HEADER_SIZE];
+		int headerSize = writeVarint(length, header, 0);
+		out.write(header, 0, headerSize);
+		out.write(payload, offset, length);
+	}
+
+	@Override
+	public FrameDecoder newDecoder() {
+		return new Decoder();
+	}
+
+	/**
+	 * Write value as an unsigned varint into dst.
+	 * @return the number of bytes written, at most MAX_HEADER_SIZE.
+	 */
+	public static int writeVarint(int value, byte[] dst, int offset){
+		int i = offset;
+		while ((value & ~0x7F) != 0){
+			dst[i++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[i++] = (byte) value;
+		return i - offset;
+	}
+
+	/**
+	 * Read an unsigned varint written by writeVarint(), advancing the buffer's position.
+	 * @throws MalformedFrameException if the buffer ends mid-varint or it is too long
+	 */
+	public static int readVarint(ByteBuffer in) throws MalformedFrameException {
+		int value = 0;
+		for (int shift = 0; shift < 7 * MAX_HEADER_SIZE; shift += 7){
+			if (!in.hasRemaining()){
+				throw new MalformedFrameException("Truncated varint");
+			}
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0){
+				return value;
+			}
+		}
+		throw new MalformedFrameException("Varint longer than "+MAX_HEADER_SIZE+" bytes");
+	}
+
+	/**
+	 * @return the number of bytes writeVarint() would use for value.
+	 */
+	public static int varintSize(int value){
+		int size = 1;
+		while ((value & ~0x7F) != 0){
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Single pass state machine: it is either collecting the varint header or the
+	 * payload. A payload that lies entirely within the buffer being decoded is handed
+	 * out as a slice of that buffer without copying; only frames spanning several
+	 * reads are assembled, in a buffer taken from the pool.
+	 */
+	private class Decoder implements FrameDecoder {
+
+		private boolean readingHeader = true;
+		private int length = 0;
+		private int shift = 0;
+
+		//frame being assembled across reads, and how much of it arrived so far
+		private PooledBuffer assembling;
+		private int filled = 0;
+
+		@Override
+		public void decode(PooledBuffer source, FrameHandler handler) throws IOException {
+			ByteBuffer in = source.buffer();
+			while (in.hasRemaining()){
+				if (readingHeader){
+					readHeaderByte(in.get(), handler);
+				} else if (assembling == null && in.remaining() >= length){
+					//whole payload is right here, hand out a view of it
+					ByteBuffer payload = in.asReadOnlyBuffer();
+					payload.limit(in.position() + length);
+					in.position(in.position() + length);
+					nextFrame();
+					handler.frameDecoded(payload, source);
+				} else {
+					if (assembling == null){
+						assembling = bufferPool.acquire(length);
+					}
+					int chunk = Math.min(in.remaining(), length - filled);
+					in.get(assembling.array(), filled, chunk);
+					filled += chunk;
+					if (filled == length){
+						ByteBuffer payload = assembling.buffer().asReadOnlyBuffer();
+						payload.limit(length);
+						PooledBuffer owner = assembling;
+						assembling = null;
+						nextFrame();
+						handler.frameDecoded(payload, owner);
+						owner.release(); //the handler retained it if it wanted to keep it
+					}
+				}
+			}
+		}
+
+		private void readHeaderByte(byte b, FrameHandler handler) throws IOException {
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) != 0){
+				shift += 7;
+				if (shift >= 7 * MAX_HEADER_SIZE){
+					throw new MalformedFrameException("Frame header longer than "+MAX_HEADER_SIZE+" bytes");
+				}
+				return;
+			}
+			if (length < 0 || length > maxFrameSize){
+				throw new MalformedFrameException("Frame of "+length+" bytes exceeds the maximum of "+maxFrameSize);
+			}
+			readingHeader = false;
+			if (length == 0){ //empty frames carry no payload to wait for
+				nextFrame();
+				handler.frameDecoded(EMPTY, null);
+			}
+		}
+
+		private void nextFrame(){
+			readingHeader = true;
+			length = 0;
+			shift = 0;
+			filled = 0;
+		}
+
+		@Override
+		public void reset() {
+			if (assembling != null){
+				assembling.release();
+				assembling = null;
+			}
+			nextFrame();
+		}
+	}
+}
@@ -1,66 +1,201 @@
-package dx.xtremelabs.droidtooth.runners;
-
-import java.io.IOException;
-import java.io.InputStream;
-
-import android.bluetooth.BluetoothSocket;
-import dx.xtremelabs.droidtooth.callbacks.DTCallback;
-
-public class ListenForMessageRunner extends Runner {
-
-	private String messageReturned = "";
-	private boolean gotMessage = false;
-	BluetoothSocket socket;
-	DTCallback gotMessageCallback;
-	
-	public ListenForMessageRunner(BluetoothSocket socket, DTCallback gotMessageCallback) {
-		this.socket = socket;
-	}
-	
-	/**
-	 * Calling this method will extract the messages thus far stored
-	 * while this listener has been listening. It will reset 
-	 * the flag that there is a new message because we "just checked our inbox"
-	 * @return the message thus far
-	 */
-	public String getMessage(){
-		gotMessage = false;
-		return messageReturned;
-	}
-	
-	/**
-	 * Return whether the listener got a message 
-	 * @return
-	 */
-	public boolean gotMessage(){
-		return gotMessage;
-	}
-	
-	@Override
-	public void run() {
-		String message="";
-		int bufferSize = 1024;
-		byte[] buffer = new byte[bufferSize];
-		try {
-			InputStream instream = socket.getInputStream();
-			int bytesRead;
-			while (true) {
-				bytesRead = instream.read(buffer);
-				if (bytesRead != -1) {
-					gotMessage = true;
-					while ((bytesRead == bufferSize) && (buffer[bufferSize-1] != 0)){
-						message = message + new String(buffer, 0, bytesRead);
-						bytesRead = instream.read(buffer);
-					}
-//					message = message + new String(buffer, 0, bytesRead - 1);
-					messageReturned += message;
-					
-					//issue a callback once we finish receiving a message.
-					if (gotMessageCallback!=null){
-						gotMessageCallback.callback(message);
-					}
-				} 
-			}
-		} catch (IOException e) {}
-	}
-}
+package dx.xtremelabs.droidtooth.runners;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.os.SystemClock;
+import android.util.Log;
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.Constants;
+import dx.xtremelabs.droidtooth.messaging.BufferPool;
+import dx.xtremelabs.droidtooth.messaging.FrameCodec;
+import dx.xtremelabs.droidtooth.messaging.FrameDecoder;
+import dx.xtremelabs.droidtooth.messaging.FrameHandler;
+import dx.xtremelabs.droidtooth.messaging.MessageInbox;
+import dx.xtremelabs.droidtooth.messaging.PooledBuffer;
+import dx.xtremelabs.droidtooth.messaging.ReceivedMessage;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+/**
+ * Reads framed messages off a connection until it ends. Blocks for the connection's
+ * whole life, so it is run on a thread of its own, see DroidToothInstance.getListenerExecutor(),
+ * rather than executed as an AsyncTask.
+ */
+public class ListenForMessageRunner extends Runner implements FrameHandler, Runnable {
+
+	//size of the buffer each socket read goes into
+	public static final int BUFFER_SIZE = 1024;
+
+	//unread messages, the oldest are dropped once it is full
+	private final MessageInbox inbox;
+	//whether messages handed to the callback go to the inbox as well
+	private volatile boolean keepCallbackMessages = false;
+	//whether the peer agreed to send heartbeats, otherwise empty messages are just messages
+	private volatile boolean heartbeats = false;
+	Connection connection;
+	FrameCodec frameCodec;
+	BufferPool bufferPool;
+	DTCallback gotMessageCallback;
+	DTCallback connectionLostCallback;
+
+	//when anything last came through, for telling whether the peer is still there
+	private volatile long lastReadTime = SystemClock.elapsedRealtime();
+	private volatile long heartbeatsReceived = 0;
+
+	public ListenForMessageRunner(Connection connection, FrameCodec frameCodec, DTCallback gotMessageCallback) {
+		this(connection, frameCodec, BufferPool.getDefault(), new MessageInbox(), gotMessageCallback);
+	}
+
+	public ListenForMessageRunner(Connection connection, FrameCodec frameCodec, BufferPool bufferPool, MessageInbox inbox, DTCallback gotMessageCallback) {
+		this.connection = connection;
+		this.frameCodec = frameCodec;
+		this.bufferPool = bufferPool;
+		this.inbox = inbox;
+		this.gotMessageCallback = gotMessageCallback;
+	}
+
+	/**
+	 * Calling this method will extract the oldest message not yet read
+	 * while this listener has been listening, removing it from the inbox 
+	 * because we "just checked our inbox"
+	 * @return the message as text, null if there are no unread messages.
+	 */
+	public String getMessage(){
+		ReceivedMessage message = inbox.poll();
+		if (message == null){
+			return null;
+		}
+		String text = message.toString();
+		message.release();
+		return text;
+	}
+
+	public Connection getConnection(){
+		return connection;
+	}
+
+	/**
+	 * Return the inbox of unread messages, for polling or draining them
+	 * as ReceivedMessages and checking how many were dropped.
+	 * @return
+	 */
+	public MessageInbox getInbox(){
+		return inbox;
+	}
+
+	/**
+	 * Messages only go to the inbox when there is no callback to take them, so that an
+	 * app reading them in the callback doesn't fill the inbox with messages it never
+	 * polls, keeping their buffers out of the pool.
+	 * @param keepCallbackMessages true to have the inbox keep them as well
+	 */
+	public void setKeepCallbackMessages(boolean keepCallbackMessages) {
+		this.keepCallbackMessages = keepCallbackMessages;
+	}
+
+	/**
+	 * @param heartbeats true if the connection's handshake agreed on heartbeats, so that
+	 * 			empty messages are counted as heartbeats instead of being delivered
+	 */
+	public void setHeartbeats(boolean heartbeats) {
+		this.heartbeats = heartbeats;
+	}
+
+	/**
+	 * Set a callback to be issued with the connection when it stops delivering
+	 * messages because the peer went away or reading failed, but not when this
+	 * listener was cancelled.
+	 * @param connectionLostCallback
+	 */
+	public void setConnectionLostCallback(DTCallback connectionLostCallback) {
+		this.connectionLostCallback = connectionLostCallback;
+	}
+
+	/**
+	 * @return when bytes last arrived on the connection, or when listening started,
+	 * 			in SystemClock.elapsedRealtime() milliseconds.
+	 */
+	public long getLastReadTime(){
+		return lastReadTime;
+	}
+
+	/**
+	 * @return how many heartbeats, empty messages, arrived
+	 */
+	public long getHeartbeatsReceived(){
+		return heartbeatsReceived;
+	}
+
+	/**
+	 * Return whether the listener got a message that was not read yet
+	 * @return
+	 */
+	public boolean gotMessage(){
+		return !inbox.isEmpty();
+	}
+
+	@Override
+	public void run() {
+		//reads go straight into pooled buffers, which the decoder walks over once per read
+		PooledBuffer readBuffer = bufferPool.acquire(BUFFER_SIZE);
+		FrameDecoder decoder = frameCodec.newDecoder();
+		try {
+			InputStream instream = connection.getInputStream();
+			int bytesRead;
+			while ((bytesRead = instream.read(readBuffer.array(), 0, readBuffer.capacity())) != -1) {
+				lastReadTime = SystemClock.elapsedRealtime();
+				ByteBuffer bytes = readBuffer.buffer();
+				bytes.clear();
+				bytes.limit(bytesRead);
+				decoder.decode(readBuffer, this);
+
+				//messages still pointing into this buffer keep it alive,
+				//otherwise we simply read the next chunk over it
+				if (readBuffer.refCount() > 1){
+					readBuffer.release();
+					readBuffer = bufferPool.acquire(BUFFER_SIZE);
+				}
+			}
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Connection closed by peer, stopped listening for messages");
+		} catch (IOException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Stopped listening for messages: "+e);
+		} finally {
+			readBuffer.release();
+			decoder.reset();
+		}
+
+		if (connectionLostCallback!=null && !isCancelled()){
+			connectionLostCallback.callback(connection);
+		}
+	}
+
+	/**
+	 * Called by the decoder for every complete message.
+	 */
+	@Override
+	public void frameDecoded(ByteBuffer payload, PooledBuffer owner) {
+		if (heartbeats && !payload.hasRemaining()){
+			heartbeatsReceived++; //empty messages only say the peer is there
+			return;
+		}
+		if (gotMessageCallback == null || keepCallbackMessages){
+			//a view of its own, so the callback reading the payload doesn't empty it
+			ReceivedMessage kept = new ReceivedMessage(payload.duplicate(), owner);
+			inbox.offer(kept);
+			kept.release();
+		}
+		if (gotMessageCallback == null){
+			return;
+		}
+
+		//issue a callback once we finish receiving a message, it's the
+		//callback's job to retain() the message if it wants to keep it.
+		ReceivedMessage message = new ReceivedMessage(payload, owner);
+		try {
+			gotMessageCallback.callback(message);
+		} finally {
+			message.release();
+		}
+	}
+}
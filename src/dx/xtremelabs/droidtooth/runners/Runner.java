@@ -1,9 +1,6 @@
 package dx.xtremelabs.droidtooth.runners;
 
 import android.os.AsyncTask;
-import android.os.SystemClock;
-import dx.xtremelabs.droidtooth.main.DroidTooth;
-import dx.xtremelabs.droidtooth.main.DroidToothInstance;
 
 /**
  * A Runner class is just like Runnable except it uses a <Void, Void, Void> AsyncTask object
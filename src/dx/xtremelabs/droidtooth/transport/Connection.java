@@ -0,0 +1,36 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A two-way byte stream to a peer, obtained either from Transport.createConnection()
+ * (then connect()'ed) or from ConnectionAcceptor.accept() (already connected).
+ * 
+ * Implementations are expected to use identity of the underlying socket for equals()
+ * and hashCode(), so connections can key maps of per-connection state.
+ */
+public interface Connection {
+
+	/**
+	 * Block until connected to the peer. Calling close() from another thread aborts it.
+	 * @throws IOException if the peer could not be reached
+	 */
+	public void connect() throws IOException;
+
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * @return the address of the peer, in the transport's own format.
+	 */
+	public String getRemoteAddress();
+
+	/**
+	 * Close both directions of the connection, aborting any blocked connect(), read or write.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
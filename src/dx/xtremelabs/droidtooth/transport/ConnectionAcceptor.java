@@ -0,0 +1,22 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+
+/**
+ * Server side of a Transport: hands out connections as peers connect to the service.
+ */
+public interface ConnectionAcceptor {
+
+	/**
+	 * Block until a peer connects.
+	 * @return the connected peer
+	 * @throws IOException if the acceptor was closed or failed
+	 */
+	public Connection accept() throws IOException;
+
+	/**
+	 * Stop listening, aborting a blocked accept(). Connections already handed out stay open.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
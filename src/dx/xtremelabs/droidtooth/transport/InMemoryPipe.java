@@ -0,0 +1,137 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * One direction of an in-memory connection: a bounded ring of bytes with a blocking
+ * OutputStream feeding it and a blocking InputStream draining it. Unlike the JDK's piped
+ * streams it does not care which threads read and write, and wakes the other side as soon
+ * as bytes or room are available rather than polling.
+ */
+public class InMemoryPipe {
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final byte[] ring;
+	private int readPos = 0;
+	private int count = 0;
+	private boolean closed = false;
+
+	private final InputStream in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return InMemoryPipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			synchronized (InMemoryPipe.this) {
+				return count;
+			}
+		}
+
+		@Override
+		public void close() {
+			InMemoryPipe.this.close();
+		}
+	};
+
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			InMemoryPipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			InMemoryPipe.this.close();
+		}
+	};
+
+	public InMemoryPipe(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	public InMemoryPipe(int capacity){
+		ring = new byte[capacity];
+	}
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Close the pipe: the reader gets end of stream once it consumed what is left,
+	 * the writer gets an IOException.
+	 */
+	public synchronized void close(){
+		closed = true;
+		notifyAll();
+	}
+
+	private synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0){
+			return 0;
+		}
+		while (count == 0){
+			if (closed){
+				return -1;
+			}
+			waitForOtherSide();
+		}
+		int total = Math.min(len, count);
+		int first = Math.min(total, ring.length - readPos);
+		System.arraycopy(ring, readPos, b, off, first);
+		System.arraycopy(ring, 0, b, off + first, total - first);
+		readPos = (readPos + total) % ring.length;
+		count -= total;
+		notifyAll();
+		return total;
+	}
+
+	private synchronized void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0){
+			while (!closed && count == ring.length){
+				waitForOtherSide();
+			}
+			if (closed){
+				throw new IOException("Pipe closed");
+			}
+			int writePos = (readPos + count) % ring.length;
+			int chunk = Math.min(len, ring.length - count);
+			int first = Math.min(chunk, ring.length - writePos);
+			System.arraycopy(b, off, ring, writePos, first);
+			System.arraycopy(b, off + first, ring, 0, chunk - first);
+			count += chunk;
+			off += chunk;
+			len -= chunk;
+			notifyAll();
+		}
+	}
+
+	private void waitForOtherSide() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A transport that never leaves the process: both ends share one InMemoryTransport
+ * instance, a server listen()s on a UUID and clients connect to that UUID, each
+ * connection being a pair of InMemoryPipes. Addresses are only labels here, whatever
+ * a client connects with is what the server sees as its remote address.
+ * 
+ * Meant for exercising and benchmarking the messaging layer without Bluetooth.
+ */
+public class InMemoryTransport implements Transport {
+
+	private final ConcurrentHashMap<UUID, Acceptor> listening = new ConcurrentHashMap<UUID, Acceptor>();
+	private final int pipeCapacity;
+
+	public InMemoryTransport(){
+		this(InMemoryPipe.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param pipeCapacity how many bytes can be in flight in each direction
+	 * 			before the writer blocks, like a socket's send buffer.
+	 */
+	public InMemoryTransport(int pipeCapacity){
+		this.pipeCapacity = pipeCapacity;
+	}
+
+	@Override
+	public Connection createConnection(String address, UUID uuid) throws IOException {
+		return new PipeConnection(address, uuid, null, null);
+	}
+
+	@Override
+	public ConnectionAcceptor listen(String serviceName, UUID uuid) throws IOException {
+		Acceptor acceptor = new Acceptor(uuid);
+		if (listening.putIfAbsent(uuid, acceptor) != null){
+			throw new IOException("Already listening on "+uuid);
+		}
+		return acceptor;
+	}
+
+	/**
+	 * Create a pair of connected connections directly, without a listener.
+	 * @return two connections, what is written to one is read from the other.
+	 */
+	public Connection[] createConnectedPair(String address1, String address2){
+		InMemoryPipe oneToTwo = new InMemoryPipe(pipeCapacity);
+		InMemoryPipe twoToOne = new InMemoryPipe(pipeCapacity);
+		return new Connection[] {
+				new PipeConnection(address2, null, twoToOne, oneToTwo),
+				new PipeConnection(address1, null, oneToTwo, twoToOne)
+		};
+	}
+
+	private class Acceptor implements ConnectionAcceptor {
+
+		private final UUID uuid;
+		private final LinkedBlockingQueue<Connection> incoming = new LinkedBlockingQueue<Connection>();
+		private volatile boolean closed = false;
+
+		Acceptor(UUID uuid){
+			this.uuid = uuid;
+		}
+
+		@Override
+		public Connection accept() throws IOException {
+			try {
+				Connection connection = incoming.take();
+				if (closed){
+					throw new IOException("Acceptor closed");
+				}
+				return connection;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while accepting");
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			listening.remove(uuid, this);
+			//wake up a blocked accept()
+			incoming.offer(new PipeConnection(null, uuid, null, null));
+		}
+	}
+
+	private class PipeConnection implements Connection {
+
+		private final String remoteAddress;
+		private final UUID uuid;
+		private volatile InMemoryPipe in, out;
+		private volatile boolean closed = false;
+
+		PipeConnection(String remoteAddress, UUID uuid, InMemoryPipe in, InMemoryPipe out){
+			this.remoteAddress = remoteAddress;
+			this.uuid = uuid;
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public synchronized void connect() throws IOException {
+			if (closed){
+				throw new IOException("Connection closed");
+			}
+			if (in != null){
+				return; //already connected
+			}
+			Acceptor acceptor = listening.get(uuid);
+			if (acceptor == null){
+				throw new IOException("Nobody listening on "+uuid);
+			}
+			InMemoryPipe toServer = new InMemoryPipe(pipeCapacity);
+			InMemoryPipe toClient = new InMemoryPipe(pipeCapacity);
+			in = toClient;
+			out = toServer;
+			acceptor.incoming.offer(new PipeConnection(remoteAddress, uuid, toServer, toClient));
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (in == null){
+				throw new IOException("Not connected");
+			}
+			return in.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			if (out == null){
+				throw new IOException("Not connected");
+			}
+			return out.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			if (in != null){
+				in.close();
+			}
+			if (out != null){
+				out.close();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "in-memory "+remoteAddress;
+		}
+	}
+}
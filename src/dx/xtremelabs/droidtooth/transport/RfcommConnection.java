@@ -0,0 +1,70 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * A Connection over a BluetoothSocket. Two RfcommConnections wrapping the
+ * same socket are equal, so a socket can be wrapped wherever it is needed.
+ */
+public class RfcommConnection implements Connection {
+
+	private final BluetoothSocket socket;
+
+	public RfcommConnection(BluetoothSocket socket){
+		if (socket == null){
+			throw new NullPointerException("socket");
+		}
+		this.socket = socket;
+	}
+
+	/**
+	 * @return the underlying Bluetooth socket.
+	 */
+	public BluetoothSocket getSocket() {
+		return socket;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		socket.connect();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return socket.getRemoteDevice().getAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof RfcommConnection && ((RfcommConnection) o).socket == socket;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(socket);
+	}
+
+	@Override
+	public String toString() {
+		return "RFCOMM "+getRemoteAddress();
+	}
+}
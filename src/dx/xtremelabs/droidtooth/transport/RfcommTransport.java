@@ -0,0 +1,120 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import dx.xtremelabs.droidtooth.common.Constants;
+
+/**
+ * The Bluetooth transport: RFCOMM sockets located through SDP service records.
+ * 
+ * With a ServiceRecordCache, the channel a service was found on is remembered once
+ * connected, and later connects to it open that channel directly, skipping the
+ * service record lookup.
+ */
+public class RfcommTransport implements Transport {
+
+	private final BluetoothAdapter adapter;
+	private final ServiceRecordCache serviceRecords;
+
+	public RfcommTransport(BluetoothAdapter adapter){
+		this(adapter, null);
+	}
+
+	/**
+	 * @param adapter
+	 * @param serviceRecords where channels are remembered, null to always look services up
+	 */
+	public RfcommTransport(BluetoothAdapter adapter, ServiceRecordCache serviceRecords){
+		this.adapter = adapter;
+		this.serviceRecords = serviceRecords;
+	}
+
+	public ServiceRecordCache getServiceRecordCache() {
+		return serviceRecords;
+	}
+
+	/**
+	 * @param address the MAC address of the device to connect to
+	 * @param uuid the service record UUID to look up
+	 */
+	@Override
+	public Connection createConnection(String address, UUID uuid) throws IOException {
+		BluetoothDevice device = adapter.getRemoteDevice(address);
+		if (serviceRecords == null){
+			return new RfcommConnection(device.createRfcommSocketToServiceRecord(uuid));
+		}
+
+		int channel = serviceRecords.getChannel(address, uuid);
+		BluetoothSocket socket = channel > 0 ? createRfcommSocket(device, channel) : null;
+		if (socket == null){
+			channel = -1;
+			socket = device.createRfcommSocketToServiceRecord(uuid);
+		}
+		return new CachingConnection(socket, address, uuid, channel);
+	}
+
+	//hidden API, the public ones always look the service record up first
+	private static BluetoothSocket createRfcommSocket(BluetoothDevice device, int channel){
+		try {
+			Method createRfcommSocket = device.getClass().getMethod("createRfcommSocket", int.class);
+			return (BluetoothSocket) createRfcommSocket.invoke(device, channel);
+		} catch (Exception e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to open channel "+channel+" directly: "+e);
+			return null;
+		}
+	}
+
+	@Override
+	public ConnectionAcceptor listen(String serviceName, UUID uuid) throws IOException {
+		final BluetoothServerSocket serverSocket = adapter.listenUsingRfcommWithServiceRecord(serviceName, uuid);
+		return new ConnectionAcceptor() {
+			@Override
+			public Connection accept() throws IOException {
+				return new RfcommConnection(serverSocket.accept());
+			}
+
+			@Override
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+		};
+	}
+
+	/**
+	 * Keeps the cache in step with how connecting went: a service looked up is
+	 * remembered once connected, a cached channel that fails is forgotten.
+	 */
+	private class CachingConnection extends RfcommConnection {
+
+		private final String address;
+		private final UUID uuid;
+		private final int cachedChannel;
+
+		CachingConnection(BluetoothSocket socket, String address, UUID uuid, int cachedChannel){
+			super(socket);
+			this.address = address;
+			this.uuid = uuid;
+			this.cachedChannel = cachedChannel;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			try {
+				super.connect();
+			} catch (IOException e) {
+				serviceRecords.invalidate(address, uuid);
+				throw e;
+			}
+			if (cachedChannel <= 0){
+				serviceRecords.learnChannel(address, uuid);
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.IBluetooth;
+import android.os.ParcelUuid;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import dx.xtremelabs.droidtooth.common.Constants;
+
+/**
+ * Remembers, per device MAC, which services a device offers and which RFCOMM channel
+ * each one is on, so that reconnecting to a device can go straight to the channel
+ * instead of looking up its service record over the air first.
+ *
+ * Channels are learned from the Bluetooth service once a connect through SDP succeeded,
+ * at which point it holds the device's records. They are forgotten after the TTL, and
+ * as soon as connecting on one fails, since the peer may have restarted on another.
+ */
+public class ServiceRecordCache {
+
+	//servers get a new channel whenever they restart listening, so don't trust one for long
+	public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+	private final IBluetooth bluetooth;
+	private final long ttlMillis;
+
+	//guarded by this
+	private final HashMap<String, DeviceRecord> records = new HashMap<String, DeviceRecord>();
+	private long hits = 0;
+	private long misses = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param bluetooth the Bluetooth service, e.g. DroidToothInstance.getIBluetooth(); if null,
+	 * 			nothing is ever learned and every connect looks its service up.
+	 */
+	public ServiceRecordCache(IBluetooth bluetooth){
+		this(bluetooth, DEFAULT_TTL_MILLIS);
+	}
+
+	public ServiceRecordCache(IBluetooth bluetooth, long ttlMillis){
+		this.bluetooth = bluetooth;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @param uuid service UUID
+	 * @return the RFCOMM channel the service was last found on, -1 if unknown or expired.
+	 */
+	public synchronized int getChannel(String address, UUID uuid){
+		DeviceRecord record = records.get(address);
+		Channel channel = record == null ? null : record.channels.get(uuid);
+		if (channel == null || isExpired(channel.learnedAt)){
+			misses++;
+			return -1;
+		}
+		hits++;
+		return channel.channel;
+	}
+
+	/**
+	 * Ask the Bluetooth service which channel a service is on now that it has the
+	 * device's records, and remember it.
+	 * @param address
+	 * @param uuid
+	 * @return the channel, -1 if the Bluetooth service doesn't know it.
+	 */
+	public int learnChannel(String address, UUID uuid){
+		if (bluetooth == null){
+			return -1;
+		}
+		int channel;
+		try {
+			channel = bluetooth.getRemoteServiceChannel(address, new ParcelUuid(uuid));
+		} catch (RemoteException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to get service channel of "+address+": "+e);
+			return -1;
+		}
+		if (channel > 0){
+			putChannel(address, uuid, channel);
+		}
+		return channel;
+	}
+
+	public synchronized void putChannel(String address, UUID uuid, int channel){
+		recordFor(address).channels.put(uuid, new Channel(channel, SystemClock.elapsedRealtime()));
+	}
+
+	/**
+	 * @param address MAC of the device
+	 * @return the service UUIDs the device advertised when its records were last fetched,
+	 * 			asking the Bluetooth service if not known or expired. Empty if nobody knows.
+	 */
+	public List<UUID> getServiceUuids(String address){
+		synchronized (this) {
+			DeviceRecord record = records.get(address);
+			if (record != null && record.uuids != null && !isExpired(record.uuidsLearnedAt)){
+				hits++;
+				return record.uuids;
+			}
+			misses++;
+		}
+		if (bluetooth == null){
+			return Collections.emptyList();
+		}
+
+		ParcelUuid[] parcelUuids;
+		try {
+			parcelUuids = bluetooth.getRemoteUuids(address);
+		} catch (RemoteException e) {
+			Log.d(Constants.DEBUG_DROIDTOOTH, "Unable to get service UUIDs of "+address+": "+e);
+			return Collections.emptyList();
+		}
+		if (parcelUuids == null){
+			return Collections.emptyList(); //never fetched, not worth remembering
+		}
+		List<UUID> uuids = new ArrayList<UUID>(parcelUuids.length);
+		for (ParcelUuid parcelUuid : parcelUuids){
+			uuids.add(parcelUuid.getUuid());
+		}
+		uuids = Collections.unmodifiableList(uuids);
+		synchronized (this) {
+			DeviceRecord record = recordFor(address);
+			record.uuids = uuids;
+			record.uuidsLearnedAt = SystemClock.elapsedRealtime();
+		}
+		return uuids;
+	}
+
+	/**
+	 * Forget the channel of a service, e.g. because connecting on it failed.
+	 */
+	public synchronized void invalidate(String address, UUID uuid){
+		DeviceRecord record = records.get(address);
+		if (record != null && record.channels.remove(uuid) != null){
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Forget everything known about a device.
+	 */
+	public synchronized void invalidate(String address){
+		if (records.remove(address) != null){
+			invalidations++;
+		}
+	}
+
+	public synchronized void clear(){
+		records.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	private boolean isExpired(long learnedAt){
+		return SystemClock.elapsedRealtime() - learnedAt > ttlMillis;
+	}
+
+	private DeviceRecord recordFor(String address){
+		DeviceRecord record = records.get(address);
+		if (record == null){
+			record = new DeviceRecord();
+			records.put(address, record);
+		}
+		return record;
+	}
+
+	private static class DeviceRecord {
+		final HashMap<UUID, Channel> channels = new HashMap<UUID, Channel>(4);
+		List<UUID> uuids;
+		long uuidsLearnedAt;
+	}
+
+	private static class Channel {
+		final int channel;
+		final long learnedAt;
+
+		Channel(int channel, long learnedAt){
+			this.channel = channel;
+			this.learnedAt = learnedAt;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A transport over TCP, typically on localhost, so that the real kernel socket path
+ * sits under the messaging layer when measuring it off-device. Addresses are host
+ * names and every UUID maps to a port, either bound explicitly with bind() or
+ * derived from the UUID.
+ */
+public class TcpTransport implements Transport {
+
+	public static final int DEFAULT_BASE_PORT = 47000;
+
+	private final ConcurrentHashMap<UUID, Integer> ports = new ConcurrentHashMap<UUID, Integer>();
+	private final int basePort;
+
+	public TcpTransport(){
+		this(DEFAULT_BASE_PORT);
+	}
+
+	/**
+	 * @param basePort UUIDs without an explicit port map to basePort plus 0..1023
+	 */
+	public TcpTransport(int basePort){
+		this.basePort = basePort;
+	}
+
+	/**
+	 * Use the given port for the given service UUID.
+	 * @param uuid
+	 * @param port
+	 */
+	public void bind(UUID uuid, int port){
+		ports.put(uuid, port);
+	}
+
+	public int getPort(UUID uuid){
+		Integer port = ports.get(uuid);
+		return port != null ? port : basePort + (uuid.hashCode() & 0x3FF);
+	}
+
+	@Override
+	public Connection createConnection(String address, UUID uuid) throws IOException {
+		return new TcpConnection(new Socket(), new InetSocketAddress(address, getPort(uuid)), address);
+	}
+
+	@Override
+	public ConnectionAcceptor listen(String serviceName, UUID uuid) throws IOException {
+		final ServerSocket serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), getPort(uuid)));
+		return new ConnectionAcceptor() {
+			@Override
+			public Connection accept() throws IOException {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				return new TcpConnection(socket, null, socket.getInetAddress().getHostAddress());
+			}
+
+			@Override
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+		};
+	}
+
+	private static class TcpConnection implements Connection {
+
+		private final Socket socket;
+		private final InetSocketAddress endpoint;
+		private final String remoteAddress;
+
+		TcpConnection(Socket socket, InetSocketAddress endpoint, String remoteAddress){
+			this.socket = socket;
+			this.endpoint = endpoint;
+			this.remoteAddress = remoteAddress;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			if (!socket.isConnected()){
+				socket.connect(endpoint);
+				socket.setTcpNoDelay(true);
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return socket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+
+		@Override
+		public String toString() {
+			return "TCP "+remoteAddress;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package dx.xtremelabs.droidtooth.transport;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * The means by which DroidTooth reaches other devices. RfcommTransport is what runs on
+ * phones; InMemoryTransport and TcpTransport carry the very same framing, messaging and
+ * server logic over pipes or localhost sockets, so it can be exercised on a plain JVM.
+ * 
+ * Addresses and UUIDs mean whatever the transport makes of them: a MAC address and an
+ * SDP service UUID for RFCOMM, a host name and a port looked up by UUID for TCP.
+ */
+public interface Transport {
+
+	/**
+	 * Prepare a connection to a listening peer without connecting yet, so that
+	 * the caller holds something to close() should connect() take too long.
+	 * @param address the peer to connect to
+	 * @param uuid the service the peer is listening on
+	 * @return an unconnected connection
+	 * @throws IOException if the peer or service is not usable at all
+	 */
+	public Connection createConnection(String address, UUID uuid) throws IOException;
+
+	/**
+	 * Start listening for incoming connections on the given service.
+	 * @param serviceName name to advertise the service under, if the transport has such a notion
+	 * @param uuid the service to listen on
+	 * @return an acceptor handing out incoming connections
+	 * @throws IOException if the service cannot be registered
+	 */
+	public ConnectionAcceptor listen(String serviceName, UUID uuid) throws IOException;
+}
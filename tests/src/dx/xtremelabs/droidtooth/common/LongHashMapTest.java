@@ -0,0 +1,80 @@
+package dx.xtremelabs.droidtooth.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongHashMapTest {
+
+	@Test
+	public void putGetRemove(){
+		LongHashMap<String> map = new LongHashMap<String>();
+		assertNull(map.put(1L, "one"));
+		assertEquals("one", map.put(1L, "uno"));
+		assertEquals("uno", map.get(1L));
+		assertEquals(1, map.size());
+		assertEquals("uno", map.remove(1L));
+		assertNull(map.remove(1L));
+		assertNull(map.get(1L));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void removeKeepsCollidingKeysReachable(){
+		//six keys in eight slots can't all sit in their home slot, so whichever is
+		//removed, others probed past it have to stay reachable
+		long[] keys = {0x001122334455L, 0x001122334456L, 0x00AABBCCDDEEL, 7L, 1L << 40, -1L};
+		for (int removed = 0; removed < keys.length; removed++){
+			LongHashMap<Long> map = new LongHashMap<Long>(keys.length);
+			for (long key : keys){
+				map.put(key, key);
+			}
+			assertEquals(Long.valueOf(keys[removed]), map.remove(keys[removed]));
+			for (int i = 0; i < keys.length; i++){
+				assertEquals(i == removed ? null : Long.valueOf(keys[i]), map.get(keys[i]));
+			}
+			assertEquals(keys.length - 1, map.size());
+		}
+	}
+
+	@Test
+	public void matchesHashMapUnderRandomPutsAndRemoves(){
+		LongHashMap<Long> map = new LongHashMap<Long>();
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++){
+			//few distinct keys so removes keep hitting present ones, in long probe runs
+			long key = random.nextInt(500) * 1024L;
+			if (random.nextBoolean()){
+				assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+			} else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (long key = 0; key < 500 * 1024L; key += 1024){
+			assertEquals(expected.get(key), map.get(key));
+		}
+		assertEquals(expected.size(), map.values().size());
+	}
+
+	@Test
+	public void clearEmptiesTheMap(){
+		LongHashMap<String> map = new LongHashMap<String>();
+		for (long key = 0; key < 100; key++){
+			map.put(key, "v");
+		}
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertFalse(map.containsKey(5));
+		map.put(5, "again");
+		assertEquals("again", map.get(5));
+	}
+}
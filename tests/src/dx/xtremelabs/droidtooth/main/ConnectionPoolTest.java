@@ -0,0 +1,199 @@
+package dx.xtremelabs.droidtooth.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import android.bluetooth.BluetoothDevice;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.common.FoundDevice;
+import dx.xtremelabs.droidtooth.transport.Connection;
+
+public class ConnectionPoolTest {
+
+	private static final UUID SERVICE = UUID.fromString("8d4e3b6a-0c1b-4f3e-9a55-4b1b2a7c0001");
+	private static final UUID OTHER_SERVICE = UUID.fromString("8d4e3b6a-0c1b-4f3e-9a55-4b1b2a7c0002");
+	private static final long IDLE_TIMEOUT_MILLIS = 100;
+	private static final long WAIT_MILLIS = 5000;
+
+	private final FoundDevice a = device("00:00:00:00:00:0A");
+	private final FoundDevice b = device("00:00:00:00:00:0B");
+	private final FoundDevice c = device("00:00:00:00:00:0C");
+
+	private TestPool pool;
+
+	@After
+	public void closePool(){
+		if (pool != null){
+			pool.closeAll();
+		}
+	}
+
+	@Test
+	public void sharesOneConnectionPerDeviceAndService() throws Exception {
+		pool = new TestPool(7, 60000);
+		Connection first = pool.lease(a, SERVICE, 1000).get();
+		Connection second = pool.lease(a, SERVICE, 1000).get();
+		Connection otherService = pool.lease(a, OTHER_SERVICE, 1000).get();
+
+		assertSame(first, second);
+		assertNotSame(first, otherService);
+		assertEquals(2, pool.connects);
+		assertEquals(1, pool.getHits());
+		assertEquals(2, pool.getMisses());
+	}
+
+	@Test
+	public void closesConnectionOnceIdle() throws Exception {
+		pool = new TestPool(7, IDLE_TIMEOUT_MILLIS);
+		TestConnection connection = (TestConnection) pool.lease(a, SERVICE, 1000).get();
+		pool.release(connection);
+		assertFalse(connection.closed);
+
+		awaitClosed(connection);
+		assertEquals(0, pool.getSize());
+		assertEquals(1, pool.getEvictions());
+	}
+
+	@Test
+	public void heldConnectionStaysOpenUntilUnheld() throws Exception {
+		pool = new TestPool(7, IDLE_TIMEOUT_MILLIS);
+		TestConnection connection = (TestConnection) pool.hold(a, SERVICE, 1000).get();
+		//toothing a device again holds it no more than once
+		assertSame(connection, pool.hold(a, SERVICE, 1000).get());
+
+		Thread.sleep(3 * IDLE_TIMEOUT_MILLIS);
+		assertEquals(0, pool.evictIdle());
+		assertFalse(connection.closed);
+
+		pool.unhold(connection);
+		awaitClosed(connection);
+	}
+
+	@Test
+	public void fullPoolMakesRoomByClosingLongestIdle() throws Exception {
+		pool = new TestPool(2, 60000);
+		TestConnection idle = (TestConnection) pool.lease(a, SERVICE, 1000).get();
+		pool.lease(b, SERVICE, 1000).get();
+		try {
+			pool.lease(c, SERVICE, 1000).get();
+			fail("leased past a pool full of connections in use");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		pool.release(idle);
+		pool.lease(c, SERVICE, 1000).get();
+		assertTrue(idle.closed);
+		assertEquals(2, pool.getSize());
+		assertEquals(1, pool.getEvictions());
+	}
+
+	@Test
+	public void failedConnectIsRetriedByNextLease() throws Exception {
+		pool = new TestPool(7, 60000);
+		pool.failNext = true;
+		try {
+			pool.lease(a, SERVICE, 1000).get();
+			fail("lease succeeded although the connect failed");
+		} catch (ExecutionException e) {
+			//expected
+		}
+		assertEquals(0, pool.getSize());
+
+		pool.lease(a, SERVICE, 1000).get();
+		assertEquals(2, pool.connects);
+	}
+
+	@Test
+	public void lostConnectionIsReplaced() throws Exception {
+		pool = new TestPool(7, 60000);
+		Connection lost = pool.lease(a, SERVICE, 1000).get();
+		pool.connectionLost(lost);
+		assertNotSame(lost, pool.lease(a, SERVICE, 1000).get());
+	}
+
+	private static void awaitClosed(TestConnection connection) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (!connection.closed){
+			assertTrue("connection not closed in "+WAIT_MILLIS+"ms", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static FoundDevice device(String address){
+		return new FoundDevice(address, new BluetoothDevice(address));
+	}
+
+	/**
+	 * Connects instantly, without DroidTooth.connect() and so without Bluetooth.
+	 */
+	private static class TestPool extends ConnectionPool {
+
+		volatile int connects = 0;
+		volatile boolean failNext = false;
+
+		TestPool(int maxSize, long idleTimeoutMillis){
+			super(maxSize, idleTimeoutMillis);
+		}
+
+		@Override
+		protected DTFuture<Connection> connect(FoundDevice device, UUID uuid, long timeoutMillis) {
+			connects++;
+			DTFuture<Connection> connecting = new DTFuture<Connection>();
+			if (failNext){
+				failNext = false;
+				connecting.fail(new IOException("Connection refused"));
+			} else {
+				connecting.set(new TestConnection(device.DEVICE_MAC));
+			}
+			return connecting;
+		}
+	}
+
+	private static class TestConnection implements Connection {
+
+		final String address;
+		volatile boolean closed = false;
+
+		TestConnection(String address){
+			this.address = address;
+		}
+
+		@Override
+		public void connect() throws IOException {
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			throw new IOException("Not connected to anything");
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Not connected to anything");
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return address;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+		}
+	}
+}
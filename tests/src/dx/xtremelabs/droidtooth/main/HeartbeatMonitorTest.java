@@ -0,0 +1,230 @@
+package dx.xtremelabs.droidtooth.main;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.messaging.BulkReceiver;
+import dx.xtremelabs.droidtooth.messaging.BulkSender;
+import dx.xtremelabs.droidtooth.messaging.FrameCodec;
+import dx.xtremelabs.droidtooth.messaging.MessageWriter;
+import dx.xtremelabs.droidtooth.messaging.ReceivedMessage;
+import dx.xtremelabs.droidtooth.messaging.RpcEndpoint;
+import dx.xtremelabs.droidtooth.messaging.RpcHandler;
+import dx.xtremelabs.droidtooth.messaging.VarintFrameCodec;
+import dx.xtremelabs.droidtooth.runners.ListenForMessageRunner;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.InMemoryTransport;
+
+public class HeartbeatMonitorTest {
+
+	private static final long INTERVAL_MILLIS = 50;
+	private static final int MISS_THRESHOLD = 3;
+	//long enough for a peer that doesn't beat to be declared dead
+	private static final long PAST_THRESHOLD_MILLIS = (MISS_THRESHOLD + 3) * INTERVAL_MILLIS;
+	private static final long WAIT_MILLIS = 5000;
+
+	private final FrameCodec codec = new VarintFrameCodec();
+	private Connection[] pair;
+	private TestMonitor monitor;
+	private File directory;
+
+	@Before
+	public void connect(){
+		pair = new InMemoryTransport().createConnectedPair("00:00:00:00:00:01", "00:00:00:00:00:02");
+		monitor = new TestMonitor();
+		monitor.setInterval(INTERVAL_MILLIS, MISS_THRESHOLD);
+	}
+
+	@After
+	public void close() throws IOException {
+		monitor.stopMonitoring(pair[0]);
+		monitor.stopMonitoring(pair[1]);
+		for (MessageWriter writer : monitor.writers.values()){
+			writer.close();
+		}
+		pair[0].close();
+		pair[1].close();
+		if (directory != null){
+			for (File file : directory.listFiles()){
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void beatsWhileNothingElseIsSent() throws Exception {
+		monitor.monitor(pair[0], null);
+		ListenForMessageRunner listener = listen(pair[1]);
+
+		Thread.sleep(PAST_THRESHOLD_MILLIS);
+		assertTrue(listener.getHeartbeatsReceived() > 0);
+		assertFalse("a heartbeat was delivered as a message", listener.gotMessage());
+	}
+
+	@Test
+	public void idlePeerThatBeatsStaysAlive() throws Exception {
+		monitor.monitor(pair[0], listen(pair[0]));
+		monitor.monitor(pair[1], listen(pair[1]));
+
+		Thread.sleep(PAST_THRESHOLD_MILLIS);
+		assertTrue(monitor.isAlive(pair[0].getRemoteAddress()));
+		assertTrue(monitor.isAlive(pair[1].getRemoteAddress()));
+		assertEquals(0, monitor.getDeadPeers());
+	}
+
+	@Test
+	public void silentPeerIsDeclaredDeadAndItsConnectionLost() throws Exception {
+		final BlockingQueue<Object> dead = new ArrayBlockingQueue<Object>(1);
+		final BlockingQueue<Object> lost = new ArrayBlockingQueue<Object>(1);
+		monitor.setDeadPeerCallback(offerTo(dead));
+		ListenForMessageRunner listener = new ListenForMessageRunner(pair[0], codec, null);
+		listener.setHeartbeats(true);
+		listener.setConnectionLostCallback(offerTo(lost));
+		listener.execute();
+		//pair[1] sends nothing at all
+		monitor.monitor(pair[0], listener);
+
+		assertSame(pair[0], dead.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertSame(pair[0], lost.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(1, monitor.getDeadPeers());
+		assertFalse(monitor.isAlive(pair[0].getRemoteAddress()));
+		assertEquals(0, monitor.getMonitoredConnections());
+	}
+
+	@Test
+	public void rpcSessionSurvivesIdlingPastTheMissThreshold() throws Exception {
+		//endpoints send through the writers heartbeats go out on
+		RpcEndpoint caller = new RpcEndpoint(pair[0], codec, monitor.writerFor(pair[0]), null);
+		RpcEndpoint callee = new RpcEndpoint(pair[1], codec, monitor.writerFor(pair[1]), new RpcHandler() {
+			@Override
+			public byte[] handleRequest(ReceivedMessage request) {
+				return request.toByteArray();
+			}
+		});
+		try {
+			monitor.monitor(pair[0], null);
+			monitor.monitor(pair[1], null);
+
+			Thread.sleep(PAST_THRESHOLD_MILLIS);
+			assertTrue(caller.isRunning());
+			assertTrue(callee.isRunning());
+			assertArrayEquals(new byte[] {1, 2, 3}, caller.call(new byte[] {1, 2, 3}).get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		} finally {
+			caller.close();
+			callee.close();
+		}
+	}
+
+	@Test
+	public void bulkTransferSkipsHeartbeatsSentBeforeIt() throws Exception {
+		directory = File.createTempFile("bulk", null);
+		directory.delete();
+		directory.mkdir();
+		//the receiver is waiting for an offer while both ends still beat
+		DTFuture<File> received = new BulkReceiver(pair[1], codec, directory).receive();
+		monitor.monitor(pair[0], null);
+		monitor.monitor(pair[1], null);
+		Thread.sleep(PAST_THRESHOLD_MILLIS);
+
+		//the transfer takes the connection over
+		monitor.stopMonitoring(pair[0]);
+		monitor.stopMonitoring(pair[1]);
+		Thread.sleep(INTERVAL_MILLIS);
+		monitor.writerFor(pair[0]).close();
+		monitor.writerFor(pair[1]).close();
+
+		byte[] payload = new byte[3 * BulkSender.DEFAULT_CHUNK_SIZE + 1];
+		for (int i = 0; i < payload.length; i++){
+			payload[i] = (byte) i;
+		}
+		DTFuture<Long> sent = new BulkSender(pair[0], codec).send("idle", new ByteArrayInputStream(payload), payload.length);
+		assertEquals(Long.valueOf(payload.length), sent.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		File file = received.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		assertArrayEquals(payload, read(file));
+	}
+
+	private ListenForMessageRunner listen(Connection connection){
+		ListenForMessageRunner listener = new ListenForMessageRunner(connection, codec, null);
+		listener.setHeartbeats(true);
+		listener.execute();
+		return listener;
+	}
+
+	private static DTCallback offerTo(final BlockingQueue<Object> queue){
+		return new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				queue.offer(o);
+			}
+
+			@Override
+			public void callback() {
+			}
+		};
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < bytes.length){
+				int n = in.read(bytes, read, bytes.length - read);
+				assertTrue(n > 0);
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	//beats through writers of its own, no DroidToothInstance involved
+	private class TestMonitor extends HeartbeatMonitor {
+
+		final ConcurrentHashMap<Connection, MessageWriter> writers = new ConcurrentHashMap<Connection, MessageWriter>();
+
+		TestMonitor(){
+			super(null);
+		}
+
+		@Override
+		MessageWriter getMessageWriter(Connection connection){
+			try {
+				MessageWriter writer = writerFor(connection);
+				return writer.isRunning() ? writer : null;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		synchronized MessageWriter writerFor(Connection connection) throws IOException {
+			MessageWriter writer = writers.get(connection);
+			if (writer == null){
+				writer = new MessageWriter(connection.getOutputStream(), codec);
+				writers.put(connection, writer);
+			}
+			return writer;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.InMemoryTransport;
+
+public class BulkTransferTest {
+
+	private static final int CHUNK_SIZE = BulkSender.DEFAULT_CHUNK_SIZE;
+	private static final long WAIT_MILLIS = 5000;
+
+	private final FrameCodec codec = new VarintFrameCodec();
+	private final InMemoryTransport transport = new InMemoryTransport();
+	private Connection[] pair;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		pair = connect();
+		directory = File.createTempFile("bulk", null);
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		pair[0].close();
+		pair[1].close();
+		for (File file : directory.listFiles()){
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void storesThePayloadUnderItsId() throws Exception {
+		byte[] payload = payload(10 * CHUNK_SIZE + 123);
+		DTFuture<File> received = new BulkReceiver(pair[1], codec, directory).receive();
+		BulkSender sender = new BulkSender(pair[0], codec);
+		DTFuture<Long> sent = sender.send("payload", new ByteArrayInputStream(payload), payload.length);
+
+		assertEquals(Long.valueOf(payload.length), sent.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		File file = received.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		assertEquals(new File(directory, "payload"), file);
+		assertArrayEquals(payload, read(file));
+		assertFalse(new File(directory, "payload" + BulkReceiver.PART_SUFFIX).exists());
+		assertEquals(0, sender.getResumedFrom());
+		assertEquals(payload.length, sender.getBytesAcknowledged());
+	}
+
+	@Test
+	public void sendsFromAFileChannel() throws Exception {
+		byte[] payload = payload(3 * CHUNK_SIZE);
+		File source = new File(directory, "source");
+		RandomAccessFile file = new RandomAccessFile(source, "rw");
+		try {
+			file.write(payload);
+			DTFuture<File> received = new BulkReceiver(pair[1], codec, directory).receive();
+			new BulkSender(pair[0], codec).send("copy", file.getChannel()).get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			assertArrayEquals(payload, read(received.get(WAIT_MILLIS, TimeUnit.MILLISECONDS)));
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void resumesFromTheReceiversCheckpoint() throws Exception {
+		byte[] payload = payload(12 * CHUNK_SIZE + 5);
+
+		//the source gives out after four chunks, then the link drops
+		BulkReceiver receiver = new BulkReceiver(pair[1], codec, directory);
+		DTFuture<File> received = receiver.receive();
+		DTFuture<Long> sent = new BulkSender(pair[0], codec).send("resumed", new FailingStream(payload, 4 * CHUNK_SIZE), payload.length);
+		assertFailed(sent);
+		pair[0].close();
+		assertFailed(received);
+		//whatever chunks got through before then are kept
+		long checkpoint = new File(directory, "resumed" + BulkReceiver.PART_SUFFIX).length();
+		assertTrue("nothing kept to resume from", checkpoint > 0);
+		assertEquals(checkpoint, receiver.getBytesReceived());
+
+		//sending the same id again over a new connection carries on from there
+		pair = connect();
+		receiver = new BulkReceiver(pair[1], codec, directory);
+		received = receiver.receive();
+		BulkSender sender = new BulkSender(pair[0], codec);
+		sent = sender.send("resumed", new ByteArrayInputStream(payload), payload.length);
+
+		assertEquals(Long.valueOf(payload.length), sent.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertArrayEquals(payload, read(received.get(WAIT_MILLIS, TimeUnit.MILLISECONDS)));
+		assertEquals(checkpoint, sender.getResumedFrom());
+		assertEquals(checkpoint, receiver.getResumedFrom());
+	}
+
+	@Test
+	public void refusesIdsOutsideItsDirectory() throws Exception {
+		DTFuture<File> received = new BulkReceiver(pair[1], codec, directory).receive();
+		DTFuture<Long> sent = new BulkSender(pair[0], codec).send("../escaped", new ByteArrayInputStream(new byte[1]), 1);
+		assertFailed(sent);
+		assertFailed(received);
+		assertFalse(new File(directory.getParentFile(), "escaped" + BulkReceiver.PART_SUFFIX).exists());
+	}
+
+	private Connection[] connect(){
+		return transport.createConnectedPair("00:00:00:00:00:01", "00:00:00:00:00:02");
+	}
+
+	private static void assertFailed(DTFuture<?> future) throws Exception {
+		try {
+			future.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			fail("expected the transfer to fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	private static byte[] payload(int length){
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++){
+			payload[i] = (byte) (i * 31);
+		}
+		return payload;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < bytes.length){
+				int n = in.read(bytes, read, bytes.length - read);
+				assertTrue(n > 0);
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	//fails every read past a given position
+	private static class FailingStream extends InputStream {
+
+		private final byte[] bytes;
+		private final int failAt;
+		private int position = 0;
+
+		FailingStream(byte[] bytes, int failAt){
+			this.bytes = bytes;
+			this.failAt = failAt;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= failAt){
+				throw new IOException("Source failed at "+position);
+			}
+			len = Math.min(len, failAt - position);
+			System.arraycopy(bytes, position, b, off, len);
+			position += len;
+			return len;
+		}
+	}
+}
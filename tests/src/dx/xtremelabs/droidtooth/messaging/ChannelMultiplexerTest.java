@@ -0,0 +1,215 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dx.xtremelabs.droidtooth.callbacks.DTCallback;
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.InMemoryTransport;
+
+public class ChannelMultiplexerTest {
+
+	private static final int WINDOW = 1024;
+	private static final int CHUNK_SIZE = 64;
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	private final FrameCodec codec = new VarintFrameCodec();
+	private Connection[] pair;
+	private ChannelMultiplexer one, two;
+
+	@Before
+	public void connect() throws IOException {
+		pair = new InMemoryTransport().createConnectedPair("00:00:00:00:00:01", "00:00:00:00:00:02");
+		one = new ChannelMultiplexer(pair[0], codec, new BufferPool(4), WINDOW, CHUNK_SIZE);
+	}
+
+	@After
+	public void close(){
+		one.close();
+		if (two != null){
+			two.close();
+		}
+	}
+
+	@Test
+	public void deliversEachChannelInOrder() throws Exception {
+		two = new ChannelMultiplexer(pair[1], codec, new BufferPool(4), WINDOW, CHUNK_SIZE);
+		BlockingQueue<byte[]> control = received(two.getChannel(1));
+		BlockingQueue<byte[]> bulk = received(two.getChannel(2));
+
+		byte[] big = message(10 * WINDOW);
+		assertTrue(one.getChannel(2).send(big));
+		for (int i = 0; i < 10; i++){
+			assertTrue(one.getChannel(1).send(new byte[] {(byte) i}));
+		}
+
+		for (int i = 0; i < 10; i++){
+			assertArrayEquals(new byte[] {(byte) i}, take(control));
+		}
+		assertArrayEquals(big, take(bulk));
+	}
+
+	@Test
+	public void unreadChannelStallsAlone() throws Exception {
+		two = new ChannelMultiplexer(pair[1], codec, new BufferPool(4), WINDOW, CHUNK_SIZE);
+		ChannelMultiplexer.Channel unread = two.getChannel(1);
+		BlockingQueue<byte[]> read = received(two.getChannel(2));
+
+		//twice the window on channel 1, which nobody polls yet
+		ChannelMultiplexer.Channel stalled = one.getChannel(1);
+		for (int i = 0; i < 4; i++){
+			assertTrue(stalled.send(message(WINDOW / 2)));
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (stalled.getSendCredit() > 0){
+			assertTrue("window never filled", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertTrue(one.getChannel(2).send(message(100)));
+		assertArrayEquals(message(100), take(read));
+		assertEquals(2, stalled.getQueuedMessages());
+
+		//polling hands the window back, letting the rest through
+		for (int i = 0; i < 4; i++){
+			ReceivedMessage polled = poll(unread);
+			assertArrayEquals(message(WINDOW / 2), polled.toByteArray());
+			polled.release();
+		}
+	}
+
+	@Test
+	public void rejectsMessagesOverTheMaximum() throws IOException {
+		ChannelMultiplexer small = new ChannelMultiplexer(pair[1], codec, new BufferPool(4), WINDOW, CHUNK_SIZE, 100, 4);
+		try {
+			assertFalse(small.getChannel(0).send(new byte[101]));
+			assertTrue(small.getChannel(0).send(new byte[100]));
+		} finally {
+			small.close();
+		}
+	}
+
+	@Test
+	public void skipsHeartbeatsSentBeforeMultiplexing() throws Exception {
+		BlockingQueue<byte[]> received = received(one.getChannel(3));
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		codec.encode(new byte[0], 0, 0, frames);
+		codec.encode(new byte[0], 0, 0, frames);
+		frames.write(chunk(3, ChannelMultiplexer.DATA_FIRST, 0));
+		OutputStream peer = pair[1].getOutputStream();
+		peer.write(frames.toByteArray());
+		peer.flush();
+
+		assertArrayEquals(new byte[0], take(received));
+		assertTrue(one.isRunning());
+	}
+
+	@Test
+	public void negativeChannelIdFailsTheConnection() throws Exception {
+		assertFailsOn(chunk(-1, ChannelMultiplexer.DATA_FIRST, 1));
+	}
+
+	@Test
+	public void declaredLengthOverMaximumFailsTheConnection() throws Exception {
+		assertFailsOn(chunk(0, ChannelMultiplexer.DATA_FIRST, ChannelMultiplexer.DEFAULT_MAX_MESSAGE_SIZE + 1));
+	}
+
+	@Test
+	public void unaskedCreditFailsTheConnection() throws Exception {
+		assertFailsOn(chunk(0, ChannelMultiplexer.WINDOW_UPDATE, 1));
+	}
+
+	@Test
+	public void tooManyChannelsFailTheConnection() throws Exception {
+		ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+		for (int id = 0; id <= ChannelMultiplexer.DEFAULT_MAX_CHANNELS; id++){
+			chunks.write(chunk(id, ChannelMultiplexer.DATA_FIRST, 0));
+		}
+		assertFailsOn(chunks.toByteArray());
+	}
+
+	//writes raw frames to one as a misbehaving peer would, one must fail the connection
+	private void assertFailsOn(byte[] frames) throws Exception {
+		final BlockingQueue<Object> errors = new ArrayBlockingQueue<Object>(1);
+		one.setErrorOccurredCallback(new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				errors.offer(o);
+			}
+
+			@Override
+			public void callback() {
+			}
+		});
+		OutputStream peer = pair[1].getOutputStream();
+		peer.write(frames);
+		peer.flush();
+		Object error = errors.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		assertTrue("expected a MalformedFrameException, got "+error, error instanceof MalformedFrameException);
+		assertFalse(one.isRunning());
+	}
+
+	//a chunk header as ChannelMultiplexer frames it: channel id, type, then a varint argument
+	private byte[] chunk(int id, byte type, int argument) throws IOException {
+		byte[] chunk = new byte[2 * VarintFrameCodec.MAX_HEADER_SIZE + 1];
+		int length = VarintFrameCodec.writeVarint(id, chunk, 0);
+		chunk[length++] = type;
+		length += VarintFrameCodec.writeVarint(argument, chunk, length);
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		codec.encode(chunk, 0, length, frame);
+		return frame.toByteArray();
+	}
+
+	private static BlockingQueue<byte[]> received(ChannelMultiplexer.Channel channel){
+		final BlockingQueue<byte[]> received = new ArrayBlockingQueue<byte[]>(100);
+		channel.setMessageCallback(new DTCallback() {
+			@Override
+			public void callback(Object o) {
+				received.offer(((ReceivedMessage) o).toByteArray());
+			}
+
+			@Override
+			public void callback() {
+			}
+		});
+		return received;
+	}
+
+	private static ReceivedMessage poll(ChannelMultiplexer.Channel channel) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		ReceivedMessage message;
+		while ((message = channel.poll()) == null){
+			assertTrue("nothing received in "+TIMEOUT_MILLIS+"ms", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		return message;
+	}
+
+	private static byte[] take(BlockingQueue<byte[]> received) throws InterruptedException {
+		byte[] message = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		assertNotNull("nothing received in "+TIMEOUT_MILLIS+"ms", message);
+		return message;
+	}
+
+	private static byte[] message(int length){
+		byte[] message = new byte[length];
+		for (int i = 0; i < length; i++){
+			message[i] = (byte) (i * 7);
+		}
+		return message;
+	}
+}
@@ -0,0 +1,185 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+
+public class CompressingFrameCodecTest {
+
+	private static final int MAX_FRAME_SIZE = 4096;
+
+	private final CompressingFrameCodec codec = codec(CompressingFrameCodec.DEFAULT_DICTIONARY);
+
+	@Test
+	public void shortPayloadsGoOutRaw() throws IOException {
+		byte[][] messages = {new byte[0], "{\"ok\":true}".getBytes(), message(CompressingFrameCodec.DEFAULT_THRESHOLD - 1)};
+		byte[] stream = encode(codec, messages);
+		assertEquals(0, codec.getFramesCompressed());
+		assertEquals(messages.length, codec.getFramesSent());
+		assertDecoded(messages, stream);
+	}
+
+	@Test
+	public void payloadsThatDoNotShrinkGoOutRaw() throws IOException {
+		byte[] noise = new byte[1000];
+		new Random(42).nextBytes(noise);
+		byte[][] messages = {noise};
+		byte[] stream = encode(codec, messages);
+		assertEquals(0, codec.getFramesCompressed());
+		assertEquals(1 + noise.length, codec.getBytesAfterCompression());
+		assertDecoded(messages, stream);
+	}
+
+	@Test
+	public void compressiblePayloadsGoOutDeflated() throws IOException {
+		byte[][] messages = {json(5), json(50), message(MAX_FRAME_SIZE - 1)};
+		byte[] stream = encode(codec, messages);
+		assertEquals(messages.length, codec.getFramesCompressed());
+		assertTrue(codec.getSendRatio() > 2);
+		assertDecoded(messages, stream);
+	}
+
+	@Test
+	public void decodesFramesSplitAcrossReads() throws IOException {
+		byte[][] messages = {json(20), "short".getBytes(), json(3)};
+		byte[] stream = encode(codec, messages);
+		for (int readSize : new int[] {1, 3, 64}){
+			Collector collector = new Collector();
+			FrameDecoder decoder = codec.newDecoder();
+			for (int offset = 0; offset < stream.length; offset += readSize){
+				decoder.decode(PooledBuffer.wrap(stream, offset, Math.min(readSize, stream.length - offset)), collector);
+			}
+			assertFrames(messages, collector);
+		}
+	}
+
+	@Test
+	public void rejectsAnotherDictionary() throws IOException {
+		byte[] stream = encode(codec(json(1)), new byte[][] {json(10)});
+		assertMalformed(stream, "different dictionary");
+	}
+
+	@Test
+	public void rejectsCorruptStream() throws IOException {
+		byte[] stream = encode(codec, new byte[][] {json(10)});
+		//past the frame length, type and original length: into the deflated bytes
+		for (int i = 8; i < stream.length; i++){
+			stream[i] ^= 0x5A;
+		}
+		assertMalformed(stream, null);
+	}
+
+	@Test
+	public void rejectsStreamFailingItsChecksum() throws IOException {
+		byte[] stream = encode(codec, new byte[][] {json(10)});
+		//the last byte is the deflate stream's checksum, which only its end verifies
+		stream[stream.length - 1] ^= 1;
+		assertMalformed(stream, null);
+	}
+
+	@Test
+	public void rejectsInflatedLengthOverMaximum() throws IOException {
+		//a deflated frame claiming more than this codec would ever have deflated
+		byte[] payload = new byte[1 + VarintFrameCodec.MAX_HEADER_SIZE + 1];
+		payload[0] = CompressingFrameCodec.DEFLATED;
+		int size = 1 + VarintFrameCodec.writeVarint(MAX_FRAME_SIZE, payload, 1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new VarintFrameCodec(MAX_FRAME_SIZE).encode(payload, 0, size + 1, out);
+		assertMalformed(out.toByteArray(), "too large");
+	}
+
+	@Test
+	public void rejectsUnknownType() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new VarintFrameCodec(MAX_FRAME_SIZE).encode(new byte[] {7, 1, 2}, 0, 3, out);
+		assertMalformed(out.toByteArray(), "Unknown compression type");
+	}
+
+	@Test(expected = MalformedFrameException.class)
+	public void refusesToEncodeOverMaximum() throws IOException {
+		//would deflate to almost nothing, but could not be sent raw
+		codec.encode(new byte[MAX_FRAME_SIZE], 0, MAX_FRAME_SIZE, new ByteArrayOutputStream());
+	}
+
+	private static CompressingFrameCodec codec(byte[] dictionary){
+		return new CompressingFrameCodec(new VarintFrameCodec(MAX_FRAME_SIZE, new BufferPool(4)), dictionary,
+				CompressingFrameCodec.DEFAULT_THRESHOLD);
+	}
+
+	private static byte[] encode(FrameCodec codec, byte[][] messages) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] message : messages){
+			codec.encode(message, 0, message.length, out);
+		}
+		return out.toByteArray();
+	}
+
+	private void assertDecoded(byte[][] messages, byte[] stream) throws IOException {
+		Collector collector = new Collector();
+		codec.newDecoder().decode(PooledBuffer.wrap(stream, 0, stream.length), collector);
+		assertFrames(messages, collector);
+	}
+
+	private static void assertFrames(byte[][] messages, Collector collector){
+		assertEquals(messages.length, collector.frames.size());
+		for (int i = 0; i < messages.length; i++){
+			assertArrayEquals(messages[i], collector.frames.get(i));
+		}
+	}
+
+	//expected is part of the failure's message, or null if any will do
+	private void assertMalformed(byte[] stream, String expected) throws IOException {
+		Collector collector = new Collector();
+		try {
+			codec.newDecoder().decode(PooledBuffer.wrap(stream, 0, stream.length), collector);
+			fail("decoded "+collector.frames.size()+" frames out of a bad stream");
+		} catch (MalformedFrameException e) {
+			if (expected != null){
+				assertTrue(e.getMessage(), e.getMessage().contains(expected));
+			}
+		}
+		assertEquals(0, collector.frames.size());
+	}
+
+	//the kind of message the default dictionary is made for
+	private static byte[] json(int entries){
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < entries; i++){
+			json.append(i == 0 ? "" : ",").append("{\"type\":\"status\",\"id\":\"").append(i)
+					.append("\",\"device\":\"00:11:22:33:44:55\",\"ok\":true}");
+		}
+		return json.append("]").toString().getBytes();
+	}
+
+	private static byte[] message(int length){
+		byte[] message = new byte[length];
+		for (int i = 0; i < length; i++){
+			message[i] = (byte) (i % 7);
+		}
+		return message;
+	}
+
+	private static class Collector implements FrameHandler {
+
+		final List<byte[]> frames = new ArrayList<byte[]>();
+
+		@Override
+		public void frameDecoded(ByteBuffer payload, PooledBuffer owner) {
+			byte[] frame = new byte[payload.remaining()];
+			payload.get(frame);
+			frames.add(frame);
+		}
+	}
+}
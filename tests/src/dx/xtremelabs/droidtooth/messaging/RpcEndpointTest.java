@@ -0,0 +1,181 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dx.xtremelabs.droidtooth.common.DTFuture;
+import dx.xtremelabs.droidtooth.exceptions.RemoteCallException;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.InMemoryTransport;
+
+public class RpcEndpointTest {
+
+	private static final int MAX_FRAME_SIZE = 256;
+	private static final long WAIT_MILLIS = 5000;
+
+	private final FrameCodec codec = new VarintFrameCodec(MAX_FRAME_SIZE);
+	private Connection[] pair;
+	private MessageWriter callerWriter, calleeWriter;
+	private RpcEndpoint caller, callee;
+
+	@Before
+	public void connect() throws IOException {
+		pair = new InMemoryTransport().createConnectedPair("00:00:00:00:00:01", "00:00:00:00:00:02");
+		callerWriter = new MessageWriter(pair[0].getOutputStream(), codec);
+		calleeWriter = new MessageWriter(pair[1].getOutputStream(), codec);
+		caller = new RpcEndpoint(pair[0], codec, callerWriter, null);
+	}
+
+	@After
+	public void close() throws IOException {
+		caller.close();
+		if (callee != null){
+			callee.close();
+		}
+		callerWriter.close();
+		calleeWriter.close();
+		pair[0].close();
+		pair[1].close();
+	}
+
+	@Test
+	public void callGetsItsResponse() throws Exception {
+		answerWith(new RpcHandler() {
+			@Override
+			public byte[] handleRequest(ReceivedMessage request) {
+				byte[] bytes = request.toByteArray();
+				for (int i = 0; i < bytes.length; i++){
+					bytes[i]++;
+				}
+				return bytes;
+			}
+		});
+		assertArrayEquals(new byte[] {2, 3, 4}, get(caller.call(new byte[] {1, 2, 3})));
+		assertArrayEquals(new byte[0], get(caller.call(new byte[0])));
+	}
+
+	@Test
+	public void responsesCompleteTheirOwnCallsInAnyOrder() throws Exception {
+		final CountDownLatch firstMayAnswer = new CountDownLatch(1);
+		answerWith(new RpcHandler() {
+			@Override
+			public byte[] handleRequest(ReceivedMessage request) throws InterruptedException {
+				byte[] bytes = request.toByteArray();
+				if (bytes[0] == 1){
+					firstMayAnswer.await();
+				}
+				return bytes;
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		callee.setRequestExecutor(executor);
+		try {
+			DTFuture<byte[]> first = caller.call(new byte[] {1});
+			DTFuture<byte[]> second = caller.call(new byte[] {2});
+			assertArrayEquals(new byte[] {2}, get(second));
+			assertFalse(first.isDone());
+
+			firstMayAnswer.countDown();
+			assertArrayEquals(new byte[] {1}, get(first));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void handlerFailureFailsTheCall() throws Exception {
+		answerWith(new RpcHandler() {
+			@Override
+			public byte[] handleRequest(ReceivedMessage request) {
+				throw new IllegalStateException("no such thing");
+			}
+		});
+		assertEquals("no such thing", remoteFailure(caller.call(new byte[] {1})));
+	}
+
+	@Test
+	public void endWithoutHandlerRefusesCalls() throws Exception {
+		callee = new RpcEndpoint(pair[1], codec, calleeWriter, null);
+		assertEquals("No handler for requests", remoteFailure(caller.call(new byte[] {1})));
+	}
+
+	@Test
+	public void responseTooLargeFailsTheCallRightAway() throws Exception {
+		answerWith(new RpcHandler() {
+			@Override
+			public byte[] handleRequest(ReceivedMessage request) {
+				return new byte[MAX_FRAME_SIZE];
+			}
+		});
+		String failure = remoteFailure(caller.call(new byte[] {1}));
+		assertTrue(failure, failure.contains("too large"));
+		assertEquals(1, calleeWriter.getMessagesRejected());
+	}
+
+	@Test
+	public void callTimesOutWithoutAResponse() throws Exception {
+		//nobody on the other end
+		DTFuture<byte[]> call = caller.call(new byte[] {1}, 50);
+		try {
+			call.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			fail("expected the call to time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		//forgotten by a listener of the call, which may run just after get() returns
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (caller.getPendingCalls() > 0){
+			assertTrue("timed out call never forgotten", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void closeFailsPendingCalls() throws Exception {
+		DTFuture<byte[]> call = caller.call(new byte[] {1});
+		caller.close();
+		try {
+			call.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			fail("expected the call to fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertFalse(caller.isRunning());
+		assertTrue(caller.call(new byte[] {2}).getFailure() instanceof IOException);
+	}
+
+	private void answerWith(RpcHandler handler){
+		callee = new RpcEndpoint(pair[1], codec, calleeWriter, handler);
+	}
+
+	private static byte[] get(DTFuture<byte[]> call) throws Exception {
+		return call.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	//the message of the RemoteCallException the call fails with
+	private static String remoteFailure(DTFuture<byte[]> call) throws Exception {
+		try {
+			call.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			assertTrue("expected a RemoteCallException, got "+e.getCause(), e.getCause() instanceof RemoteCallException);
+			return e.getCause().getMessage();
+		}
+		fail("expected the call to fail");
+		return null;
+	}
+}
@@ -0,0 +1,132 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dx.xtremelabs.droidtooth.messaging.SessionHandshake.Session;
+import dx.xtremelabs.droidtooth.transport.Connection;
+import dx.xtremelabs.droidtooth.transport.InMemoryTransport;
+
+public class SessionHandshakeTest {
+
+	private static final long WAIT_MILLIS = 5000;
+
+	private final FrameCodec codec = new VarintFrameCodec();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private Connection[] pair;
+
+	@Before
+	public void connect(){
+		pair = new InMemoryTransport().createConnectedPair("00:00:00:00:00:01", "00:00:00:00:00:02");
+	}
+
+	@After
+	public void close() throws IOException {
+		executor.shutdownNow();
+		pair[0].close();
+		pair[1].close();
+	}
+
+	@Test
+	public void compressesWhenBothOfferIt() throws Exception {
+		Session[] sessions = negotiate(new SessionHandshake(), new SessionHandshake());
+		for (Session session : sessions){
+			assertTrue(session.getFrameCodec() instanceof CompressingFrameCodec);
+		}
+
+		//what one end deflates the other inflates, on the stream right after the HELLOs
+		byte[] message = ("{\"type\":\"status\",\"device\":\"00:11:22:33:44:55\",\"ok\":true,"
+				+ "\"message\":\"nothing to report, nothing to report\"}").getBytes();
+		MessageWriter writer = new MessageWriter(pair[0].getOutputStream(), sessions[0].getFrameCodec());
+		try {
+			assertTrue(writer.send(message));
+			BlockingFrameReader reader = new BlockingFrameReader(pair[1].getInputStream(), sessions[1].getFrameCodec());
+			ReceivedMessage received = reader.next();
+			assertArrayEquals(message, received.toByteArray());
+			received.release();
+			reader.close();
+		} finally {
+			writer.close();
+		}
+		assertEquals(1, ((CompressingFrameCodec) sessions[0].getFrameCodec()).getFramesCompressed());
+	}
+
+	@Test
+	public void fallsBackToPlainFramesWhenOneSideDoesNotOfferCompression() throws Exception {
+		SessionHandshake without = new SessionHandshake(false, CompressingFrameCodec.DEFAULT_DICTIONARY,
+				CompressingFrameCodec.DEFAULT_THRESHOLD);
+		for (Session session : negotiate(new SessionHandshake(), without)){
+			assertSame(codec, session.getFrameCodec());
+		}
+	}
+
+	@Test
+	public void fallsBackToPlainFramesWhenDictionariesDiffer() throws Exception {
+		SessionHandshake other = new SessionHandshake(true, "{\"other\":\"\"}".getBytes(),
+				CompressingFrameCodec.DEFAULT_THRESHOLD);
+		for (Session session : negotiate(new SessionHandshake(), other)){
+			assertSame(codec, session.getFrameCodec());
+		}
+	}
+
+	@Test
+	public void heartbeatsOnlyWhenBothOfferThem() throws Exception {
+		Session[] sessions = negotiate(new SessionHandshake(), new SessionHandshake(), true, true);
+		assertTrue(sessions[0].isHeartbeats());
+		assertTrue(sessions[1].isHeartbeats());
+
+		pair[0].close();
+		pair[1].close();
+		connect();
+		sessions = negotiate(new SessionHandshake(), new SessionHandshake(), true, false);
+		assertFalse(sessions[0].isHeartbeats());
+		assertFalse(sessions[1].isHeartbeats());
+	}
+
+	@Test
+	public void refusesPeerThatIsNotDroidTooth() throws Exception {
+		OutputStream out = pair[1].getOutputStream();
+		out.write("HTTP/1.1 200 OK".getBytes());
+		out.flush();
+		try {
+			new SessionHandshake().negotiate(pair[0], codec, false);
+			fail("negotiated with a peer that sent no HELLO");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	private Session[] negotiate(SessionHandshake first, SessionHandshake second) throws Exception {
+		return negotiate(first, second, false, false);
+	}
+
+	//both ends at once, as each sends its HELLO before reading the other's
+	private Session[] negotiate(SessionHandshake first, final SessionHandshake second,
+			boolean firstHeartbeats, final boolean secondHeartbeats) throws Exception {
+		final Connection other = pair[1];
+		Future<Session> secondSession = executor.submit(new Callable<Session>() {
+			@Override
+			public Session call() throws IOException {
+				return second.negotiate(other, codec, secondHeartbeats);
+			}
+		});
+		Session firstSession = first.negotiate(pair[0], codec, firstHeartbeats);
+		return new Session[] {firstSession, secondSession.get(WAIT_MILLIS, TimeUnit.MILLISECONDS)};
+	}
+}
@@ -0,0 +1,124 @@
+package dx.xtremelabs.droidtooth.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import dx.xtremelabs.droidtooth.exceptions.MalformedFrameException;
+
+public class VarintFrameCodecTest {
+
+	private final VarintFrameCodec codec = new VarintFrameCodec(64 * 1024, new BufferPool(4));
+
+	@Test
+	public void varintRoundTrips() throws IOException {
+		int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE};
+		byte[] bytes = new byte[VarintFrameCodec.MAX_HEADER_SIZE];
+		for (int value : values){
+			int size = VarintFrameCodec.writeVarint(value, bytes, 0);
+			assertEquals(VarintFrameCodec.varintSize(value), size);
+			ByteBuffer in = ByteBuffer.wrap(bytes, 0, size);
+			assertEquals(value, VarintFrameCodec.readVarint(in));
+			assertEquals(0, in.remaining());
+		}
+	}
+
+	@Test(expected = MalformedFrameException.class)
+	public void truncatedVarintIsMalformed() throws IOException {
+		VarintFrameCodec.readVarint(ByteBuffer.wrap(new byte[] {(byte) 0x80}));
+	}
+
+	@Test
+	public void decodesFramesWhole() throws IOException {
+		byte[][] messages = {"hello".getBytes(), new byte[0], message(300), message(20000)};
+		assertDecoded(messages, encode(messages), Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void decodesFramesSplitAcrossReads() throws IOException {
+		byte[][] messages = {"hello".getBytes(), new byte[0], message(300), message(20000)};
+		byte[] stream = encode(messages);
+		//every split of the header and payload, down to a byte at a time
+		for (int readSize : new int[] {1, 2, 3, 7, 128, 1000}){
+			assertDecoded(messages, stream, readSize);
+		}
+	}
+
+	@Test
+	public void rejectsFrameOverMaximum() throws IOException {
+		VarintFrameCodec small = new VarintFrameCodec(100, new BufferPool(4));
+		byte[] header = new byte[VarintFrameCodec.MAX_HEADER_SIZE];
+		int size = VarintFrameCodec.writeVarint(101, header, 0);
+		try {
+			small.newDecoder().decode(PooledBuffer.wrap(header, 0, size), new Collector());
+			fail("decoded a frame over the maximum");
+		} catch (MalformedFrameException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void rejectsOverlongHeader() throws IOException {
+		byte[] header = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+		try {
+			codec.newDecoder().decode(PooledBuffer.wrap(header, 0, header.length), new Collector());
+			fail("decoded a header over "+VarintFrameCodec.MAX_HEADER_SIZE+" bytes");
+		} catch (MalformedFrameException e) {
+			//expected
+		}
+	}
+
+	@Test(expected = MalformedFrameException.class)
+	public void refusesToEncodeOverMaximum() throws IOException {
+		new VarintFrameCodec(100).encode(new byte[101], 0, 101, new ByteArrayOutputStream());
+	}
+
+	private byte[] encode(byte[][] messages) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] message : messages){
+			codec.encode(message, 0, message.length, out);
+		}
+		return out.toByteArray();
+	}
+
+	//feeds the stream to a decoder readSize bytes at a time, like reads off a socket
+	private void assertDecoded(byte[][] messages, byte[] stream, int readSize) throws IOException {
+		FrameDecoder decoder = codec.newDecoder();
+		Collector collector = new Collector();
+		for (int offset = 0; offset < stream.length; offset += readSize){
+			decoder.decode(PooledBuffer.wrap(stream, offset, Math.min(readSize, stream.length - offset)), collector);
+		}
+		assertEquals(messages.length, collector.frames.size());
+		for (int i = 0; i < messages.length; i++){
+			assertArrayEquals(messages[i], collector.frames.get(i));
+		}
+	}
+
+	private static byte[] message(int length){
+		byte[] message = new byte[length];
+		for (int i = 0; i < length; i++){
+			message[i] = (byte) (i * 31);
+		}
+		return message;
+	}
+
+	private static class Collector implements FrameHandler {
+
+		final List<byte[]> frames = new ArrayList<byte[]>();
+
+		@Override
+		public void frameDecoded(ByteBuffer payload, PooledBuffer owner) {
+			byte[] frame = new byte[payload.remaining()];
+			payload.get(frame);
+			frames.add(frame);
+		}
+	}
+}